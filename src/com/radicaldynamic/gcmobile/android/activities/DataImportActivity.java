@@ -237,8 +237,8 @@ public class DataImportActivity extends Activity implements DataImportListener
             public void onClick(View v)
             {
                 if (mViewFlipper.getCurrentView().getId() == R.id.wizardStep4) {
-                    // Verify import
-                    processCsvFile(DataImportListener.MODE_VERIFY);
+                    // Verify and import in a single pass (nothing is kept if verification fails)
+                    processCsvFile(DataImportListener.MODE_IMPORT);
                 } else {
                     // Proceed to next step
                     if (mSelectedFile == null) {
@@ -562,11 +562,6 @@ public class DataImportActivity extends Activity implements DataImportListener
 
             break;
 
-        case DataImportListener.MODE_VERIFY:
-            Toast.makeText(getApplicationContext(), "Verification successful", Toast.LENGTH_LONG).show();
-            processCsvFile(DataImportListener.MODE_IMPORT);
-            break;
-
         case DataImportListener.MODE_IMPORT:
             mDialogMsg = data.getString(DataImportListener.MESSAGE);
             showDialog(DIALOG_IMPORT_COMPLETE);
@@ -829,7 +824,7 @@ public class DataImportActivity extends Activity implements DataImportListener
             mParseFormDefinitionTask.execute();       
             
             mPreviousStep.setEnabled(true);
-            mNextStep.setText("Verify ");            
+            mNextStep.setText("Import ");            
             break;
         }
     }
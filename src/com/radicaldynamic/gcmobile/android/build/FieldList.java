@@ -87,6 +87,7 @@ public class FieldList extends ListActivity implements FormLoaderListener, FormS
     private String mInstanceRootId;                                     // Value of XForm instance root tag id attribute
     private FormDefinition mForm;
     private FormReader mFormReader;    
+    private FormWriter mFormWriter = new FormWriter();                  // Reused between saves
     
     private ArrayList<Field> mFieldState = new ArrayList<Field>();    
     private ArrayList<String> mPath = new ArrayList<String>();          // Human readable location in mFieldState
@@ -615,7 +616,7 @@ public class FieldList extends ListActivity implements FormLoaderListener, FormS
             try {
                 // Save to file first so we can get md5 hash
                 String name = Collect.getInstance().getFormBuilderState().getFormDefinition().getName();
-                byte[] xml = FormWriter.writeXml(name, mInstanceRoot, mInstanceRootId);
+                byte[] xml = mFormWriter.writeXml(name, mInstanceRoot, mInstanceRootId);
                 
                 File f = new File(FileUtilsExtended.EXTERNAL_CACHE + File.separator + mForm.getId() + ".xml");
                 FileOutputStream fos = new FileOutputStream(f);
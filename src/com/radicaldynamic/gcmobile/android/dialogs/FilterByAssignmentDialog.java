@@ -3,6 +3,7 @@ package com.radicaldynamic.gcmobile.android.dialogs;
 import java.util.ArrayList;
 import java.util.List;
 
+import android.app.AlertDialog;
 import android.app.AlertDialog.Builder;
 import android.content.Context;
 import android.content.DialogInterface;
@@ -69,8 +70,36 @@ public class FilterByAssignmentDialog extends Builder
                 
                 searchFilter.putStringArrayList(BrowserActivity.KEY_SEARCH_BY_ASSIGNMENT_IDS, selectedDevices);
 
-                dialog.dismiss();               
+                dialog.dismiss();
+                
+                confirmSynchronization(context, selectedDevices);
             }
         });
     }
+    
+    /*
+     * Offer to also pull the records of the selected devices if this folder only pulls those of some devices
+     */
+    private void confirmSynchronization(Context context, final ArrayList<String> selectedDevices)
+    {
+        final String db = Collect.getInstance().getInformOnlineState().getSelectedDatabase();
+        
+        if (!Collect.getInstance().getDbService().canWidenPullFilter(db, selectedDevices))
+            return;
+        
+        new AlertDialog.Builder(context)
+            .setTitle(R.string.tf_synchronize_device_records)
+            .setMessage(R.string.tf_synchronize_device_records_msg)
+            .setPositiveButton(R.string.tf_synchronize, new OnClickListener() {
+                public void onClick(DialogInterface dialog, int which) {
+                    Collect.getInstance().getDbService().widenPullFilter(db, selectedDevices);
+                }
+            })
+            .setNegativeButton(R.string.cancel, new OnClickListener() {
+                public void onClick(DialogInterface dialog, int which) {
+                    dialog.cancel();
+                }
+            })
+            .show();
+    }
 }
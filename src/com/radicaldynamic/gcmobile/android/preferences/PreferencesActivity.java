@@ -35,8 +35,15 @@ public class PreferencesActivity extends PreferenceActivity implements OnSharedP
     // Keys to preference settings
     public static final String KEY_AUTOMATIC_SYNCHRONIZATION    = "automatic_synchronization";
     public static final String KEY_COMPLETE_BY_DEFAULT          = "complete_by_default";
+    public static final String KEY_CONTINUOUS_SYNCHRONIZATION   = "continuous_synchronization";
     public static final String KEY_ENCRYPT_SYNCHRONIZATION      = "encrypted_synchronization";
+    public static final String KEY_FILTERED_SYNCHRONIZATION     = "filtered_synchronization";
+    public static final String KEY_QUICK_BROWSING               = "quick_browsing";
     public static final String KEY_SYNCHRONIZATION_INTERVAL     = "automatic_synchronization_interval";
+    public static final String KEY_TRANSFER_CONCURRENCY         = "transfer_concurrency";
+    
+    // Defaults for preference settings that are read outside of this activity
+    public static final String DEFAULT_TRANSFER_CONCURRENCY     = "4";
     
     @Override
     protected void onCreate(Bundle savedInstanceState) 
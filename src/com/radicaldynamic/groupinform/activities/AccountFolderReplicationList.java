@@ -1,6 +1,7 @@
 package com.radicaldynamic.groupinform.activities;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -18,8 +19,11 @@ import android.content.DialogInterface;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.Log;
+import android.text.format.DateUtils;
 import android.util.SparseBooleanArray;
 import android.view.KeyEvent;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.Window;
 import android.widget.AdapterView;
@@ -32,6 +36,9 @@ import com.radicaldynamic.groupinform.R;
 import com.radicaldynamic.groupinform.application.Collect;
 import com.radicaldynamic.groupinform.logic.AccountFolder;
 import com.radicaldynamic.groupinform.logic.InformOnlineState;
+import com.radicaldynamic.groupinform.services.DatabaseService;
+import com.radicaldynamic.groupinform.services.ReplicationMetrics;
+import com.radicaldynamic.groupinform.services.ReplicationScheduler;
 import com.radicaldynamic.groupinform.utilities.FileUtilsExtended;
 import com.radicaldynamic.groupinform.utilities.HttpUtils;
 
@@ -41,6 +48,11 @@ public class AccountFolderReplicationList extends ListActivity
     
     public static final int SAVING_DIALOG = 0;
     
+    private static final int MENU_STATISTICS = 0;
+    private static final int MENU_EXPORT_STATISTICS = 1;
+    
+    private static final String STATISTICS_FILE = "replication_metrics.csv";
+    
     private AlertDialog mAlertDialog;
     
     private ListView mListView;
@@ -87,6 +99,17 @@ public class AccountFolderReplicationList extends ListActivity
         return null;
     }
     
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu)
+    {
+        super.onCreateOptionsMenu(menu);
+        
+        menu.add(0, MENU_STATISTICS, 0, getString(R.string.tf_replication_statistics)).setIcon(R.drawable.ic_menu_info_details);
+        menu.add(0, MENU_EXPORT_STATISTICS, 0, getString(R.string.tf_replication_statistics_export)).setIcon(R.drawable.ic_menu_save);
+        
+        return true;
+    }
+    
     @Override
     public boolean onKeyDown(int keyCode, KeyEvent event)
     {
@@ -100,6 +123,52 @@ public class AccountFolderReplicationList extends ListActivity
 
         return super.onKeyDown(keyCode, event);
     }
+    
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item)
+    {
+        switch (item.getItemId()) {
+        case MENU_STATISTICS:
+            showStatisticsDialog();
+            return true;
+            
+        case MENU_EXPORT_STATISTICS:
+            new ExportStatisticsTask().execute();
+            return true;
+        }
+        
+        return super.onOptionsItemSelected(item);
+    }
+    
+    // Write replication metrics to external storage for debugging
+    private class ExportStatisticsTask extends AsyncTask<Void, Void, String>
+    {
+        @Override
+        protected String doInBackground(Void... nothing)
+        {
+            File file = new File(FileUtilsExtended.EXTERNAL_FILES, STATISTICS_FILE);
+            
+            try {
+                file.getParentFile().mkdirs();
+                Collect.getInstance().getDbService().getReplicationMetrics().export(file);
+            } catch (IOException e) {
+                if (Collect.Log.ERROR) Log.e(Collect.LOGTAG, t + "unable to export replication metrics: " + e.toString());
+                e.printStackTrace();
+                return null;
+            }
+            
+            return file.getAbsolutePath();
+        }
+        
+        @Override
+        protected void onPostExecute(String path)
+        {
+            if (path == null)
+                Toast.makeText(getApplicationContext(), getString(R.string.tf_something_failed, getString(R.string.tf_replication_statistics_export)), Toast.LENGTH_LONG).show();
+            else
+                Toast.makeText(getApplicationContext(), getString(R.string.tf_replication_statistics_exported, path), Toast.LENGTH_LONG).show();
+        }
+    }
 
     /*
      * Refresh the main form browser view as requested by the user
@@ -220,6 +289,51 @@ public class AccountFolderReplicationList extends ListActivity
         }
     }
     
+    /*
+     * Summarize recent replication history of each synchronized folder
+     */
+    private void showStatisticsDialog()
+    {
+        ReplicationMetrics metrics = Collect.getInstance().getDbService().getReplicationMetrics();
+        ReplicationScheduler scheduler = Collect.getInstance().getDbService().getReplicationScheduler();
+        
+        StringBuilder message = new StringBuilder();
+        
+        for (int i = 0; i < mListView.getCount(); i++) {
+            AccountFolder folder = (AccountFolder) mListView.getItemAtPosition(i);
+            
+            ReplicationMetrics.Summary pull = metrics.getSummary(folder.getId(), DatabaseService.REPLICATE_PULL);
+            ReplicationMetrics.Summary push = metrics.getSummary(folder.getId(), DatabaseService.REPLICATE_PUSH);
+            
+            if (pull.replications == 0 && push.replications == 0)
+                continue;
+            
+            long lastSynchronized = scheduler.getLastSynchronized(folder.getId());
+            
+            if (message.length() > 0)
+                message.append("\n\n");
+            
+            message.append(getString(R.string.tf_replication_statistics_summary,
+                    folder.getName(),
+                    lastSynchronized == 0 ? getString(R.string.tf_unavailable) : DateUtils.getRelativeTimeSpanString(lastSynchronized).toString(),
+                    Long.toString(scheduler.getLastDuration(folder.getId())),
+                    pull.replications, pull.failures, pull.docsWritten,
+                    push.replications, push.failures, push.docsWritten));
+        }
+        
+        if (message.length() == 0)
+            message.append(getString(R.string.tf_replication_statistics_none));
+        
+        mAlertDialog = new AlertDialog.Builder(this)
+            .setIcon(R.drawable.ic_dialog_info)
+            .setTitle(getString(R.string.tf_replication_statistics))
+            .setMessage(message.toString())
+            .setPositiveButton(getString(R.string.ok), null)
+            .create();
+        
+        mAlertDialog.show();
+    }
+    
     private void showSaveDialog()
     {
         String[] items = {
@@ -43,6 +43,7 @@ import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.preference.PreferenceManager;
 import android.util.Log;
 import android.view.ContextMenu;
 import android.view.KeyEvent;
@@ -72,12 +73,14 @@ import com.radicaldynamic.gcmobile.android.activities.DataExportActivity;
 import com.radicaldynamic.gcmobile.android.activities.DataImportActivity;
 import com.radicaldynamic.gcmobile.android.build.FieldList;
 import com.radicaldynamic.gcmobile.android.dialogs.FilterByAssignmentDialog;
+import com.radicaldynamic.gcmobile.android.preferences.PreferencesActivity;
 import com.radicaldynamic.groupinform.R;
 import com.radicaldynamic.groupinform.adapters.BrowserLongListAdapter;
 import com.radicaldynamic.groupinform.adapters.BrowserShortListAdapter;
 import com.radicaldynamic.groupinform.application.Collect;
 import com.radicaldynamic.groupinform.documents.FormDefinition;
 import com.radicaldynamic.groupinform.documents.FormInstance;
+import com.radicaldynamic.groupinform.listeners.BrowserLatencyListener;
 import com.radicaldynamic.groupinform.listeners.DefinitionImportListener;
 import com.radicaldynamic.groupinform.listeners.SynchronizeFoldersListener;
 import com.radicaldynamic.groupinform.listeners.ToggleOnlineStateListener;
@@ -181,6 +184,9 @@ public class BrowserActivity extends ListActivity implements DefinitionImportLis
     private ToggleOnlineStateTask mToggleOnlineStateTask;
     private UpdateFolderTask mUpdateFolderTask;
     
+    // Instrumentation hook for list latency (see RefreshViewTask)
+    private static BrowserLatencyListener sLatencyListener = null;
+    
     private Dialog mDialog;
     private String mDialogMessage;              // Custom message consumed by onCreateDialog()
     private ProgressDialog mProgressDialog;
@@ -728,7 +734,7 @@ public class BrowserActivity extends ListActivity implements DefinitionImportLis
             
             try {
                 // Determine if draft or complete instances exist for this definition
-                if (new FormInstanceRepo(Collect.getInstance().getDbService().getDb()).findByFormId(mFormDefinition.getId()).size() > 0) {
+                if (Collect.getInstance().getDbService().getFormInstanceRepo().findByFormId(mFormDefinition.getId()).size() > 0) {
                     removeFormMessage = getString(R.string.tf_remove_form_with_instances_dialog_msg, mFormDefinition.getName());
                 }
             } catch (Exception e) {
@@ -1215,7 +1221,7 @@ public class BrowserActivity extends ListActivity implements DefinitionImportLis
             
             try {
                 // Basic deduplication
-                FormDefinitionRepo formDefinitionRepo = new FormDefinitionRepo(Collect.getInstance().getDbService().getDb(copyToFolderId));
+                FormDefinitionRepo formDefinitionRepo = Collect.getInstance().getDbService().getFormDefinitionRepo(copyToFolderId);
                 List<FormDefinition> definitions = formDefinitionRepo.findByName(copyFormAsName);
                 
                 if (!definitions.isEmpty()) {
@@ -1372,7 +1378,7 @@ public class BrowserActivity extends ListActivity implements DefinitionImportLis
             
             try {
                 // Basic deduplication
-                FormDefinitionRepo repo = new FormDefinitionRepo(Collect.getInstance().getDbService().getDb(Collect.getInstance().getInformOnlineState().getSelectedDatabase()));
+                FormDefinitionRepo repo = Collect.getInstance().getDbService().getFormDefinitionRepo(Collect.getInstance().getInformOnlineState().getSelectedDatabase());
                 List<FormDefinition> definitions = repo.findByName(f.getName());
 
                 if (!definitions.isEmpty()) {
@@ -1458,7 +1464,7 @@ public class BrowserActivity extends ListActivity implements DefinitionImportLis
             String result = "";
             
             try {
-                instanceIds = new FormInstanceRepo(Collect.getInstance().getDbService().getDb()).findByFormId(docId);
+                instanceIds = Collect.getInstance().getDbService().getFormInstanceRepo().findByFormId(docId);
             } catch (Exception e) {
                 if (Collect.Log.ERROR) Log.e(Collect.LOGTAG, t + "unexpected exception " + e.toString());
                 e.printStackTrace();
@@ -1509,7 +1515,7 @@ public class BrowserActivity extends ListActivity implements DefinitionImportLis
             try {
                 formId = (String) params[0];
                 FormInstance.Status status = (FormInstance.Status) params[1];
-                instanceIds = new FormInstanceRepo(Collect.getInstance().getDbService().getDb()).findByFormAndStatus(formId, status);
+                instanceIds = Collect.getInstance().getDbService().getFormInstanceRepo().findByFormAndStatus(formId, status);
                 caughtExceptionInBackground = false;
             } catch (Exception e) {
                 if (Collect.Log.ERROR) Log.e(Collect.LOGTAG, t + "unhandled exception while processing InstanceLoadPathTask.doInBackground(): " + e.toString());
@@ -1548,85 +1554,62 @@ public class BrowserActivity extends ListActivity implements DefinitionImportLis
         }
     }
     
+    public static void setBrowserLatencyListener(BrowserLatencyListener listener)
+    {
+        sLatencyListener = listener;
+    }
+    
     /*
-     * Refresh the main form browser view as requested by the user
+     * Results of a single pass of RefreshViewTask
      */
-    private class RefreshViewTask extends AsyncTask<Void, Integer, Void>
+    private static class RefreshViewResults
     {
-        private HashMap<String, HashMap<String, String>> tallies = new HashMap<String, HashMap<String, String>>();
-                
-        private ArrayList<FormDefinition> definitions = new ArrayList<FormDefinition>();
-        private ArrayList<FormInstance> instances = new ArrayList<FormInstance>();
+        HashMap<String, HashMap<String, String>> tallies = new HashMap<String, HashMap<String, String>>();
+        
+        ArrayList<FormDefinition> definitions = new ArrayList<FormDefinition>();
+        ArrayList<FormInstance> instances = new ArrayList<FormInstance>();
+    }
+    
+    /*
+     * Refresh the main form browser view as requested by the user.  
+     * 
+     * With quick browsing enabled, lists of replicated folders are first shown from whatever the local 
+     * indexes already hold and then shown again once the indexes have been brought up to date (so that 
+     * the user is not left waiting on indexing after a large synchronization).
+     */
+    private class RefreshViewTask extends AsyncTask<Void, RefreshViewResults, Void>
+    {
+        private RefreshViewResults results = new RefreshViewResults();
         
         private FormInstance.Status statusFilter = null;        
         private Bundle filterOptions = null;
         
         private boolean folderOutdated = false;
         private boolean folderUnavailable = false;    
+        
+        private String db;
+        private boolean quickBrowsing = false;
+        private boolean staleResultsShown = false;
+        private long started;
 
         @Override
         protected Void doInBackground(Void... params)
         {
             try {    
-                if (filterOptions == null && statusFilter == null) {
-                    // Search results pulled but nothing to show
-                } else if (filterOptions == null) {
-                    // No search options, we must be using the simple status filter
-                    
-                    // TODO: move to AccountFolderList and activate when a user opens a folder?
-                    Collect.getInstance().getDbService().performHousekeeping(Collect.getInstance().getInformOnlineState().getSelectedDatabase());
-
-                    FormDefinitionRepo repo = new FormDefinitionRepo(Collect.getInstance().getDbService().getDb());                
-                    tallies = repo.getFormsByInstanceStatus(statusFilter);
-
-                    if (statusFilter.equals(FormInstance.Status.any)) {
-                        definitions = (ArrayList<FormDefinition>) repo.getAllActive();
-                    } else {
-                        definitions = (ArrayList<FormDefinition>) repo.getAllActiveByKeys(new ArrayList<Object>(tallies.keySet()));    
-                    }
-
-                    DocumentUtils.sortDefinitionsByName(definitions);
-                } else {
-                    // Use search filter options                    
-                    FormDefinitionRepo definitionRepo = new FormDefinitionRepo(Collect.getInstance().getDbService().getDb()); 
-                    definitions = (ArrayList<FormDefinition>) definitionRepo.getAll();
-
-                    List<String> assignmentParameter = new ArrayList<String>();
-                    FormInstance.Status statusParameter = FormInstance.Status.any;
-                    
-                    switch (filterOptions.getInt(KEY_SEARCH_BY_ASSIGNMENT, 0)) {
-                    case 0:
-                        // Any device
-                        break;
-                    case 1:
-                        // This device
-                        assignmentParameter.add(Collect.getInstance().getInformOnlineState().getDeviceId());
-                        break;
-                    case 2:
-                        // Specific devices
-                        assignmentParameter = filterOptions.getStringArrayList(KEY_SEARCH_BY_ASSIGNMENT_IDS);
-                        break;
-                    }
-                    
-                    switch (filterOptions.getInt(KEY_SEARCH_BY_STATUS, 0)) {
-                    case 0:
-                        // Any status
-                        break;
-                    case 1:
-                        // Complete only
-                        statusParameter = FormInstance.Status.complete; 
-                        break;
-                    case 2:
-                        // Draft only
-                        statusParameter = FormInstance.Status.draft;
-                        break;
-                    }
-                                       
-                    FormInstanceRepo instanceRepo = new FormInstanceRepo(Collect.getInstance().getDbService().getDb());
-                    instances = (ArrayList<FormInstance>) instanceRepo.findByFilterIndex(assignmentParameter, statusParameter);
+                if (filterOptions == null && statusFilter != null) {
+                    // Queues removal of unneeded placeholders (does not hold up the refresh)
+                    Collect.getInstance().getDbService().performHousekeeping(db);
+                }
+                
+                if (quickBrowsing) {
+                    RefreshViewResults staleResults = query(true);
                     
-                    DocumentUtils.sortByDateCreated(instances);
+                    // Nothing may have been indexed yet in which case there is no point showing an empty list
+                    if (!staleResults.definitions.isEmpty() || !staleResults.instances.isEmpty())
+                        publishProgress(staleResults);
                 }
+                
+                results = query(false);
             } catch (ClassCastException e) {
                 // TODO: is there a better way to handle empty lists?
             } catch (DocumentNotFoundException e) {
@@ -1646,6 +1629,72 @@ public class BrowserActivity extends ListActivity implements DefinitionImportLis
 
             return null;             
         }
+        
+        /*
+         * Query the folder for the forms to show (staleOk returns whatever is already indexed without waiting)
+         */
+        private RefreshViewResults query(boolean staleOk)
+        {
+            RefreshViewResults r = new RefreshViewResults();
+            
+            if (filterOptions == null && statusFilter == null) {
+                // Search results pulled but nothing to show
+            } else if (filterOptions == null) {
+                // No search options, we must be using the simple status filter
+                FormDefinitionRepo repo = Collect.getInstance().getDbService().getFormDefinitionRepo(db);                
+                r.tallies = repo.getFormsByInstanceStatus(statusFilter, staleOk);
+
+                if (statusFilter.equals(FormInstance.Status.any)) {
+                    r.definitions = (ArrayList<FormDefinition>) repo.getAllActive(staleOk);
+                } else {
+                    r.definitions = (ArrayList<FormDefinition>) repo.getAllActiveByKeys(new ArrayList<Object>(r.tallies.keySet()), staleOk);    
+                }
+
+                DocumentUtils.sortDefinitionsByName(r.definitions);
+            } else {
+                // Use search filter options                    
+                FormDefinitionRepo definitionRepo = Collect.getInstance().getDbService().getFormDefinitionRepo(db); 
+                r.definitions = (ArrayList<FormDefinition>) definitionRepo.getAll(staleOk);
+
+                List<String> assignmentParameter = new ArrayList<String>();
+                FormInstance.Status statusParameter = FormInstance.Status.any;
+                
+                switch (filterOptions.getInt(KEY_SEARCH_BY_ASSIGNMENT, 0)) {
+                case 0:
+                    // Any device
+                    break;
+                case 1:
+                    // This device
+                    assignmentParameter.add(Collect.getInstance().getInformOnlineState().getDeviceId());
+                    break;
+                case 2:
+                    // Specific devices
+                    assignmentParameter = filterOptions.getStringArrayList(KEY_SEARCH_BY_ASSIGNMENT_IDS);
+                    break;
+                }
+                
+                switch (filterOptions.getInt(KEY_SEARCH_BY_STATUS, 0)) {
+                case 0:
+                    // Any status
+                    break;
+                case 1:
+                    // Complete only
+                    statusParameter = FormInstance.Status.complete; 
+                    break;
+                case 2:
+                    // Draft only
+                    statusParameter = FormInstance.Status.draft;
+                    break;
+                }
+                                   
+                FormInstanceRepo instanceRepo = Collect.getInstance().getDbService().getFormInstanceRepo(db);
+                r.instances = (ArrayList<FormInstance>) instanceRepo.findByFilterIndex(assignmentParameter, statusParameter, staleOk);
+                
+                DocumentUtils.sortByDateCreated(r.instances);
+            }
+            
+            return r;
+        }
 
         @Override
         protected void onPreExecute()
@@ -1653,13 +1702,34 @@ public class BrowserActivity extends ListActivity implements DefinitionImportLis
             setProgressVisibility(true);
             ((Spinner) findViewById(R.id.taskSpinner)).setClickable(false);
             ((Spinner) findViewById(R.id.taskSpinner)).setEnabled(false);
+            
+            started = System.currentTimeMillis();
+            db = Collect.getInstance().getInformOnlineState().getSelectedDatabase();
+            
+            // Stale results are only worth showing if they come from a local index (remote queries would simply be made twice)
+            AccountFolder folder = Collect.getInstance().getInformOnlineState().getAccountFolders().get(db);
+            
+            quickBrowsing = folder != null && folder.isReplicated()
+                && PreferenceManager.getDefaultSharedPreferences(getBaseContext()).getBoolean(PreferencesActivity.KEY_QUICK_BROWSING, true);
+        }
+        
+        @Override
+        protected void onProgressUpdate(RefreshViewResults... staleResults)
+        {
+            if (isFinishing())
+                return;
+            
+            // Keep the title bar progress indicator going while the indexes are brought up to date
+            ((RelativeLayout) findViewById(R.id.progress)).setVisibility(View.GONE);
+            
+            showResults(staleResults[0]);
+            staleResultsShown = true;
+            reportLatency(true);
         }
 
         @Override
         protected void onPostExecute(Void nothing)
         {   
-            boolean noResults = true;
-            
             /*
              * Special hack to ensure that our application doesn't crash if we terminate it
              * before the AsyncTask has finished running.  This is stupid and I don't know
@@ -1679,7 +1749,6 @@ public class BrowserActivity extends ListActivity implements DefinitionImportLis
             ((Spinner) findViewById(R.id.taskSpinner)).setEnabled(true);
 
             if (folderUnavailable) {
-                String db = Collect.getInstance().getInformOnlineState().getSelectedDatabase();
                 boolean isReplicated = Collect.getInstance().getInformOnlineState().getAccountFolders().get(db).isReplicated();
                 
                 if (folderOutdated && isReplicated) {
@@ -1689,22 +1758,8 @@ public class BrowserActivity extends ListActivity implements DefinitionImportLis
                     showDialog(DIALOG_FOLDER_UNAVAILABLE);
                 }
             } else {
-                if (filterOptions == null) {
-                    noResults = definitions.isEmpty();
-                    
-                    BrowserShortListAdapter adapter = new BrowserShortListAdapter(BrowserActivity.this, R.layout.browser_list_item, definitions, tallies, (Spinner) findViewById(R.id.taskSpinner));
-                    setListAdapter(adapter);
-                } else {
-                    noResults = instances.isEmpty();
-                    
-                    BrowserLongListAdapter adapter = new BrowserLongListAdapter(BrowserActivity.this, R.layout.browser_list_item, instances, definitions);
-                    setListAdapter(adapter);
-                }
-                
-                if (noResults) {
-                    TextView nothingToDisplay = (TextView) findViewById(R.id.nothingToDisplay);
-                    nothingToDisplay.setVisibility(View.VISIBLE);
-                }
+                showResults(results);
+                reportLatency(false);
             }
 
             setProgressVisibility(false);
@@ -1721,6 +1776,42 @@ public class BrowserActivity extends ListActivity implements DefinitionImportLis
         {
             filterOptions = b;
         }
+        
+        private void showResults(RefreshViewResults r)
+        {
+            boolean noResults = true;
+            
+            // Keep the user's place when replacing stale results
+            int position = staleResultsShown ? getListView().getFirstVisiblePosition() : 0;
+            
+            if (filterOptions == null) {
+                noResults = r.definitions.isEmpty();
+                
+                BrowserShortListAdapter adapter = new BrowserShortListAdapter(BrowserActivity.this, R.layout.browser_list_item, r.definitions, r.tallies, (Spinner) findViewById(R.id.taskSpinner));
+                setListAdapter(adapter);
+            } else {
+                noResults = r.instances.isEmpty();
+                
+                BrowserLongListAdapter adapter = new BrowserLongListAdapter(BrowserActivity.this, R.layout.browser_list_item, r.instances, r.definitions);
+                setListAdapter(adapter);
+            }
+            
+            if (position > 0)
+                getListView().setSelection(position);
+            
+            TextView nothingToDisplay = (TextView) findViewById(R.id.nothingToDisplay);
+            nothingToDisplay.setVisibility(noResults ? View.VISIBLE : View.INVISIBLE);
+        }
+        
+        private void reportLatency(boolean stale)
+        {
+            long latency = System.currentTimeMillis() - started;
+            
+            if (Collect.Log.DEBUG) Log.d(Collect.LOGTAG, t + (stale ? "stale" : "current") + " results for " + db + " shown after " + latency + " ms");
+            
+            if (sLatencyListener != null)
+                sLatencyListener.resultsShown(db, stale, latency);
+        }
     }
     
     private class RemoveDefinitionTask extends AsyncTask<Object, Void, Void>
@@ -1813,7 +1904,7 @@ public class BrowserActivity extends ListActivity implements DefinitionImportLis
             
             try {
                 // Basic deduplication
-                FormDefinitionRepo formDefinitionRepo = new FormDefinitionRepo(Collect.getInstance().getDbService().getDb());
+                FormDefinitionRepo formDefinitionRepo = Collect.getInstance().getDbService().getFormDefinitionRepo();
                 List<FormDefinition> definitions = formDefinitionRepo.findByName(newName);
                 
                 if (!definitions.isEmpty()) {
@@ -1900,7 +1991,7 @@ public class BrowserActivity extends ListActivity implements DefinitionImportLis
         protected Void doInBackground(Void... nothing)
         {
             try {
-                status = Collect.getInstance().getDbService().replicate(folder.getId(), DatabaseService.REPLICATE_PULL);
+                status = Collect.getInstance().getDbService().getReplicationScheduler().schedule(folder.getId(), true, false, true).get().get(DatabaseService.REPLICATE_PULL);
             } catch (Exception e) {
                 if (Collect.Log.ERROR) Log.e(Collect.LOGTAG, t + "unable to replicate during UpdateFolderTask: " + e.toString());
                 e.printStackTrace();
@@ -2170,7 +2261,7 @@ public class BrowserActivity extends ListActivity implements DefinitionImportLis
         Collect.getInstance().getFormBuilderState().setInstance(fr.getInstance());
         Collect.getInstance().getFormBuilderState().setTranslations(fr.getTranslations());
         
-        return FormWriter.writeXml(newName, fr.getInstanceRoot(), fr.getInstanceRootId());
+        return new FormWriter().writeXml(newName, fr.getInstanceRoot(), fr.getInstanceRootId());
     }
     
     // Toggle progress spinner in custom title bar
@@ -216,7 +216,7 @@ public class InstanceUploaderActivity extends Activity implements InstanceUpload
         
 
         try {
-            FormDefinitionRepo repo = new FormDefinitionRepo(Collect.getInstance().getDbService().getDb());
+            FormDefinitionRepo repo = Collect.getInstance().getDbService().getFormDefinitionRepo();
             ArrayList<FormDefinition> definitions = (ArrayList<FormDefinition>) repo.getAllActiveByKeys(new ArrayList<Object>(mUploadBundle.keySet()));
             DocumentUtils.sortDefinitionsByName(definitions);
 
@@ -46,7 +46,6 @@ import com.radicaldynamic.groupinform.R;
 import com.radicaldynamic.groupinform.adapters.UploaderListAdapter;
 import com.radicaldynamic.groupinform.application.Collect;
 import com.radicaldynamic.groupinform.documents.FormDefinition;
-import com.radicaldynamic.groupinform.repositories.FormDefinitionRepo;
 import com.radicaldynamic.groupinform.utilities.DocumentUtils;
 
 /**
@@ -402,10 +401,10 @@ public class InstanceUploaderList extends ListActivity {
         protected Void doInBackground(Void... nothing)
         {
             try {
-                mInstances = new FormDefinitionRepo(Collect.getInstance().getDbService().getDb()).getByAggregateReadiness();
+                mInstances = Collect.getInstance().getDbService().getAggregateReadinessIndex().getInstances();
                 
                 if (!mInstances.isEmpty()) {                
-                    documents = (ArrayList<FormDefinition>) new FormDefinitionRepo(Collect.getInstance().getDbService().getDb()).getAllActiveByKeys(new ArrayList<Object>(mInstances.keySet()));            
+                    documents = (ArrayList<FormDefinition>) Collect.getInstance().getDbService().getFormDefinitionRepo().getAllActiveByKeys(new ArrayList<Object>(mInstances.keySet()));            
                     DocumentUtils.sortDefinitionsByName(documents);
                 }
             } catch (DbAccessException e) {
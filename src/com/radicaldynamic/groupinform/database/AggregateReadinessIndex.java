@@ -0,0 +1,171 @@
+package com.radicaldynamic.groupinform.database;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.codehaus.jackson.JsonNode;
+import org.ektorp.CouchDbConnector;
+import org.ektorp.DbInfo;
+import org.ektorp.changes.ChangesCommand;
+import org.ektorp.changes.DocumentChange;
+
+import android.util.Log;
+
+import com.radicaldynamic.groupinform.application.Collect;
+import com.radicaldynamic.groupinform.documents.FormInstance;
+import com.radicaldynamic.groupinform.logic.ODKInstanceAttributes;
+import com.radicaldynamic.groupinform.repositories.FormDefinitionRepo;
+
+/*
+ * Instances of each form that are ready to be sent to ODK Aggregate (complete and not yet uploaded, the same as
+ * the byAggregateReadiness view).  The index is built from the view once and then brought up to date from the
+ * _changes feed of the database, so only documents that changed since the last update are looked at.
+ */
+public class AggregateReadinessIndex
+{
+    private static final String t = "AggregateReadinessIndex: ";
+
+    // Sequence number of the last change applied to the index (-1 until it has been built)
+    private int mLastSequence = -1;
+
+    // Start time reported for the database when the index was built (changes if the database is recreated)
+    private long mInstanceStartTime = -1;
+
+    // Form ID of each ready instance and ready instance IDs for each form (in the order that they became ready)
+    private Map<String, String> mForms = new HashMap<String, String>();
+    private Map<String, Set<String>> mInstances = new HashMap<String, Set<String>>();
+
+    /*
+     * Apply changes made to the database since the last update (building the index first if need be)
+     */
+    public synchronized void update(CouchDbConnector db, FormDefinitionRepo repo)
+    {
+        final String tt = t + "update(): ";
+
+        long started = System.currentTimeMillis();
+        DbInfo info = db.getDbInfo();
+        int sequence = info.getUpdateSeq();
+
+        // The database has been recreated since (e.g., removed and replicated again) or the server has restarted
+        if (sequence < mLastSequence || info.getInstanceStartTime() != mInstanceStartTime)
+            mLastSequence = -1;
+
+        if (mLastSequence == -1) {
+            // Changes made while the view is read are applied again below (which is harmless)
+            mForms.clear();
+            mInstances.clear();
+
+            for (Map.Entry<String, List<String>> form : repo.getByAggregateReadiness().entrySet()) {
+                for (String id : form.getValue())
+                    add(form.getKey(), id);
+            }
+
+            mLastSequence = sequence;
+            mInstanceStartTime = info.getInstanceStartTime();
+
+            if (Collect.Log.DEBUG) Log.d(Collect.LOGTAG, tt + "built from view with " + mForms.size() + " instances in " + (System.currentTimeMillis() - started) + " ms");
+        }
+
+        if (sequence == mLastSequence)
+            return;
+
+        List<DocumentChange> changes = db.changes(new ChangesCommand.Builder().since(mLastSequence).includeDocs(true).build());
+
+        for (DocumentChange change : changes) {
+            String formId = change.isDeleted() ? null : getReadyFormId(change.getDocAsNode());
+
+            if (formId == null)
+                remove(change.getId());
+            else
+                add(formId, change.getId());
+
+            mLastSequence = Math.max(mLastSequence, change.getSequence());
+        }
+
+        if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, tt + "applied " + changes.size() + " changes in " + (System.currentTimeMillis() - started) + " ms");
+    }
+
+    /*
+     * Ready instance IDs keyed by form ID (a copy that may be changed by the caller)
+     */
+    public synchronized Map<String, List<String>> getInstances()
+    {
+        Map<String, List<String>> instances = new HashMap<String, List<String>>();
+
+        for (Map.Entry<String, Set<String>> form : mInstances.entrySet())
+            instances.put(form.getKey(), new ArrayList<String>(form.getValue()));
+
+        return instances;
+    }
+
+    /*
+     * Number of ready instances of each form
+     */
+    public synchronized Map<String, Integer> getCounts()
+    {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+
+        for (Map.Entry<String, Set<String>> form : mInstances.entrySet())
+            counts.put(form.getKey(), form.getValue().size());
+
+        return counts;
+    }
+
+    /*
+     * Form ID of a document if it is an instance that is ready to be sent, null otherwise
+     */
+    private static String getReadyFormId(JsonNode doc)
+    {
+        if (doc == null || !"instance".equals(doc.path("type").getTextValue()))
+            return null;
+
+        if (!FormInstance.Status.complete.toString().equals(doc.path("status").getTextValue()))
+            return null;
+
+        if (ODKInstanceAttributes.UploadStatus.complete.toString().equals(doc.path("odk").path("uploadStatus").getTextValue()))
+            return null;
+
+        return doc.path("formId").getTextValue();
+    }
+
+    private void add(String formId, String id)
+    {
+        String previous = mForms.put(id, formId);
+
+        if (previous != null && !previous.equals(formId))
+            removeFromForm(previous, id);
+
+        Set<String> ids = mInstances.get(formId);
+
+        if (ids == null) {
+            ids = new LinkedHashSet<String>();
+            mInstances.put(formId, ids);
+        }
+
+        ids.add(id);
+    }
+
+    private void remove(String id)
+    {
+        String formId = mForms.remove(id);
+
+        if (formId != null)
+            removeFromForm(formId, id);
+    }
+
+    private void removeFromForm(String formId, String id)
+    {
+        Set<String> ids = mInstances.get(formId);
+
+        if (ids != null) {
+            ids.remove(id);
+
+            if (ids.isEmpty())
+                mInstances.remove(formId);
+        }
+    }
+}
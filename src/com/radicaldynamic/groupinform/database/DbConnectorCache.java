@@ -0,0 +1,119 @@
+package com.radicaldynamic.groupinform.database;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.ektorp.CouchDbConnector;
+
+/*
+ * Least recently used cache of database connectors so that working across several folders does not
+ * mean reconnecting every time the folder changes.  One entry (usually the connector of the folder that
+ * the user is looking at) can be protected from eviction.
+ *
+ * Evicted connectors remain usable by anyone still holding them; they are simply no longer handed out.
+ * Anything kept alongside a connector should be released when the listener is told it has been removed.
+ */
+public class DbConnectorCache
+{
+    /*
+     * Told about connectors that are no longer handed out (evicted, replaced or removed) so that
+     * anything kept for them can be released
+     */
+    public interface RemovalListener
+    {
+        void connectorRemoved(String key);
+    }
+
+    private int mCapacity;
+    private RemovalListener mListener;
+
+    // Access ordered: least recently used first
+    private LinkedHashMap<String, CouchDbConnector> mConnectors = new LinkedHashMap<String, CouchDbConnector>(16, 0.75f, true);
+
+    public DbConnectorCache(int capacity, RemovalListener listener)
+    {
+        mCapacity = capacity;
+        mListener = listener;
+    }
+
+    public synchronized CouchDbConnector get(String key)
+    {
+        return mConnectors.get(key);
+    }
+
+    /*
+     * Add a connector, evicting the least recently used connectors (other than the one that is kept) if the cache is full
+     */
+    public void put(String key, CouchDbConnector connector, String keep)
+    {
+        List<String> removed = new ArrayList<String>();
+
+        synchronized (this) {
+            CouchDbConnector previous = mConnectors.put(key, connector);
+
+            if (previous != null && previous != connector)
+                removed.add(key);
+
+            Iterator<Map.Entry<String, CouchDbConnector>> it = mConnectors.entrySet().iterator();
+
+            while (mConnectors.size() > mCapacity && it.hasNext()) {
+                String eldest = it.next().getKey();
+
+                if (!eldest.equals(key) && !eldest.equals(keep)) {
+                    it.remove();
+                    removed.add(eldest);
+                }
+            }
+        }
+
+        notifyRemoved(removed);
+    }
+
+    public void remove(String key)
+    {
+        List<String> removed = new ArrayList<String>();
+
+        synchronized (this) {
+            if (mConnectors.remove(key) != null)
+                removed.add(key);
+        }
+
+        notifyRemoved(removed);
+    }
+
+    /*
+     * Remove all connectors with keys starting with a prefix (e.g., those for a server that has been reconnected)
+     */
+    public void removeAll(String prefix)
+    {
+        List<String> removed = new ArrayList<String>();
+
+        synchronized (this) {
+            Iterator<String> it = mConnectors.keySet().iterator();
+
+            while (it.hasNext()) {
+                String key = it.next();
+
+                if (key.startsWith(prefix)) {
+                    it.remove();
+                    removed.add(key);
+                }
+            }
+        }
+
+        notifyRemoved(removed);
+    }
+
+    // Listeners are called without holding the cache lock so that they may use the cache themselves
+    private void notifyRemoved(List<String> keys)
+    {
+        if (mListener == null)
+            return;
+
+        for (String key : keys)
+            mListener.connectorRemoved(key);
+    }
+}
@@ -1,6 +1,10 @@
 package com.radicaldynamic.groupinform.database;
 
+import java.util.Collection;
+import java.util.List;
+
 import org.ektorp.CouchDbInstance;
+import org.ektorp.DocumentOperationResult;
 import org.ektorp.impl.StdCouchDbConnector;
 
 import com.radicaldynamic.groupinform.application.Collect;
@@ -32,6 +36,41 @@ public class InformCouchDbConnector extends StdCouchDbConnector
         super.create(o);
     }
     
+    /*
+     * Documents submitted in bulk receive the same metadata they would have received
+     * through create() or update() (depending on whether they have been saved before)
+     */
+    @Override
+    public List<DocumentOperationResult> executeBulk(Collection<?> objects)
+    {
+        String deviceId = null;
+        
+        try {
+            deviceId = Collect.getInstance().getInformOnlineState().getDeviceId();
+        } catch (Exception e) {
+            // Is it worth logging this?
+        }
+        
+        for (Object o : objects) {
+            if (!(o instanceof Generic))
+                continue;
+            
+            Generic g = (Generic) o;
+            
+            if (g.getRevision() == null) {
+                g.setCreatedBy(deviceId);
+                
+                if (g.getDateCreated() == null)
+                    g.setDateCreated(Generic.generateTimestamp());
+            } else {
+                g.setUpdatedBy(deviceId);
+                g.setDateUpdated(Generic.generateTimestamp());
+            }
+        }
+        
+        return super.executeBulk(objects);
+    }
+    
     @Override
     public String delete(Object o)
     {
@@ -0,0 +1,11 @@
+package com.radicaldynamic.groupinform.listeners;
+
+/*
+ * Instrumentation hook for measuring how long the form browser takes to show a list after it is asked to
+ * refresh.  With quick browsing a list may be shown twice: first from whatever was already indexed (stale)
+ * and then again once the indexes are up to date.
+ */
+public interface BrowserLatencyListener
+{
+    void resultsShown(String db, boolean stale, long latency);
+}
@@ -23,8 +23,7 @@ import android.os.Bundle;
 public interface DataImportListener 
 {
     public static final int MODE_PREVIEW = 0;               // Read in a limited number of records
-    public static final int MODE_VERIFY = 1;                // Test the file to ensure that certain values are as they should be
-    public static final int MODE_IMPORT = 2;                // Perform the full import
+    public static final int MODE_IMPORT = 2;                // Verify and perform the full import in a single pass
     
     public static final String SUCCESSFUL = "successful";   // Key for whether the synchronization was successful
     public static final String MESSAGE = "message";         // Error message/status message returned from DataImportTask 
@@ -7,6 +7,7 @@ import java.util.List;
 import java.util.Map;
 
 import org.ektorp.CouchDbConnector;
+import org.ektorp.DocumentNotFoundException;
 import org.ektorp.ViewResult;
 import org.ektorp.ViewResult.Row;
 import org.ektorp.support.CouchDbRepositorySupport;
@@ -25,10 +26,16 @@ public class FormDefinitionRepo extends CouchDbRepositorySupport<FormDefinition>
 {
     private final static String t = "FormDefinitionRepo: ";
     
+    // Versioned so that changes to the views are picked up as a new design document
+    public static final String DESIGN_DOCUMENT = "FormDefinitionRepoR2";
+    
+    /*
+     * Use DatabaseService.getFormDefinitionRepo() rather than constructing repositories directly:
+     * repositories are cached per database and the design document is verified there
+     */
     public FormDefinitionRepo(CouchDbConnector db) 
     {
-        super(FormDefinition.class, db, "FormDefinitionRepoR2");
-        initStandardDesignDocument();
+        super(FormDefinition.class, db, DESIGN_DOCUMENT);
     }
     
     // For deuplication (when copying)
@@ -43,14 +50,41 @@ public class FormDefinitionRepo extends CouchDbRepositorySupport<FormDefinition>
         return queryView("byXmlHash", xmlHash);
     }
 
+    public List<FormDefinition> getAll(boolean staleOk)
+    {
+        if (!staleOk)
+            return getAll();
+        
+        try {
+            return db.queryView(createQuery("all").includeDocs(true).staleOk(staleOk), FormDefinition.class);
+        } catch (DocumentNotFoundException e) {
+            // Without an all view getAll() reads _all_docs (which has no index to wait for)
+            return getAll();
+        }
+    }
+    
     public List<FormDefinition> getAllActive()
     {        
-        return db.queryView(createQuery("allActive").includeDocs(true), FormDefinition.class);
+        return getAllActive(false);
+    }
+    
+    /*
+     * Queries that accept staleOk return whatever is already indexed without waiting for the index to be brought 
+     * up to date when it is true (results may not reflect recent changes)
+     */
+    public List<FormDefinition> getAllActive(boolean staleOk)
+    {        
+        return db.queryView(createQuery("allActive").includeDocs(true).staleOk(staleOk), FormDefinition.class);
     }
     
     public List<FormDefinition> getAllActiveByKeys(Collection<Object> keys) 
     {
-        return db.queryView(createQuery("allActive").keys(keys).includeDocs(true), FormDefinition.class);
+        return getAllActiveByKeys(keys, false);
+    }
+    
+    public List<FormDefinition> getAllActiveByKeys(Collection<Object> keys, boolean staleOk) 
+    {
+        return db.queryView(createQuery("allActive").keys(keys).includeDocs(true).staleOk(staleOk), FormDefinition.class);
     }
     
     public HashMap<String, JSONObject> getAllPlaceholders()
@@ -71,9 +105,14 @@ public class FormDefinitionRepo extends CouchDbRepositorySupport<FormDefinition>
     }
     
     public HashMap<String, HashMap<String, String>> getFormsByInstanceStatus(FormInstance.Status status) 
+    {
+        return getFormsByInstanceStatus(status, false);
+    }
+    
+    public HashMap<String, HashMap<String, String>> getFormsByInstanceStatus(FormInstance.Status status, boolean staleOk) 
     {
         HashMap<String, HashMap<String, String>> results = new HashMap<String, HashMap<String, String>>();
-        ViewResult r = db.queryView(createQuery("byInstanceStatus").group(true));        
+        ViewResult r = db.queryView(createQuery("byInstanceStatus").group(true).staleOk(staleOk));        
         List<Row> rows = r.getRows();
         
         for(Row record : rows) {
@@ -100,6 +139,9 @@ public class FormDefinitionRepo extends CouchDbRepositorySupport<FormDefinition>
         return results;
     }
     
+    /*
+     * Reads the whole view: use DatabaseService.getAggregateReadinessIndex() instead (it only reads what changed)
+     */
     public Map<String, List<String>> getByAggregateReadiness() 
     {
         Map<String, List<String>> results = new HashMap<String, List<String>>();
@@ -108,13 +150,14 @@ public class FormDefinitionRepo extends CouchDbRepositorySupport<FormDefinition>
         List<Row> rows = r.getRows();
         
         for(Row record : rows) {
-            List<String> values = new ArrayList<String>();
+            List<String> values = results.get(record.getKey());
             
-            if (results.containsKey(record.getKey()))
-                values = results.get(record.getKey());                
+            if (values == null) {
+                values = new ArrayList<String>();
+                results.put(record.getKey(), values);
+            }
 
             values.add(record.getValue());
-            results.put(record.getKey(), values);
         }        
         
         return results;
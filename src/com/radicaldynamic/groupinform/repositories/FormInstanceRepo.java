@@ -22,10 +22,16 @@ public class FormInstanceRepo extends CouchDbRepositorySupport<FormInstance>
 {
     private final static String t = "FormInstanceRepo: ";
     
+    // Versioned so that changes to the views are picked up as a new design document
+    public static final String DESIGN_DOCUMENT = "FormInstanceRepoR3";
+    
+    /*
+     * Use DatabaseService.getFormInstanceRepo() rather than constructing repositories directly:
+     * repositories are cached per database and the design document is verified there
+     */
     public FormInstanceRepo(CouchDbConnector db) 
     {
-        super(FormInstance.class, db, "FormInstanceRepoR3");
-        initStandardDesignDocument();
+        super(FormInstance.class, db, DESIGN_DOCUMENT);
     }
     
     public HashMap<String, JSONObject> getAllPlaceholders()
@@ -51,25 +57,34 @@ public class FormInstanceRepo extends CouchDbRepositorySupport<FormInstance>
     }
     
     public List<FormInstance> findByFilterIndex(List<String> assignedTo, FormInstance.Status status)
+    {
+        return findByFilterIndex(assignedTo, status, false);
+    }
+    
+    /*
+     * When staleOk is true whatever is already indexed is returned without waiting for the index to be brought 
+     * up to date (results may not reflect recent changes)
+     */
+    public List<FormInstance> findByFilterIndex(List<String> assignedTo, FormInstance.Status status, boolean staleOk)
     {
         if (status == FormInstance.Status.any && assignedTo.isEmpty()) {
-            return db.queryView(createQuery("allActive").includeDocs(true), FormInstance.class);
+            return db.queryView(createQuery("allActive").includeDocs(true).staleOk(staleOk), FormInstance.class);
         }
         
         if (!status.equals(FormInstance.Status.any) && assignedTo.isEmpty()) {
             ComplexKey startKey = ComplexKey.of(status.toString());
             ComplexKey endKey = ComplexKey.of(status.toString(), ComplexKey.emptyObject());
-            return db.queryView(createQuery("byFilterIndex").startKey(startKey).endKey(endKey).includeDocs(true), FormInstance.class);
+            return db.queryView(createQuery("byFilterIndex").startKey(startKey).endKey(endKey).includeDocs(true).staleOk(staleOk), FormInstance.class);
         }
         
         if (!status.equals(FormInstance.Status.any) && assignedTo.size() == 1) {
             ComplexKey startKey = ComplexKey.of(status.toString(), assignedTo.get(0));
             ComplexKey endKey = ComplexKey.of(status.toString(), assignedTo.get(0), ComplexKey.emptyObject());
-            return db.queryView(createQuery("byFilterIndex").startKey(startKey).endKey(endKey).includeDocs(true), FormInstance.class);
+            return db.queryView(createQuery("byFilterIndex").startKey(startKey).endKey(endKey).includeDocs(true).staleOk(staleOk), FormInstance.class);
         }
         
         if (assignedTo.size() > 0) {
-            return db.queryView(createQuery("byFilterIndex").keys(assignedTo).includeDocs(true), FormInstance.class);
+            return db.queryView(createQuery("byFilterIndex").keys(assignedTo).includeDocs(true).staleOk(staleOk), FormInstance.class);
         }
 
         return new ArrayList<FormInstance>();
@@ -18,24 +18,54 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
+import org.ektorp.BulkDeleteDocument;
 import org.ektorp.CouchDbConnector;
 import org.ektorp.CouchDbInstance;
 import org.ektorp.DbAccessException;
+import org.ektorp.DbInfo;
+import org.ektorp.DesignDocInfo;
+import org.ektorp.DocumentNotFoundException;
+import org.ektorp.DocumentOperationResult;
 import org.ektorp.ReplicationCommand;
 import org.ektorp.ReplicationStatus;
+import org.ektorp.ViewQuery;
 import org.ektorp.http.HttpClient;
+import org.ektorp.http.HttpResponse;
 import org.ektorp.http.StdHttpClient;
-import org.ektorp.impl.StdCouchDbConnector;
 import org.ektorp.impl.StdCouchDbInstance;
+import org.ektorp.support.CouchDbRepositorySupport;
+import org.ektorp.support.DesignDocument;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.json.JSONArray;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 import android.app.Service;
 import android.content.Intent;
@@ -49,11 +79,14 @@ import android.util.Log;
 import com.radicaldynamic.gcmobile.android.preferences.PreferencesActivity;
 import com.radicaldynamic.groupinform.R;
 import com.radicaldynamic.groupinform.application.Collect;
+import com.radicaldynamic.groupinform.database.AggregateReadinessIndex;
+import com.radicaldynamic.groupinform.database.DbConnectorCache;
 import com.radicaldynamic.groupinform.database.InformCouchDbConnector;
 import com.radicaldynamic.groupinform.documents.Generic;
 import com.radicaldynamic.groupinform.logic.AccountFolder;
 import com.radicaldynamic.groupinform.repositories.FormDefinitionRepo;
 import com.radicaldynamic.groupinform.repositories.FormInstanceRepo;
+import com.radicaldynamic.groupinform.utilities.StringUtils;
 
 /**
  * Database abstraction layer for CouchDB, based on Ektorp.
@@ -75,17 +108,102 @@ public class DatabaseService extends Service {
     // 24 hours (represented as milliseconds)
     private static final long TIME_24_HOURS = 86400000;
     
+    // Number of placeholders deleted per _bulk_docs request
+    private static final int PLACEHOLDER_BATCH_SIZE = 100;
+    
+    // Fraction of a local database or view index file that may be unused before it is compacted
+    private static final double COMPACTION_THRESHOLD = 0.5;
+    
+    // Files smaller than this are not worth compacting (bytes)
+    private static final long COMPACTION_MIN_SIZE = 1024 * 1024;
+    
+    /*
+     * One view of each design document that browsing relies on.  CouchDB builds all of the views in a design
+     * document together so querying one of them is enough to bring the others up to date.
+     */
+    private static final String [][] WARMED_VIEWS = {
+        { FormDefinitionRepo.DESIGN_DOCUMENT, "byInstanceStatus" },
+        { FormInstanceRepo.DESIGN_DOCUMENT, "byFilterIndex" }
+    };
+    
+    // Number of database connectors kept open (see DbConnectorCache)
+    private static final int MAX_OPEN_CONNECTORS = 8;
+    
+    // Prefixes that distinguish cached connectors to local and remote copies of a database
+    private static final String CONNECTOR_LOCAL = "local/";
+    private static final String CONNECTOR_REMOTE = "remote/";
+    
+    // Connections to each server in addition to one per concurrent transfer (replications hold theirs until complete)
+    private static final int CONNECTION_HEADROOM = 4;
+    
+    // Prefixes for per-database replication checkpoints persisted to the shared preferences
+    private static final String CHECKPOINT_LAST_REPLICATION = "replication_last_";
+    private static final String CHECKPOINT_REPLICATION_HOST = "replication_host_";
+    private static final String CHECKPOINT_PULL_FILTER = "replication_filter_";
+    
+    /*
+     * Filter used to only pull form definitions and the instances created by or assigned to a set of devices 
+     * (passed as a comma separated list in the devices query parameter).  Deletions are always pulled so 
+     * that records removed elsewhere are also removed here.
+     */
+    private static final String PULL_FILTER_DESIGN_DOC = "ReplicationFilterR1";
+    private static final String PULL_FILTER_NAME = "devices";
+    private static final String PULL_FILTER_FUNCTION = 
+        "function(doc, req) {" +
+        "  if (doc._deleted || doc.type != 'instance') return true;" +
+        "  var devices = (req.query.devices || '').split(',');" +
+        "  for (var i = 0; i < devices.length; i++) {" +
+        "    if (doc.createdBy == devices[i]) return true;" +
+        "    if (doc.assignedTo && doc.assignedTo.indexOf(devices[i]) != -1) return true;" +
+        "  }" +
+        "  return false;" +
+        "}";
+    
     // Values returned by the Couch service -- we can't connect to the localhost until these are known
     private String mLocalHost = null;
     private int mLocalPort = 0;
     
     private HttpClient mLocalHttpClient = null;
+    private ClientConnectionManager mLocalConnectionManager = null;
     private CouchDbInstance mLocalDbInstance = null;
-    private CouchDbConnector mLocalDbConnector = null;
+    
+    // Names of databases on the local server (null until listed, kept up to date as databases are created and deleted)
+    private Set<String> mLocalDatabases = null;
     
     private HttpClient mRemoteHttpClient = null;
+    private ClientConnectionManager mRemoteConnectionManager = null;
     private CouchDbInstance mRemoteDbInstance = null;
-    private CouchDbConnector mRemoteDbConnector = null;
+    
+    // Connectors to local and remote databases that have been opened recently
+    private DbConnectorCache mDbConnectors = new DbConnectorCache(MAX_OPEN_CONNECTORS, new DbConnectorCache.RemovalListener() {
+        public void connectorRemoved(String key)
+        {
+            // Repositories hold on to their connector so they must go with it
+            synchronized (mFormDefinitionRepos) {
+                mFormDefinitionRepos.remove(key);
+            }
+            
+            synchronized (mFormInstanceRepos) {
+                mFormInstanceRepos.remove(key);
+            }
+        }
+    });
+    
+    // Repositories live as long as the connector that they were created for (keyed by connector key)
+    private Map<String, FormDefinitionRepo> mFormDefinitionRepos = new HashMap<String, FormDefinitionRepo>();
+    private Map<String, FormInstanceRepo> mFormInstanceRepos = new HashMap<String, FormInstanceRepo>();
+    
+    // Indexes of instances ready to be sent to ODK Aggregate (keyed by connector key)
+    private Map<String, AggregateReadinessIndex> mReadinessIndexes = new ConcurrentHashMap<String, AggregateReadinessIndex>();
+    
+    // Revision of each design document when it was last verified (keyed by connector key and design document)
+    private Map<String, String> mDesignDocumentRevisions = new ConcurrentHashMap<String, String>();
+    
+    // Update sequence of each local database when it was last checked for changes (see hasLocalDbChanged())
+    private Map<String, Integer> mLocalUpdateSequences = new ConcurrentHashMap<String, Integer>();
+    
+    // Design documents that must be checked for a new revision (replication may have brought one in)
+    private Set<String> mDesignDocumentsToRecheck = Collections.synchronizedSet(new HashSet<String>());
     
     private boolean mInit = false;
     
@@ -99,10 +217,34 @@ public class DatabaseService extends Service {
     private ConditionVariable mCondition;
     
     // Hash of database-to-last cleanup timestamp (used for controlled purging databases of placeholders)
-    private Map<String, Long> mDbLastCleanup = new HashMap<String, Long>();
+    private Map<String, Long> mDbLastCleanup = new ConcurrentHashMap<String, Long>();
+    
+    // Local databases with maintenance waiting to run and those that need old view indexes removed
+    private Set<String> mMaintenanceQueued = Collections.synchronizedSet(new HashSet<String>());
+    private Set<String> mViewCleanupNeeded = Collections.synchronizedSet(new HashSet<String>());
+    
+    // Placeholder cleanup and database maintenance run here so that it never holds up whoever asked for it
+    private ExecutorService mHousekeepingExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r)
+        {
+            Thread thread = new Thread(r, "DatabaseService housekeeping");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+    
+    // Continuous replications started by this service (keyed by database and replication mode)
+    private Map<String, ReplicationCommand> mContinuousReplications = new ConcurrentHashMap<String, ReplicationCommand>();
     
-    // Hash of database-to-last replication timestamp
-    private Map<String, Long> mDbLastReplication = new HashMap<String, Long>();
+    // Replication of a database is serialized on its lock (different databases replicate concurrently)
+    private ConcurrentHashMap<String, Object> mReplicationLocks = new ConcurrentHashMap<String, Object>();
+    
+    private ReplicationScheduler mReplicationScheduler = new ReplicationScheduler(this);
+    private ReplicationMetrics mReplicationMetrics = new ReplicationMetrics();
+    private UploadQueue mUploadQueue = new UploadQueue();
+    
+    // Databases known to have the pull filter installed on the server (checked once per session)
+    private Set<String> mPullFilterInstalled = Collections.synchronizedSet(new HashSet<String>());
     
     private Runnable mTask = new Runnable() 
     {
@@ -167,12 +309,16 @@ public class DatabaseService extends Service {
         Thread persistentConnectionThread = new Thread(null, mTask, "DatabaseService");        
         mCondition = new ConditionVariable(false);
         persistentConnectionThread.start();
+        mUploadQueue.start();
     }
     
     @Override
     public void onDestroy() 
     {   
         mCondition.open();
+        mReplicationScheduler.shutdown();
+        mHousekeepingExecutor.shutdownNow();
+        mUploadQueue.shutdown();
     }
 
     @Override
@@ -212,29 +358,147 @@ public class DatabaseService extends Service {
         final String tt = t + "getDb(): ";
         
         AccountFolder folder = Collect.getInstance().getInformOnlineState().getAccountFolders().get(db);
-        CouchDbConnector dbConnector;
         
-        if (folder.isReplicated()) {
-            // Local database
-            try {
-                open(db);                
-            } catch (DbUnavailableException e) {
-                if (Collect.Log.WARN) Log.w(Collect.LOGTAG, tt + "unable to connect to local database server: " + e.toString());
+        try {
+            open(db);
+        } catch (DbUnavailableException e) {
+            if (Collect.Log.WARN) Log.w(Collect.LOGTAG, tt + "unable to connect to " + (folder.isReplicated() ? "local" : "remote") + " database server: " + e.toString());
+        }
+
+        return mDbConnectors.get(getConnectorKey(db, folder.isReplicated()));
+    }
+    
+    // Convenience method (uses currently selected database)
+    public FormDefinitionRepo getFormDefinitionRepo()
+    {
+        return getFormDefinitionRepo(Collect.getInstance().getInformOnlineState().getSelectedDatabase());
+    }
+    
+    public FormDefinitionRepo getFormDefinitionRepo(String db)
+    {
+        CouchDbConnector connector = getDb(db);
+        String key = getConnectorKey(db, Collect.getInstance().getInformOnlineState().getAccountFolders().get(db).isReplicated());
+        FormDefinitionRepo repo;
+        
+        synchronized (mFormDefinitionRepos) {
+            repo = mFormDefinitionRepos.get(key);
+            
+            if (repo == null) {
+                repo = new FormDefinitionRepo(connector);
+                
+                // Not kept if the connector was removed in the meantime (it would never be released)
+                if (mDbConnectors.get(key) == connector)
+                    mFormDefinitionRepos.put(key, repo);
             }
+        }
+        
+        verifyDesignDocument(db, connector, repo, FormDefinitionRepo.DESIGN_DOCUMENT);
+        
+        return repo;
+    }
+    
+    // Convenience method (uses currently selected database)
+    public FormInstanceRepo getFormInstanceRepo()
+    {
+        return getFormInstanceRepo(Collect.getInstance().getInformOnlineState().getSelectedDatabase());
+    }
+    
+    public FormInstanceRepo getFormInstanceRepo(String db)
+    {
+        CouchDbConnector connector = getDb(db);
+        String key = getConnectorKey(db, Collect.getInstance().getInformOnlineState().getAccountFolders().get(db).isReplicated());
+        FormInstanceRepo repo;
+        
+        synchronized (mFormInstanceRepos) {
+            repo = mFormInstanceRepos.get(key);
+            
+            if (repo == null) {
+                repo = new FormInstanceRepo(connector);
+                
+                // Not kept if the connector was removed in the meantime (it would never be released)
+                if (mDbConnectors.get(key) == connector)
+                    mFormInstanceRepos.put(key, repo);
+            }
+        }
+        
+        verifyDesignDocument(db, connector, repo, FormInstanceRepo.DESIGN_DOCUMENT);
+        
+        return repo;
+    }
+    
+    /*
+     * Make sure that a repository's design document exists.  This is done once per database per session 
+     * (the revision seen is kept as a version stamp) and then only repeated if replication may have brought 
+     * in a newer revision, in which case a single GET tells us whether anything changed.
+     */
+    private void verifyDesignDocument(String db, CouchDbConnector connector, CouchDbRepositorySupport<?> repo, String designDocument)
+    {
+        final String tt = t + "verifyDesignDocument(): ";
+        
+        boolean local = Collect.getInstance().getInformOnlineState().getAccountFolders().get(db).isReplicated();
+        String key = getConnectorKey(db, local) + "/" + designDocument;
+        String verifiedRevision = mDesignDocumentRevisions.get(key);
+        
+        if (verifiedRevision != null) {
+            if (!mDesignDocumentsToRecheck.remove(key))
+                return;
             
-            dbConnector = mLocalDbConnector;
-        } else {
-            // Remote database
             try {
-                open(db);              
-            } catch (DbUnavailableException e) {
-                if (Collect.Log.WARN) Log.w(Collect.LOGTAG, tt + "unable to connect to remote database server: " + e.toString());
+                if (verifiedRevision.equals(connector.get(DesignDocument.class, DesignDocument.ID_PREFIX + designDocument).getRevision()))
+                    return;
+            } catch (DocumentNotFoundException e) {
+                // Fall through and recreate it
             }
             
-            dbConnector = mRemoteDbConnector;
+            // Indexes built for the previous revision are now unused
+            if (local)
+                mViewCleanupNeeded.add(db);
         }
-
-        return dbConnector;
+        
+        if (Collect.Log.DEBUG) Log.d(Collect.LOGTAG, tt + "verifying " + designDocument + " in " + db);
+        
+        repo.initStandardDesignDocument();
+        mDesignDocumentRevisions.put(key, connector.get(DesignDocument.class, DesignDocument.ID_PREFIX + designDocument).getRevision());
+    }
+    
+    /*
+     * Design documents of a local database may have been replaced by replication
+     */
+    private void recheckDesignDocuments(String db)
+    {
+        String prefix = getConnectorKey(db, true) + "/";
+        
+        for (String key : mDesignDocumentRevisions.keySet()) {
+            if (key.startsWith(prefix))
+                mDesignDocumentsToRecheck.add(key);
+        }
+    }
+    
+    // Convenience method (uses currently selected database)
+    public AggregateReadinessIndex getAggregateReadinessIndex()
+    {
+        return getAggregateReadinessIndex(Collect.getInstance().getInformOnlineState().getSelectedDatabase());
+    }
+    
+    /*
+     * Instances in a database that are ready to be sent to ODK Aggregate, brought up to date with any changes 
+     * made since it was last asked for
+     */
+    public AggregateReadinessIndex getAggregateReadinessIndex(String db)
+    {
+        AccountFolder folder = Collect.getInstance().getInformOnlineState().getAccountFolders().get(db);
+        String key = getConnectorKey(db, folder.isReplicated());
+        
+        AggregateReadinessIndex index = mReadinessIndexes.get(key);
+        
+        if (index == null) {
+            mReadinessIndexes.putIfAbsent(key, new AggregateReadinessIndex());
+            index = mReadinessIndexes.get(key);
+        }
+        
+        index.update(getDb(db), getFormDefinitionRepo(db));
+        
+        return index;
     }
     
     /*
@@ -250,8 +514,7 @@ public class DatabaseService extends Service {
             if (mLocalDbInstance == null)
                 connectToLocalServer();
             
-            if (mLocalDbInstance.getAllDatabases().indexOf("db_" + db) != -1)
-                result = true;
+            result = localDbExists(db);
         } catch (DbAccessException e) {
             if (Collect.Log.WARN) Log.w(Collect.LOGTAG, tt + e.toString());
         } catch (Exception e) {
@@ -284,7 +547,7 @@ public class DatabaseService extends Service {
         if (dbToOpenIsReplicated) {
             // Local database
             if (mConnectedToLocal) {
-                if (mLocalDbConnector instanceof StdCouchDbConnector && mLocalDbConnector.getDatabaseName().equals("db_" + db)) {
+                if (mDbConnectors.get(getConnectorKey(db, true)) != null) {
                     return;
                 }
             } else {
@@ -295,7 +558,7 @@ public class DatabaseService extends Service {
         } else {
             // Remote database
             if (mConnectedToRemote) {
-                if (mRemoteDbConnector instanceof StdCouchDbConnector && mRemoteDbConnector.getDatabaseName().equals("db_" + db)) {
+                if (mDbConnectors.get(getConnectorKey(db, false)) != null) {
                     return;
                 }
             } else {
@@ -306,10 +569,27 @@ public class DatabaseService extends Service {
         }
     }
     
+    private static String getConnectorKey(String db, boolean local)
+    {
+        return (local ? CONNECTOR_LOCAL : CONNECTOR_REMOTE) + db;
+    }
+    
     /*
-     * Similar in purpose to performHousekeeping(), this method is targeted towards any database 
+     * The connector for the folder that the user is looking at is never evicted to make room for others
      */
-    public void performHousekeeping(String db) throws DbUnavailableException
+    private static String getProtectedConnectorKey()
+    {
+        String selectedDb = Collect.getInstance().getInformOnlineState().getSelectedDatabase();
+        AccountFolder folder = selectedDb == null ? null : Collect.getInstance().getInformOnlineState().getAccountFolders().get(selectedDb);
+        
+        return folder == null ? null : getConnectorKey(selectedDb, folder.isReplicated());
+    }
+    
+    /*
+     * Similar in purpose to performHousekeeping(), this method is targeted towards any database.  The cleanup 
+     * itself is queued to run in the background so this returns immediately.
+     */
+    public void performHousekeeping(final String db)
     {
         final String tt = t + "performHousekeeping(String): ";
         
@@ -317,18 +597,128 @@ public class DatabaseService extends Service {
         Long lastCleanup = mDbLastCleanup.get(db);
         
         if (lastCleanup == null || System.currentTimeMillis() / 1000 - lastCleanup >= TIME_TEN_MINUTES) {
-            if (Collect.Log.DEBUG) Log.d(Collect.LOGTAG, tt + "beginning cleanup for " + db);
-            mDbLastCleanup.put(db, new Long(System.currentTimeMillis() / 1000));            
-            removePlaceholders(new FormDefinitionRepo(getDb()).getAllPlaceholders());
-            removePlaceholders(new FormInstanceRepo(getDb()).getAllPlaceholders());
+            if (Collect.Log.DEBUG) Log.d(Collect.LOGTAG, tt + "queueing cleanup for " + db);
+            mDbLastCleanup.put(db, new Long(System.currentTimeMillis() / 1000));
+            
+            mHousekeepingExecutor.execute(new Runnable() {
+                public void run()
+                {
+                    removePlaceholders(db);
+                }
+            });
         }        
     }
     
-    synchronized public ReplicationStatus replicate(String db, int mode)
+    public ReplicationStatus replicate(String db, int mode)
+    {
+        return replicate(db, mode, false);
+    }
+    
+    /*
+     * Replications that are not urgent (or that should not hold up the caller) should be queued here
+     */
+    public ReplicationScheduler getReplicationScheduler()
+    {
+        return mReplicationScheduler;
+    }
+    
+    public ReplicationMetrics getReplicationMetrics()
+    {
+        return mReplicationMetrics;
+    }
+
+    /*
+     * Instances waiting to be submitted (failed submissions are retried from here in the background)
+     */
+    public UploadQueue getUploadQueue()
+    {
+        return mUploadQueue;
+    }
+
+    /*
+     * Start (or confirm) continuous replication of a database in both directions.  Once running, changes 
+     * are replicated as they happen.  Restarting an identical replication is harmless because CouchDB 
+     * identifies replications by their source and target (and resumes from its own checkpoints) so 
+     * the same cluster host is reused for as long as it works.
+     * 
+     * Returns true if replication is running in both directions.
+     */
+    public boolean replicateContinuously(String db)
+    {
+        final String tt = t + "replicateContinuously(): ";
+        
+        synchronized (getReplicationLock(db)) {
+            ReplicationStatus pull = replicate(db, REPLICATE_PULL, true);
+            ReplicationStatus push = null;
+
+            if (pull != null && pull.isOk())
+                push = replicate(db, REPLICATE_PUSH, true);
+
+            if (push != null && push.isOk()) {
+                setCheckpoint(db);
+                return true;
+            } else {
+                if (Collect.Log.WARN) Log.w(Collect.LOGTAG, tt + "unable to replicate " + db + " continuously");
+
+                // Try another cluster host next time
+                cancelContinuousReplication(db);
+                PreferenceManager.getDefaultSharedPreferences(Collect.getInstance().getBaseContext()).edit().remove(CHECKPOINT_REPLICATION_HOST + db).commit();
+
+                return false;
+            }
+        }
+    }
+    
+    /*
+     * Stop any continuous replication of this database that was started by this service
+     */
+    public void cancelContinuousReplication(String db)
+    {
+        final String tt = t + "cancelContinuousReplication(): ";
+        
+        synchronized (getReplicationLock(db)) {
+            for (int mode : new int [] { REPLICATE_PULL, REPLICATE_PUSH }) {
+                ReplicationCommand cmd = mContinuousReplications.remove(db + ":" + mode);
+
+                if (cmd == null)
+                    continue;
+
+                try {
+                    mLocalDbInstance.replicate(new ReplicationCommand.Builder().source(cmd.source).target(cmd.target).filter(cmd.filter).queryParams(cmd.queryParams).continuous(true).cancel(true).build());
+                    if (Collect.Log.DEBUG) Log.d(Collect.LOGTAG, tt + "cancelled continuous replication of " + db);
+                } catch (Exception e) {
+                    // The replication may have already stopped (e.g., if the local server was restarted)
+                    if (Collect.Log.DEBUG) Log.d(Collect.LOGTAG, tt + "while cancelling replication of " + db + ": " + e.toString());
+                }
+            }
+        }
+    }
+    
+    private void cancelContinuousReplications()
+    {
+        Iterator<String> keys = new HashMap<String, ReplicationCommand>(mContinuousReplications).keySet().iterator();
+        
+        while (keys.hasNext()) {
+            String key = keys.next();
+            cancelContinuousReplication(key.substring(0, key.lastIndexOf(":")));
+        }
+    }
+    
+    /*
+     * Replications of the same database are serialized but different databases may replicate at the same time
+     */
+    private ReplicationStatus replicate(String db, int mode, boolean continuous)
+    {
+        synchronized (getReplicationLock(db)) {
+            return replicateDb(db, mode, continuous);
+        }
+    }
+    
+    private ReplicationStatus replicateDb(String db, int mode, boolean continuous)
     {
         final String tt = t + "replicate(): ";
         
-        if (Collect.Log.DEBUG) Log.d(Collect.LOGTAG, tt + "about to replicate " + db);
+        if (Collect.Log.DEBUG) Log.d(Collect.LOGTAG, tt + "about to replicate " + db + (continuous ? " continuously" : ""));
 
         // Will not replicate unless signed in
         if (!Collect.getInstance().getIoService().isSignedIn()) {
@@ -341,19 +731,31 @@ public class DatabaseService extends Service {
             return null;
         }
 
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(Collect.getInstance().getBaseContext());
+
         /*
          * Lookup master cluster by IP.  Do this instead of relying on Erlang's internal resolver 
          * (and thus Google's public DNS).  Our builds of Erlang for Android do not yet use 
          * Android's native DNS resolver.
+         * 
+         * Continuous replications keep using the same host so that they can be recognised when restarted.
          */
         String masterClusterIP = null;
+        
+        if (continuous)
+            masterClusterIP = settings.getString(CHECKPOINT_REPLICATION_HOST + db, null);
 
-        try {
-            InetAddress [] clusterInetAddresses = InetAddress.getAllByName(getString(R.string.tf_default_ionline_server));
-            masterClusterIP = clusterInetAddresses[new Random().nextInt(clusterInetAddresses.length)].getHostAddress();
-        } catch (UnknownHostException e) {
-            if (Collect.Log.ERROR) Log.e(Collect.LOGTAG, tt + "unable to lookup master cluster IP addresses: " + e.toString());
-            e.printStackTrace();
+        if (masterClusterIP == null) {
+            try {
+                InetAddress [] clusterInetAddresses = InetAddress.getAllByName(getString(R.string.tf_default_ionline_server));
+                masterClusterIP = clusterInetAddresses[new Random().nextInt(clusterInetAddresses.length)].getHostAddress();
+                
+                if (continuous)
+                    settings.edit().putString(CHECKPOINT_REPLICATION_HOST + db, masterClusterIP).commit();
+            } catch (UnknownHostException e) {
+                if (Collect.Log.ERROR) Log.e(Collect.LOGTAG, tt + "unable to lookup master cluster IP addresses: " + e.toString());
+                e.printStackTrace();
+            }
         }
 
         // Create local instance of database
@@ -369,11 +771,11 @@ public class DatabaseService extends Service {
             e.printStackTrace();
         }
 
-        if (mLocalDbInstance.getAllDatabases().indexOf("db_" + db) == -1) {
+        if (!localDbExists(db)) {
             switch (mode) {
             case REPLICATE_PULL:
                 if (Collect.Log.INFO) Log.i(Collect.LOGTAG, tt + "creating local database " + db);
-                mLocalDbInstance.createDatabase("db_" + db);
+                createLocalDb(db);
                 dbCreated = true;
                 break;
                 
@@ -395,8 +797,6 @@ public class DatabaseService extends Service {
         String remoteServer = "http://" + deviceId + ":" + deviceKey + "@" + masterClusterIP + ":5984/db_" + db;
         
         // Should we use encrypted transfers?
-        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(Collect.getInstance().getBaseContext());
-        
         if (settings.getBoolean(PreferencesActivity.KEY_ENCRYPT_SYNCHRONIZATION, true)) {
             remoteServer = "https://" + deviceId + ":" + deviceKey + "@" + masterClusterIP + ":6984/db_" + db;
         }
@@ -413,24 +813,172 @@ public class DatabaseService extends Service {
             break;
         }
 
-        ReplicationCommand cmd = new ReplicationCommand.Builder().source(source).target(target).build();
+        ReplicationCommand.Builder builder = new ReplicationCommand.Builder().source(source).target(target).continuous(continuous);
+        
+        if (mode == REPLICATE_PULL && settings.getBoolean(PreferencesActivity.KEY_FILTERED_SYNCHRONIZATION, false)) {
+            if (installPullFilter(db)) {
+                Map<String, String> params = new HashMap<String, String>();
+                params.put("devices", getPullFilter(db));
+                builder.filter(PULL_FILTER_DESIGN_DOC + "/" + PULL_FILTER_NAME).queryParams(params);
+            } else {
+                if (Collect.Log.WARN) Log.w(Collect.LOGTAG, tt + "pull filter unavailable for " + db + "; pulling everything");
+            }
+        }
+        
+        ReplicationCommand cmd = builder.build();
         ReplicationStatus status = null;
+        long started = System.currentTimeMillis();
 
         try {
             status = mLocalDbInstance.replicate(cmd);
+            
+            if (continuous) {
+                // If the settings have changed since it was started (e.g., encryption) then stop the old replication
+                ReplicationCommand previous = mContinuousReplications.put(db + ":" + mode, cmd);
+                
+                if (previous != null && !isSameReplication(previous, cmd)) {
+                    if (Collect.Log.DEBUG) Log.d(Collect.LOGTAG, tt + "replacing continuous replication of " + db);
+                    mLocalDbInstance.replicate(new ReplicationCommand.Builder().source(previous.source).target(previous.target).filter(previous.filter).queryParams(previous.queryParams).continuous(true).cancel(true).build());
+                }
+            } else if (status != null && status.isOk()) {
+                setCheckpoint(db);
+            }
+            
+            // Continuous replications never report that there were no changes so look at the database instead
+            if (mode == REPLICATE_PULL && status != null && status.isOk() && (continuous ? hasLocalDbChanged(db) : !status.isNoChanges())) {
+                recheckDesignDocuments(db);
+                scheduleMaintenance(db);
+            }
         } catch (Exception e) {
             // Remove a recently created DB if the replication failed
             if (dbCreated) {
                 if (Collect.Log.ERROR) Log.e(Collect.LOGTAG, t + "replication exception: " + e.toString());
                 e.printStackTrace();
                 
-                mLocalDbInstance.deleteDatabase("db_" + db);
+                deleteLocalDb(db);
             }
         }
+        
+        // Progress of continuous replications is sampled from _active_tasks instead
+        if (!continuous)
+            mReplicationMetrics.recordReplication(db, mode, started, status);
 
         return status;
     }
     
+    /*
+     * Extend the filtered pull of a database to also include instances created by or assigned to other devices.
+     * 
+     * CouchDB treats a pull with different filter parameters as a new replication and so checks the folder's 
+     * changes from the beginning, however only documents missing from this device are transferred.
+     */
+    public void widenPullFilter(String db, Collection<String> deviceIds)
+    {
+        if (!canWidenPullFilter(db, deviceIds))
+            return;
+        
+        Set<String> filter = new TreeSet<String>(Arrays.asList(getPullFilter(db).split(",")));
+        filter.addAll(deviceIds);
+        
+        setPullFilter(db, StringUtils.join(filter.toArray(new String[filter.size()]), ",", filter.size()));
+    }
+    
+    /*
+     * Would widening the filtered pull of a database to these devices pull anything more?
+     */
+    public boolean canWidenPullFilter(String db, Collection<String> deviceIds)
+    {
+        if (!isPullFiltered(db))
+            return false;
+        
+        return !Arrays.asList(getPullFilter(db).split(",")).containsAll(deviceIds);
+    }
+    
+    /*
+     * Pull filters only apply to replicated folders when filtered synchronization is turned on
+     */
+    private boolean isPullFiltered(String db)
+    {
+        AccountFolder folder = Collect.getInstance().getInformOnlineState().getAccountFolders().get(db);
+        
+        return folder != null && folder.isReplicated() 
+            && PreferenceManager.getDefaultSharedPreferences(Collect.getInstance().getBaseContext()).getBoolean(PreferencesActivity.KEY_FILTERED_SYNCHRONIZATION, false);
+    }
+    
+    /*
+     * Comma separated list of the devices whose instances are pulled
+     */
+    private String getPullFilter(String db)
+    {
+        String devices = PreferenceManager.getDefaultSharedPreferences(Collect.getInstance().getBaseContext()).getString(CHECKPOINT_PULL_FILTER + db, null);
+        
+        if (devices == null)
+            devices = Collect.getInstance().getInformOnlineState().getDeviceId();
+        
+        return devices;
+    }
+    
+    private void setPullFilter(final String db, String devices)
+    {
+        PreferenceManager.getDefaultSharedPreferences(Collect.getInstance().getBaseContext())
+            .edit()
+            .putString(CHECKPOINT_PULL_FILTER + db, devices)
+            .commit();
+        
+        // Running pulls must be restarted to pick up the new filter (queued so that the caller is not held up)
+        if (mContinuousReplications.containsKey(db + ":" + REPLICATE_PULL)) {
+            mHousekeepingExecutor.execute(new Runnable() {
+                public void run()
+                {
+                    replicateContinuously(db);
+                }
+            });
+        }
+    }
+    
+    /*
+     * Make sure that the pull filter exists in the server copy of a database (filters run on the source)
+     */
+    private boolean installPullFilter(String db)
+    {
+        final String tt = t + "installPullFilter(): ";
+        
+        if (mPullFilterInstalled.contains(db))
+            return true;
+        
+        try {
+            if (mRemoteDbInstance == null)
+                connectToRemoteServer();
+            
+            CouchDbConnector remoteDb = new InformCouchDbConnector("db_" + db, mRemoteDbInstance);
+            
+            if (!remoteDb.contains(DesignDocument.ID_PREFIX + PULL_FILTER_DESIGN_DOC)) {
+                if (Collect.Log.INFO) Log.i(Collect.LOGTAG, tt + "installing pull filter in " + db);
+                
+                DesignDocument filter = new DesignDocument(DesignDocument.ID_PREFIX + PULL_FILTER_DESIGN_DOC);
+                filter.addFilter(PULL_FILTER_NAME, PULL_FILTER_FUNCTION);
+                remoteDb.create(filter);
+            }
+            
+            mPullFilterInstalled.add(db);
+            return true;
+        } catch (Exception e) {
+            if (Collect.Log.WARN) Log.w(Collect.LOGTAG, tt + "unable to install pull filter in " + db + ": " + e.toString());
+            return false;
+        }
+    }
+    
+    /*
+     * CouchDB identifies a replication by its source, target and filter
+     */
+    private static boolean isSameReplication(ReplicationCommand a, ReplicationCommand b)
+    {
+        return a.source.equals(b.source) 
+            && a.target.equals(b.target) 
+            && (a.filter == null ? b.filter == null : a.filter.equals(b.filter))
+            && (a.queryParams == null ? b.queryParams == null : a.queryParams.equals(b.queryParams));
+    }
+    
     public void setLocalDatabaseInfo(String host, int port)
     {
         final String tt = t + "setLocalDatabaseInfo(): ";
@@ -459,14 +1007,25 @@ public class DatabaseService extends Service {
              * will fail.  It is possible that we will need to extend this in the future if
              * it turns out to be insufficient.
              */
+            if (mLocalConnectionManager != null)
+                mLocalConnectionManager.shutdown();
+            
+            mLocalConnectionManager = createConnectionManager(false);
+            
             mLocalHttpClient = new StdHttpClient.Builder()
                 .host(mLocalHost)
                 .port(mLocalPort)
                 .socketTimeout(TIME_FIVE_MINUTES * 1000)
+                .connectionManager(mLocalConnectionManager)
+                .cleanupIdleConnections(true)
                 .build();
             
             mLocalDbInstance = new StdCouchDbInstance(mLocalHttpClient);
-            mLocalDbInstance.getAllDatabases();
+            mDbConnectors.removeAll(CONNECTOR_LOCAL);
+            
+            // Doubles as a check that the server is available
+            mLocalDatabases = null;
+            getLocalDatabases();
             
             if (mConnectedToLocal == false)
                 mConnectedToLocal = true;
@@ -490,16 +1049,24 @@ public class DatabaseService extends Service {
         if (Collect.Log.DEBUG) Log.d(Collect.LOGTAG, tt + "establishing connection to " + host + ":" + port);
         
         try {                     
+            if (mRemoteConnectionManager != null)
+                mRemoteConnectionManager.shutdown();
+            
+            mRemoteConnectionManager = createConnectionManager(true);
+            
             mRemoteHttpClient = new StdHttpClient.Builder()
                 .enableSSL(true)            
                 .host(host)
                 .port(port)
                 .socketTimeout(30 * 1000)
+                .connectionManager(mRemoteConnectionManager)
+                .cleanupIdleConnections(true)
                 .username(Collect.getInstance().getInformOnlineState().getDeviceId())
                 .password(Collect.getInstance().getInformOnlineState().getDeviceKey())                    
                 .build();
             
             mRemoteDbInstance = new StdCouchDbInstance(mRemoteHttpClient);
+            mDbConnectors.removeAll(CONNECTOR_REMOTE);
             mRemoteDbInstance.getAllDatabases();
             
             if (mConnectedToRemote == false)
@@ -514,6 +1081,82 @@ public class DatabaseService extends Service {
         }
     }
 
+    /*
+     * Pool of kept-alive connections to a server so that repository calls do not pay for connection setup 
+     * (and, for remote servers, the SSL handshake) every time.  Sized from the concurrent transfers preference.
+     */
+    private ClientConnectionManager createConnectionManager(boolean ssl)
+    {
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(Collect.getInstance().getBaseContext());
+        
+        int maxConnections = CONNECTION_HEADROOM;
+        
+        try {
+            maxConnections += Integer.parseInt(settings.getString(PreferencesActivity.KEY_TRANSFER_CONCURRENCY, PreferencesActivity.DEFAULT_TRANSFER_CONCURRENCY));
+        } catch (NumberFormatException e) {
+            maxConnections += Integer.parseInt(PreferencesActivity.DEFAULT_TRANSFER_CONCURRENCY);
+        }
+        
+        HttpParams params = new BasicHttpParams();
+        ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnections));
+        
+        SchemeRegistry schemeRegistry = new SchemeRegistry();
+        
+        if (ssl)
+            schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+        else 
+            schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        
+        return new ThreadSafeClientConnManager(params, schemeRegistry);
+    }
+    
+    /*
+     * Names of the databases on the local server (listed once and then maintained by createLocalDb() and deleteLocalDb())
+     */
+    private synchronized Set<String> getLocalDatabases()
+    {
+        if (mLocalDatabases == null)
+            mLocalDatabases = Collections.synchronizedSet(new HashSet<String>(mLocalDbInstance.getAllDatabases()));
+        
+        return mLocalDatabases;
+    }
+    
+    private boolean localDbExists(String db)
+    {
+        return getLocalDatabases().contains("db_" + db);
+    }
+    
+    private void createLocalDb(String db)
+    {
+        mLocalDbInstance.createDatabase("db_" + db);
+        getLocalDatabases().add("db_" + db);
+    }
+    
+    private void deleteLocalDb(String db)
+    {
+        String key = getConnectorKey(db, true);
+        
+        mDbConnectors.remove(key);
+        mReadinessIndexes.remove(key);
+        mLocalUpdateSequences.remove(db);
+        
+        // Design documents must be verified again once the database has been recreated
+        Iterator<String> it = mDesignDocumentRevisions.keySet().iterator();
+        
+        while (it.hasNext()) {
+            String revisionKey = it.next();
+            
+            if (revisionKey.startsWith(key + "/")) {
+                it.remove();
+                mDesignDocumentsToRecheck.remove(revisionKey);
+            }
+        }
+        
+        getLocalDatabases().remove("db_" + db);
+        mLocalDbInstance.deleteDatabase("db_" + db);
+    }
+    
     private void openLocalDb(String db) throws DbUnavailableException 
     {
         final String tt = t + "openLocalDb(): ";
@@ -531,13 +1174,13 @@ public class DatabaseService extends Service {
              * selection screen (and have it initialized on-demand as expected) would fail.  At least,
              * until the system got around to creating and replicating it automatically.
              */            
-            if (mLocalDbInstance.getAllDatabases().indexOf("db_" + db) == -1) {
+            if (!localDbExists(db)) {
                 if (Collect.Log.WARN) Log.w(Collect.LOGTAG, tt + "database does not exist; failing attempt to open");
                 throw new DbUnavailableException();
             }
             
             if (Collect.Log.DEBUG) Log.d(Collect.LOGTAG, tt + "opening database " + db);
-            mLocalDbConnector = new InformCouchDbConnector("db_" + db, mLocalDbInstance);
+            mDbConnectors.put(getConnectorKey(db, true), new InformCouchDbConnector("db_" + db, mLocalDbInstance), getProtectedConnectorKey());
         } catch (Exception e) {
             if (Collect.Log.ERROR) Log.e(Collect.LOGTAG, tt + "while opening DB " + db + ": " + e.toString());
             e.printStackTrace();
@@ -551,13 +1194,15 @@ public class DatabaseService extends Service {
         
         try {
             if (Collect.Log.DEBUG) Log.d(Collect.LOGTAG, tt + "opening database " + db);
-            mRemoteDbConnector = new InformCouchDbConnector("db_" + db, mRemoteDbInstance);
+            CouchDbConnector connector = new InformCouchDbConnector("db_" + db, mRemoteDbInstance);
             
             /* 
              * This should trigger any 401:Unauthorized errors when connecting to a remote DB
              * (better to know about them now then to experience a crash later because we didn't trap something)
              */
-            mRemoteDbConnector.getDbInfo();
+            connector.getDbInfo();
+            
+            mDbConnectors.put(getConnectorKey(db, false), connector, getProtectedConnectorKey());
         } catch (Exception e) {
             if (Collect.Log.ERROR) Log.e(Collect.LOGTAG, tt + "while opening DB " + db + ": " + e.toString());
             e.printStackTrace();
@@ -566,15 +1211,17 @@ public class DatabaseService extends Service {
     }
 
     /*
-     * Perform any house keeping (e.g., removing of unused DBs, view compaction & cleanup)
+     * Perform any house keeping (e.g., removing of unused DBs, queueing view compaction & cleanup)
      */
     private void performHousekeeping()
     {   
         final String tt = t + "performHousekeeping(): ";
         
         try {
-            List<String> allDatabases = mLocalDbInstance.getAllDatabases();
-            Iterator<String> dbs = allDatabases.iterator();
+            // This is also a good time to pick up any changes made to the local server behind our back
+            mLocalDatabases = null;
+            
+            Iterator<String> dbs = new ArrayList<String>(getLocalDatabases()).iterator();
     
             while (dbs.hasNext()) {
                 String db = dbs.next();
@@ -589,20 +1236,23 @@ public class DatabaseService extends Service {
                     if (folder == null) {
                         // Remove databases that exist locally but for which we have no metadata
 	                    if (Collect.Log.DEBUG) Log.d(Collect.LOGTAG, tt + "no metatdata for " + db + " (removing)");
-                        mLocalDbInstance.deleteDatabase("db_" + db);
+                        deleteLocalDb(db);
                     } else if (isDbLocal(db) && folder.isReplicated() == false) {
                         // Purge any databases that are local but not on the replication list                        
                         try {
+                            cancelContinuousReplication(db);
                             ReplicationStatus status = replicate(db, REPLICATE_PUSH);
 
                             if (status != null && status.isOk()) {
 	                        if (Collect.Log.DEBUG) Log.d(Collect.LOGTAG, tt + "final replication push successful, removing " + db);
-                                mLocalDbInstance.deleteDatabase("db_" + db);
+                                deleteLocalDb(db);
                             }
                         } catch (Exception e) {
                             if (Collect.Log.ERROR) Log.e(Collect.LOGTAG, tt + "final replication push of " + db + " failed at " + e.toString());
                             e.printStackTrace();
                         }
+                    } else if (folder.isReplicated()) {
+                        scheduleMaintenance(db);
                     }
                 }
             }
@@ -615,58 +1265,191 @@ public class DatabaseService extends Service {
     }
     
     /*
-     * Evaluate and remove a set of placeholders on the basis of who created it and when it was created
+     * Queue maintenance of a local database (see performMaintenance()) unless it is already waiting to run
+     */
+    private void scheduleMaintenance(final String db)
+    {
+        if (!mMaintenanceQueued.add(db))
+            return;
+        
+        mHousekeepingExecutor.execute(new Runnable() {
+            public void run()
+            {
+                mMaintenanceQueued.remove(db);
+                performMaintenance(db);
+            }
+        });
+    }
+    
+    /*
+     * Keep a local database quick to browse after replication: start bringing its views up to date so that the 
+     * first query does not have to wait for them, compact the database and view indexes once enough of them is 
+     * unused and remove indexes left behind by old design documents.
+     */
+    private void performMaintenance(String db)
+    {
+        final String tt = t + "performMaintenance(): ";
+        
+        try {
+            if (!isDbLocal(db))
+                return;
+            
+            // Also picks up design documents that replication may have replaced
+            getFormDefinitionRepo(db);
+            getFormInstanceRepo(db);
+            
+            CouchDbConnector connector = getDb(db);
+            
+            for (String [] view : WARMED_VIEWS) {
+                try {
+                    // Returns immediately and leaves the index to be updated in the background
+                    connector.queryView(new ViewQuery().designDocId(DesignDocument.ID_PREFIX + view[0]).viewName(view[1]).limit(0).queryParam("stale", "update_after"));
+                } catch (DbAccessException e) {
+                    // Older versions of CouchDB do not know update_after (we are in the background so waiting is fine)
+                    connector.queryView(new ViewQuery().designDocId(DesignDocument.ID_PREFIX + view[0]).viewName(view[1]).limit(0));
+                }
+                
+                if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, tt + "warming " + view[0] + " in " + db);
+                
+                DesignDocInfo.ViewIndex index = connector.getDesignDocInfo(view[0]).getViewIndex();
+                
+                if (!index.isCompactRunning() && isFragmented(index.getDiskSize(), index.getAnonymous().get("data_size"))) {
+                    if (Collect.Log.DEBUG) Log.d(Collect.LOGTAG, tt + "compacting " + view[0] + " in " + db + " (" + index.getDiskSize() + " bytes)");
+                    connector.compactViews(view[0]);
+                }
+            }
+            
+            // Replication may have brought in instances that are ready to be sent
+            getAggregateReadinessIndex(db);
+            
+            DbInfo info = connector.getDbInfo();
+            
+            if (!info.isCompactRunning() && isFragmented(info.getDiskSize(), info.getUnknownFields().get("data_size"))) {
+                if (Collect.Log.DEBUG) Log.d(Collect.LOGTAG, tt + "compacting " + db + " (" + info.getDiskSize() + " bytes)");
+                connector.compact();
+            }
+            
+            if (mViewCleanupNeeded.remove(db)) {
+                if (Collect.Log.DEBUG) Log.d(Collect.LOGTAG, tt + "removing unused view indexes of " + db);
+                connector.cleanupViews();
+            }
+        } catch (Exception e) {
+            if (Collect.Log.WARN) Log.w(Collect.LOGTAG, tt + "maintenance of " + db + " failed: " + e.toString());
+        }
+    }
+    
+    /*
+     * Whether enough of a file is unused to make compacting it worthwhile (CouchDB before 1.2 does not report 
+     * the size of the live data, in which case we cannot tell)
+     */
+    private static boolean isFragmented(long diskSize, Object dataSize)
+    {
+        if (diskSize < COMPACTION_MIN_SIZE || !(dataSize instanceof Number))
+            return false;
+        
+        return (diskSize - ((Number) dataSize).longValue()) > diskSize * COMPACTION_THRESHOLD;
+    }
+    
+    /*
+     * Remove the placeholders of a database that are no longer needed, deleting them in batches
+     */
+    private void removePlaceholders(String db)
+    {
+        final String tt = t + "removePlaceholders(String): ";
+        
+        long started = System.currentTimeMillis();
+        List<BulkDeleteDocument> deletions = new ArrayList<BulkDeleteDocument>();
+        int removed = 0;
+        
+        try {
+            deletions.addAll(selectPlaceholders(getFormDefinitionRepo(db).getAllPlaceholders()));
+            deletions.addAll(selectPlaceholders(getFormInstanceRepo(db).getAllPlaceholders()));
+            
+            CouchDbConnector connector = getDb(db);
+            
+            for (int i = 0; i < deletions.size(); i += PLACEHOLDER_BATCH_SIZE) {
+                List<BulkDeleteDocument> batch = deletions.subList(i, Math.min(i + PLACEHOLDER_BATCH_SIZE, deletions.size()));
+                int failed = 0;
+                
+                // Only documents that could not be deleted are reported back
+                for (DocumentOperationResult result : connector.executeBulk(batch)) {
+                    if (result.isErroneous()) {
+                        if (Collect.Log.WARN) Log.w(Collect.LOGTAG, tt + "unable to remove placeholder " + result.getId() + ": " + result.getError());
+                        failed++;
+                    }
+                }
+                
+                removed += batch.size() - failed;
+            }
+        } catch (Exception e) {
+            if (Collect.Log.ERROR) Log.e(Collect.LOGTAG, tt + "cleanup of " + db + " failed: " + e.toString());
+            e.printStackTrace();
+        }
+        
+        if (Collect.Log.INFO) Log.i(Collect.LOGTAG, tt + "removed " + removed + " of " + deletions.size() + " placeholders from " + db + " in " + (System.currentTimeMillis() - started) + " ms");
+    }
+    
+    /*
+     * Evaluate a set of placeholders on the basis of who created it and when it was created, returning those to remove
      */
-    private void removePlaceholders(HashMap<String, JSONObject> placeholders)
+    private List<BulkDeleteDocument> selectPlaceholders(HashMap<String, JSONObject> placeholders)
     {        
-        final String tt = t + "removePlaceholders(): ";
+        final String tt = t + "selectPlaceholders(): ";
+        
+        List<BulkDeleteDocument> deletions = new ArrayList<BulkDeleteDocument>();
+        SimpleDateFormat sdf = new SimpleDateFormat(Generic.DATETIME);
         
         for (Map.Entry<String, JSONObject> entry : placeholders.entrySet()) {
+            BulkDeleteDocument deletion = new BulkDeleteDocument(entry.getKey(), entry.getValue().optString("_rev"));
+            
             if (entry.getValue().optString("createdBy", null) == null || entry.getValue().optString("dateCreated", null) == null) {
                 // Remove old style (unowned) placeholders immediately
-                try {
-                    getDb().delete(entry.getKey(), entry.getValue().optString("_rev"));
-                    if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, tt + "removed old-style placeholder " + entry.getKey());
-                } catch (Exception e) {
-                    if (Collect.Log.ERROR) Log.e(Collect.LOGTAG, tt + "unable to remove old-style placeholder");
-                    e.printStackTrace();
-                }
+                if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, tt + "removing old-style placeholder " + entry.getKey());
+                deletions.add(deletion);
             } else if (entry.getValue().optString("createdBy").equals(Collect.getInstance().getInformOnlineState().getDeviceId())) {
                 // Remove placeholders owned by me immediately
-                try {                        
-                    getDb().delete(entry.getKey(), entry.getValue().optString("_rev"));
-                    if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, tt + "removed my placeholder " + entry.getKey());
-                } catch (Exception e) {
-                    if (Collect.Log.ERROR) Log.e(Collect.LOGTAG, tt + "unable to remove my placeholder");
-                    e.printStackTrace();
-                }                                       
+                if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, tt + "removing my placeholder " + entry.getKey());
+                deletions.add(deletion);
             } else {
                 // Remove placeholders owned by other people if they are stale (older than a day)
-                SimpleDateFormat sdf = new SimpleDateFormat(Generic.DATETIME);
-                Calendar calendar = Calendar.getInstance();
-
                 try {
-                    calendar.setTime(sdf.parse(entry.getValue().optString("dateCreated")));
-
-                    if (calendar.getTimeInMillis() - Calendar.getInstance().getTimeInMillis() > TIME_24_HOURS) {
-                        try {                        
-                            getDb().delete(entry.getKey(), entry.getValue().optString("_rev"));
-                            if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, tt + "removed stale placeholder " + entry.getKey());
-                        } catch (Exception e) {
-                            if (Collect.Log.ERROR) Log.e(Collect.LOGTAG, tt + "unable to remove stale placeholder");
-                            e.printStackTrace();
-                        } 
+                    if (System.currentTimeMillis() - sdf.parse(entry.getValue().optString("dateCreated")).getTime() > TIME_24_HOURS) {
+                        if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, tt + "removing stale placeholder " + entry.getKey());
+                        deletions.add(deletion);
                     }                        
                 } catch (ParseException e1) {
                     if (Collect.Log.ERROR) Log.e(Collect.LOGTAG, tt + "unable to parse dateCreated: " + e1.toString());            
                     e1.printStackTrace();
                 }
             }
-        }                
+        }
+        
+        return deletions;
+    }
+    
+    /*
+     * Has a local database changed since this was last asked (e.g., has continuous replication brought anything in)?
+     */
+    private boolean hasLocalDbChanged(String db)
+    {
+        final String tt = t + "hasLocalDbChanged(): ";
+        
+        try {
+            Integer sequence = getDb(db).getDbInfo().getUpdateSeq();
+            Integer previous = mLocalUpdateSequences.put(db, sequence);
+            
+            return previous == null || !previous.equals(sequence);
+        } catch (Exception e) {
+            if (Collect.Log.WARN) Log.w(Collect.LOGTAG, tt + "unable to read update sequence of " + db + ": " + e.toString());
+            return true;
+        }
     }
     
     /*
      * Trigger a push/pull replication for each locally replicated database
+     * 
+     * In continuous mode replication of each database runs for as long as it can (this only makes sure that 
+     * it is running) and the sync schedule only applies to databases that cannot be replicated continuously.
      */
     private void synchronizeLocalDBs()
     {
@@ -678,6 +1461,15 @@ public class DatabaseService extends Service {
         // How often should we automatically synchronize databases?
         String syncInterval = settings.getString(PreferencesActivity.KEY_SYNCHRONIZATION_INTERVAL, Integer.toString(TIME_FIVE_MINUTES));
         
+        boolean continuous = settings.getBoolean(PreferencesActivity.KEY_CONTINUOUS_SYNCHRONIZATION, true);
+        
+        // Continuous replication must stop when we cannot replicate (the local server would otherwise keep trying)
+        if (!continuous 
+                || !Collect.getInstance().getIoService().isSignedIn() 
+                || Collect.getInstance().getInformOnlineState().isOfflineModeEnabled()) {
+            cancelContinuousReplications();
+        }
+        
         if (settings.getBoolean(PreferencesActivity.KEY_AUTOMATIC_SYNCHRONIZATION, true)) {
             Set<String> folderSet = Collect.getInstance().getInformOnlineState().getAccountFolders().keySet();
             Iterator<String> folderIds = folderSet.iterator();
@@ -686,28 +1478,83 @@ public class DatabaseService extends Service {
                 AccountFolder folder = Collect.getInstance().getInformOnlineState().getAccountFolders().get(folderIds.next());    
                 
                 if (folder.isReplicated()) {
+                    if (continuous && replicateContinuously(folder.getId())) {
+                        if (Collect.Log.DEBUG) Log.d(Collect.LOGTAG, tt + "continuous replication of " + folder.getName() + " is running");
+                        
+                        if (hasLocalDbChanged(folder.getId())) {
+                            recheckDesignDocuments(folder.getId());
+                            scheduleMaintenance(folder.getId());
+                        }
+                        
+                        continue;
+                    }
+                    
                     // Determine if this database needs to be replicated
-                    Long lastUpdate = mDbLastReplication.get(folder.getId());
+                    long lastUpdate = settings.getLong(CHECKPOINT_LAST_REPLICATION + folder.getId(), 0);
                     
-                    if (lastUpdate == null || System.currentTimeMillis() / 1000 - lastUpdate >= Integer.parseInt(syncInterval)) {
-                        mDbLastReplication.put(folder.getId(), new Long(System.currentTimeMillis() / 1000));
-                        
+                    if (System.currentTimeMillis() / 1000 - lastUpdate >= Integer.parseInt(syncInterval)) {
                         if (Collect.Log.INFO) Log.i(Collect.LOGTAG, tt + "about to begin automatic replication of " + folder.getName());
                         
-                        try {                    
-                            replicate(folder.getId(), REPLICATE_PULL);
-                            replicate(folder.getId(), REPLICATE_PUSH);
-                        } catch (Exception e) {
-                            if (Collect.Log.WARN) Log.w(Collect.LOGTAG, tt + "problem replicating " + folder.getId() + ": " + e.toString());
-                            e.printStackTrace();
-                        }
+                        // Queued so that one slow or failing folder does not hold up the others
+                        mReplicationScheduler.schedule(folder.getId(), true, true, false);
                     } else {
                         if (Collect.Log.DEBUG) Log.d(Collect.LOGTAG, tt + "skipping automatic replication of " + folder.getName() + ": last synchronization too recent");
                     }
+                } else {
+                    cancelContinuousReplication(folder.getId());
                 }
             }
         } else {
             if (Collect.Log.DEBUG) Log.d(Collect.LOGTAG, tt + "skipping (automatic synchronization disabled)");
+            cancelContinuousReplications();
         }
+        
+        if (!mContinuousReplications.isEmpty())
+            sampleActiveTasks();
+    }
+    
+    /*
+     * Record the progress of running continuous replications as reported by the local server
+     */
+    private void sampleActiveTasks()
+    {
+        final String tt = t + "sampleActiveTasks(): ";
+        
+        HttpResponse response = null;
+        
+        try {
+            response = mLocalDbInstance.getConnection().get("/_active_tasks");
+            JSONArray tasks = (JSONArray) new JSONTokener(IOUtils.toString(response.getContent(), "UTF-8")).nextValue();
+            mReplicationMetrics.recordActiveTasks(tasks, mLocalHost + ":" + mLocalPort + "/", System.currentTimeMillis());
+        } catch (Exception e) {
+            if (Collect.Log.WARN) Log.w(Collect.LOGTAG, tt + "unable to read active tasks: " + e.toString());
+        } finally {
+            if (response != null)
+                response.releaseConnection();
+        }
+    }
+    
+    private Object getReplicationLock(String db)
+    {
+        Object lock = mReplicationLocks.get(db);
+        
+        if (lock == null) {
+            mReplicationLocks.putIfAbsent(db, new Object());
+            lock = mReplicationLocks.get(db);
+        }
+        
+        return lock;
+    }
+    
+    /*
+     * Record when a database was last replicated successfully (persisted so that the 
+     * sync schedule is honoured across restarts of this service)
+     */
+    private void setCheckpoint(String db)
+    {
+        PreferenceManager.getDefaultSharedPreferences(Collect.getInstance().getBaseContext())
+            .edit()
+            .putLong(CHECKPOINT_LAST_REPLICATION + db, System.currentTimeMillis() / 1000)
+            .commit();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,885 @@
+/*
+ * Copyright (C) 2009 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.radicaldynamic.groupinform.services;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.entity.mime.MultipartEntity;
+import org.apache.http.entity.mime.content.ContentBody;
+import org.apache.http.entity.mime.content.StringBody;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.ektorp.Attachment;
+import org.ektorp.CouchDbConnector;
+import org.ektorp.DbAccessException;
+import org.ektorp.DocumentNotFoundException;
+import org.ektorp.DocumentOperationResult;
+
+import com.radicaldynamic.groupinform.application.Collect;
+import com.radicaldynamic.groupinform.documents.FormInstance;
+import com.radicaldynamic.groupinform.documents.Generic;
+import com.radicaldynamic.groupinform.logic.ODKInstanceAttributes;
+import com.radicaldynamic.groupinform.utilities.AttachmentBody;
+
+import com.radicaldynamic.groupinform.R;
+import org.odk.collect.android.preferences.PreferencesActivity;
+import org.odk.collect.android.utilities.WebUtils;
+
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+import android.webkit.MimeTypeMap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads completed forms (the upload code of ODK Collect's InstanceUploaderTask).  Used by
+ * InstanceUploaderTask when the user sends instances and by UploadQueue when they are retried
+ * in the background, so it has no ties to the UI thread.
+ *
+ * @author Carl Hartung (carlhartung@gmail.com)
+ */
+public class InstanceUploader {
+
+    private static String t = "InstanceUploader";
+    private static final int CONNECTION_TIMEOUT = 30000;
+    private static final String fail = "Error: ";
+    private String mAuth = "";
+
+    // Number of upload status changes written to the database at a time
+    private static final int STATUS_BATCH_SIZE = 25;
+
+    private volatile URI mAuthRequestingServer;
+    private HashMap<String, String> mResults;
+
+    private String mDbName;
+    private CouchDbConnector mDb;
+
+    // Instances are queued until the server has accepted every post (see UploadQueue)
+    private UploadQueue mQueue;
+
+    /*
+     * Submissions are made by a pool of workers (sized by the transfer concurrency preference).  Each worker
+     * has its own HTTP client (clients are not thread safe) and its own context layered over the shared
+     * context so that authentication and cookies are still retained across all of them.
+     */
+    private List<HttpClient> mHttpClients = Collections.synchronizedList(new ArrayList<HttpClient>());
+
+    private ThreadLocal<HttpClient> mHttpClient = new ThreadLocal<HttpClient>() {
+        @Override
+        protected HttpClient initialValue() {
+            HttpClient httpclient = WebUtils.createHttpClient(CONNECTION_TIMEOUT);
+            mHttpClients.add(httpclient);
+            return httpclient;
+        }
+    };
+
+    private ThreadLocal<HttpContext> mHttpContext = new ThreadLocal<HttpContext>() {
+        @Override
+        protected HttpContext initialValue() {
+            return new BasicHttpContext(Collect.getInstance().getHttpContext());
+        }
+    };
+
+    // Outcome of the HEAD request made for each submission URI (shared by all workers so that it is only made once)
+    private ConcurrentHashMap<URI, FutureTask<Discovery>> mDiscoveries = new ConcurrentHashMap<URI, FutureTask<Discovery>>();
+
+    // Instances with upload status changes that have yet to be written to the database
+    private List<FormInstance> mStatusUpdates = new ArrayList<FormInstance>();
+
+    /*
+     * Where and how submissions for a given URI should be made (or why they cannot be made)
+     */
+    private static class Discovery {
+        URI uri;
+        boolean openRosaServer = false;
+        boolean authRequired = false;
+        String failure = null;
+
+        Discovery(URI uri) {
+            this.uri = uri;
+        }
+    }
+
+    /*
+     * Lets the sender follow progress and cancel (InstanceUploaderTask)
+     */
+    public interface ProgressListener {
+        void uploadProgress(int done, int total);
+
+        boolean isUploadCancelled();
+    }
+
+    private ProgressListener mListener;
+
+    public InstanceUploader(String auth, ProgressListener listener) {
+        mAuth = auth;
+        mListener = listener;
+    }
+
+
+    /*
+     * Results of the last send (including any made before the server asked for authentication)
+     */
+    public HashMap<String, String> getResults() {
+        return mResults;
+    }
+
+
+    /*
+     * Server that asked for authentication during the last send (null if none did)
+     */
+    public URI getAuthRequestingServer() {
+        return mAuthRequestingServer;
+    }
+
+
+    // BEGIN custom
+    /*
+     * Send instances from a folder and return the result for each (null if the server asked for authentication)
+     */
+    public HashMap<String, String> send(String db, String... values) {
+        mResults = new HashMap<String, String>();
+        mDbName = db;
+        mDb = Collect.getInstance().getDbService().getDb(db);
+        mQueue = Collect.getInstance().getDbService().getUploadQueue();
+
+        if (mDb == null) {
+            for (String id : values) {
+                setResult(id, fail + "error: could not acess database " + db);
+            }
+
+            return mResults;
+        }
+
+        // Queued up front so that instances which are never started on are still retried later
+        mQueue.add(db, values);
+
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(Collect.getInstance());
+        int concurrency;
+
+        try {
+            concurrency = Integer.parseInt(settings.getString(
+                    com.radicaldynamic.gcmobile.android.preferences.PreferencesActivity.KEY_TRANSFER_CONCURRENCY,
+                    com.radicaldynamic.gcmobile.android.preferences.PreferencesActivity.DEFAULT_TRANSFER_CONCURRENCY));
+        } catch (NumberFormatException e) {
+            concurrency = Integer.parseInt(com.radicaldynamic.gcmobile.android.preferences.PreferencesActivity.DEFAULT_TRANSFER_CONCURRENCY);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(concurrency, values.length)));
+        CompletionService<String> submissions = new ExecutorCompletionService<String>(pool);
+
+        // Instances that no worker has started on yet
+        final Set<String> notStarted = Collections.synchronizedSet(new HashSet<String>(Arrays.asList(values)));
+
+        try {
+            for (final String id : values) {
+                submissions.submit(new Callable<String>() {
+                    public String call() {
+                        notStarted.remove(id);
+                        submit(id);
+                        return id;
+                    }
+                });
+            }
+
+            // Report progress as each instance is finished with (in whatever order that happens)
+            for (int i = 0; i < values.length; i++) {
+                if (mListener != null && mListener.isUploadCancelled()) {
+                    return mResults;
+                }
+
+                submissions.take();
+
+                if (mAuthRequestingServer != null) {
+                    // we need authentication, so stop and return what we've
+                    // done so far.
+                    return null;
+                }
+
+                if (mListener != null) {
+                    mListener.uploadProgress(i + 1, values.length);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Cancelled
+        } finally {
+            // Submissions already under way are allowed to finish so that their results are recorded,
+            // those that have yet to start are dropped (they stay queued and are sent later)
+            pool.shutdownNow();
+
+            try {
+                pool.awaitTermination(CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // Give up waiting
+            }
+
+            synchronized (notStarted) {
+                for (String id : notStarted) {
+                    setResult(id, fail + "Upload cancelled");
+                }
+            }
+
+            for (HttpClient httpclient : new ArrayList<HttpClient>(mHttpClients)) {
+                httpclient.getConnectionManager().shutdown();
+            }
+
+            writeStatusUpdates(true);
+        }
+        // END custom
+
+        return mResults;
+    }
+
+
+    // BEGIN custom
+    /*
+     * Upload a single instance (called by the workers)
+     */
+    private void submit(String id) {
+        if (!mQueue.claim(mDbName, id)) {
+            setResult(id, fail + "already being sent");
+            return;
+        }
+
+        try {
+            upload(id);
+        } catch (Exception e) {
+            if (Collect.Log.ERROR) Log.e(Collect.LOGTAG, t + "unexpected exception: " + e.toString());
+            e.printStackTrace();
+            setResult(id, fail + "unexpected error :: details: " + e.getMessage());
+            mQueue.failed(mDbName, id);
+        } finally {
+            // Anything that was not sent in full stays queued
+            mQueue.release(mDbName, id);
+        }
+    }
+
+
+    private void upload(String id) {
+        HttpContext localContext = mHttpContext.get();
+        HttpClient httpclient = mHttpClient.get();
+
+        if (mAuthRequestingServer != null) {
+            // Another submission is waiting on authentication; this one will be retried once it has been given
+            return;
+        }
+
+        FormInstance instanceDoc = null;
+
+        try {
+            instanceDoc = mDb.get(FormInstance.class, id);
+        } catch (DocumentNotFoundException e) {
+            if (Collect.Log.WARN) Log.w(Collect.LOGTAG, t + "unable to retrieve instance: " + e.toString());
+            setResult(id, fail + "warning: document not found :: details: " + e.getMessage());
+            mQueue.remove(mDbName, id);
+            return;
+        } catch (DbAccessException e) {
+            if (Collect.Log.WARN) Log.w(Collect.LOGTAG, t + "unable to access database: " + e.toString());
+            setResult(id, fail + "error: could not acess database :: details: " + e.getMessage());
+            mQueue.failed(mDbName, id);
+            return;
+        }
+
+        String urlString = instanceDoc.getOdk().getUploadUri();
+        // END custom
+
+        if (urlString == null) {
+            SharedPreferences settings =
+                PreferenceManager.getDefaultSharedPreferences(Collect.getInstance());
+            urlString = settings.getString(PreferencesActivity.KEY_SERVER_URL, Collect.getInstance().getString(R.string.default_server_url));
+            String submissionUrl =
+                settings.getString(PreferencesActivity.KEY_SUBMISSION_URL, "/submission");
+            urlString = urlString + submissionUrl;
+        }
+
+        URI u = null;
+        try {
+            URL url = new URL(URLDecoder.decode(urlString, "utf-8"));
+            u = url.toURI();
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+            // BEGIN custom
+            setResult(id, fail + "invalid url: " + urlString + " :: details: " + e.getMessage());
+            setUploadFailed(instanceDoc);
+            // END custom
+            return;
+        } catch (URISyntaxException e) {
+            e.printStackTrace();
+            // BEGIN custom
+            setResult(id, fail + "invalid uri: " + urlString + " :: details: " + e.getMessage());
+            setUploadFailed(instanceDoc);
+            // END custom
+            return;
+        } catch (UnsupportedEncodingException e) {
+            e.printStackTrace();
+            // BEGIN custom
+            setResult(id, fail + "invalid url: " + urlString + " :: details: " + e.getMessage());
+            setUploadFailed(instanceDoc);
+            // END custom
+            return;
+        }
+
+        // BEGIN custom
+        Discovery discovery = discover(u, httpclient, localContext);
+
+        if (discovery.authRequired) {
+            mAuthRequestingServer = u;
+            mQueue.failed(mDbName, id);
+            return;
+        } else if (discovery.failure != null) {
+            setResult(id, discovery.failure);
+            setUploadFailed(instanceDoc);
+            return;
+        }
+
+        boolean openRosaServer = discovery.openRosaServer;
+        u = discovery.uri;
+        // END custom
+
+        // At this point, we may have updated the uri to use https.
+        // This occurs only if the Location header keeps the host name
+        // the same. If it specifies a different host name, we error
+        // out.
+        //
+        // And we may have set authentication cookies in our
+        // cookiestore (referenced by localContext) that will enable
+        // authenticated publication to the server.
+        //
+        // BEGIN custom
+        // Attachments are streamed from the database as they are sent (see AttachmentBody) rather than copied to disk first
+        Map<String, Attachment> attachments = instanceDoc.getAttachments();
+
+        if (attachments == null)
+            attachments = new HashMap<String, Attachment>();
+        // END custom
+
+        // get instance file
+        // BEGIN custom
+//        File instanceFile = new File(instance);
+        Attachment instanceFile = attachments.get("xml");
+
+        // ODK code below expects the XML instance to have a .xml extension
+        String instanceFileName = id + ".xml";
+        // END custom
+
+        // BEGIN custom
+//        if (!instanceFile.exists()) {
+        if (instanceFile == null) {
+            setResult(id, fail + "instance XML file does not exist!");
+            setUploadFailed(instanceDoc);
+            return;
+        }
+        // END custom
+
+        // BEGIN custom
+//        // find all files in parent directory
+//        File[] allFiles = instanceFile.getParentFile().listFiles();
+//
+//        // add media files
+//        List<File> files = new ArrayList<File>();
+//        for (File f : allFiles) {
+//            String fileName = f.getName();
+
+        // add media files
+        List<String> files = new ArrayList<String>();
+        for (String fileName : attachments.keySet()) {
+        // END custom
+
+            int dotIndex = fileName.lastIndexOf(".");
+            String extension = "";
+            if (dotIndex != -1) {
+                extension = fileName.substring(dotIndex + 1);
+            }
+
+            if (fileName.startsWith(".")) {
+                // ignore invisible files
+                continue;
+            }
+            // BEGIN custom
+//            if (fileName.equals(instanceFile.getName())) {
+            if (fileName.equals("xml")) {
+            // END custom
+                continue; // the xml file has already been added
+            } else if (openRosaServer) {
+                files.add(fileName);
+            } else if (extension.equals("jpg")) { // legacy 0.9x
+                files.add(fileName);
+            } else if (extension.equals("3gpp")) { // legacy 0.9x
+                files.add(fileName);
+            } else if (extension.equals("3gp")) { // legacy 0.9x
+                files.add(fileName);
+            } else if (extension.equals("mp4")) { // legacy 0.9x
+                files.add(fileName);
+            } else {
+                Log.w(t, "unrecognized file type " + fileName);
+            }
+        }
+
+        // BEGIN custom
+        // Posts are planned once per attachment content so that an interrupted submission resumes where it left off
+        String content = getAttachmentContent(attachments);
+        List<List<String>> parts = mQueue.getParts(mDbName, id, content);
+
+        if (parts == null) {
+            parts = planParts(files, attachments, instanceFile.getContentLength());
+            mQueue.setParts(mDbName, id, content, parts);
+        }
+
+//        boolean first = true;
+//        int j = 0;
+//        while (j < files.size() || first) {
+//            first = false;
+        for (int p = 0; p < parts.size(); p++) {
+            if (mQueue.isAcknowledged(mDbName, id, p)) {
+                if (Collect.Log.DEBUG) Log.d(Collect.LOGTAG, t + ": skipping post " + (p + 1) + " of " + parts.size() + " for " + id + " (already accepted)");
+                continue;
+            }
+
+            files = parts.get(p);
+            int j = 0;
+        // END custom
+
+            HttpPost httppost = WebUtils.createOpenRosaHttpPost(u, mAuth);
+
+            MimeTypeMap m = MimeTypeMap.getSingleton();
+
+            // mime post
+            MultipartEntity entity = new MultipartEntity();
+
+            // add the submission file first...
+            // BEGIN custom
+//            FileBody fb = new FileBody(instanceFile, "text/xml");
+            ContentBody fb = new AttachmentBody(mDb, id, "xml", instanceFileName, "text/xml", instanceFile.getContentLength());
+            entity.addPart("xml_submission_file", fb);
+            Log.i(t, "added xml_submission_file: " + instanceFileName);
+            // END custom
+
+            for (; j < files.size(); j++) {
+                // BEGIN custom
+//                File f = files.get(j);
+//                String fileName = f.getName();
+                String fileName = files.get(j);
+                long fileLength = attachments.get(fileName).getContentLength();
+                // END custom
+                int idx = fileName.lastIndexOf(".");
+                String extension = "";
+                if (idx != -1) {
+                    extension = fileName.substring(idx + 1);
+                }
+                String contentType = m.getMimeTypeFromExtension(extension);
+
+                // we will be processing every one of these, so
+                // we only need to deal with the content type determination...
+                if (extension.equals("xml")) {
+                    fb = new AttachmentBody(mDb, id, fileName, fileName, "text/xml", fileLength);
+                    entity.addPart(fileName, fb);
+                    Log.i(t, "added xml file " + fileName);
+                } else if (extension.equals("jpg")) {
+                    fb = new AttachmentBody(mDb, id, fileName, fileName, "image/jpeg", fileLength);
+                    entity.addPart(fileName, fb);
+                    Log.i(t, "added image file " + fileName);
+                } else if (extension.equals("3gpp")) {
+                    fb = new AttachmentBody(mDb, id, fileName, fileName, "audio/3gpp", fileLength);
+                    entity.addPart(fileName, fb);
+                    Log.i(t, "added audio file " + fileName);
+                } else if (extension.equals("3gp")) {
+                    fb = new AttachmentBody(mDb, id, fileName, fileName, "video/3gpp", fileLength);
+                    entity.addPart(fileName, fb);
+                    Log.i(t, "added video file " + fileName);
+                } else if (extension.equals("mp4")) {
+                    fb = new AttachmentBody(mDb, id, fileName, fileName, "video/mp4", fileLength);
+                    entity.addPart(fileName, fb);
+                    Log.i(t, "added video file " + fileName);
+                } else if (extension.equals("csv")) {
+                    fb = new AttachmentBody(mDb, id, fileName, fileName, "text/csv", fileLength);
+                    entity.addPart(fileName, fb);
+                    Log.i(t, "added csv file " + fileName);
+                } else if (fileName.endsWith(".amr")) {
+                    fb = new AttachmentBody(mDb, id, fileName, fileName, "audio/amr", fileLength);
+                    entity.addPart(fileName, fb);
+                    Log.i(t, "added audio file " + fileName);
+                } else if (extension.equals("xls")) {
+                    fb = new AttachmentBody(mDb, id, fileName, fileName, "application/vnd.ms-excel", fileLength);
+                    entity.addPart(fileName, fb);
+                    Log.i(t, "added xls file " + fileName);
+                } else if (contentType != null) {
+                    fb = new AttachmentBody(mDb, id, fileName, fileName, contentType, fileLength);
+                    entity.addPart(fileName, fb);
+                    Log.i(t,
+                        "added recognized filetype (" + contentType + ") " + fileName);
+                } else {
+                    contentType = "application/octet-stream";
+                    fb = new AttachmentBody(mDb, id, fileName, fileName, contentType, fileLength);
+                    entity.addPart(fileName, fb);
+                    Log.w(t, "added unrecognized file (" + contentType + ") " + fileName);
+                }
+            }
+
+            // BEGIN custom
+//                // we've added at least one attachment to the request...
+//                if (j + 1 < files.size()) {
+//                    if (byteCount + files.get(j + 1).length() > 10000000L) {
+            if (p + 1 < parts.size()) {
+            // END custom
+                // the next file would exceed the 10MB threshold...
+                Log.i(t, "Extremely long post is being split into multiple posts");
+                try {
+                    StringBody sb = new StringBody("yes", Charset.forName("UTF-8"));
+                    entity.addPart("*isIncomplete*", sb);
+                } catch (Exception e) {
+                    e.printStackTrace(); // never happens...
+                }
+            }
+
+            httppost.setEntity(entity);
+
+            // prepare response and return uploaded
+            HttpResponse response = null;
+            try {
+                response = httpclient.execute(httppost, localContext);
+                int responseCode = response.getStatusLine().getStatusCode();
+
+                try {
+                    // have to read the stream in order to reuse the connection
+                    InputStream is = response.getEntity().getContent();
+                    // read to end of stream...
+                    final long count = 1024L;
+                    while (is.skip(count) == count)
+                        ;
+                    is.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                Log.i(t, "Response code:" + responseCode);
+                // verify that the response was a 201 or 202.
+                // If it wasn't, the submission has failed.
+                if (responseCode != 201 && responseCode != 202) {
+                    // BEGIN custom
+                    if (responseCode == 200) {
+                        setResult(id, fail + "Network login failure? Again?");
+                    } else {
+                        setResult(id, fail + response.getStatusLine().getReasonPhrase()
+                                + " (" + responseCode + ") at " + urlString);
+                    }
+
+                    setUploadFailed(instanceDoc);
+                    // END custom
+                    return;
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                // BEGIN custom
+                setResult(id, fail + "Generic Exception. " + e.getMessage());
+                setUploadFailed(instanceDoc);
+                // END custom
+                return;
+            }
+
+            // BEGIN custom
+            mQueue.acknowledge(mDbName, id, p);
+            // END custom
+        }
+
+        // if it got here, it must have worked
+        // BEGIN custom
+        setResult(id, Collect.getInstance().getString(R.string.success));
+        mQueue.completed(mDbName, id);
+
+        instanceDoc.getOdk().setUploadStatus(ODKInstanceAttributes.UploadStatus.complete);
+        instanceDoc.getOdk().setUploadDate(Generic.generateTimestamp());
+        addStatusUpdate(instanceDoc);
+        // END custom
+    }
+
+
+    // BEGIN custom
+    /*
+     * Split attachments between posts so that no post exceeds 10MB (every post carries the instance
+     * XML and at least one attachment, except for the only post of an instance without attachments)
+     */
+    private List<List<String>> planParts(List<String> files, Map<String, Attachment> attachments, long instanceLength) {
+        List<List<String>> parts = new ArrayList<List<String>>();
+        List<String> part = new ArrayList<String>();
+        long byteCount = instanceLength;
+
+        for (String fileName : files) {
+            long fileLength = attachments.get(fileName).getContentLength();
+
+            // the next file would exceed the 10MB threshold...
+            if (!part.isEmpty() && byteCount + fileLength > 10000000L) {
+                parts.add(part);
+                part = new ArrayList<String>();
+                byteCount = instanceLength;
+            }
+
+            part.add(fileName);
+            byteCount += fileLength;
+        }
+
+        parts.add(part);
+
+        return parts;
+    }
+
+
+    /*
+     * Describe the attachments of an instance by name, revision position and length.  This only changes when
+     * an attachment does (and not when upload status is written to the document after a failed attempt).
+     */
+    private static String getAttachmentContent(Map<String, Attachment> attachments) {
+        StringBuilder content = new StringBuilder();
+
+        for (String name : new TreeSet<String>(attachments.keySet())) {
+            Attachment a = attachments.get(name);
+            content.append(name).append(':').append(a.getRevpos()).append(':').append(a.getContentLength()).append(';');
+        }
+
+        return content.toString();
+    }
+
+
+    /*
+     * Find out where submissions for a URI should be made.  Only one HEAD request is made per URI:
+     * other workers wanting the same URI wait for its outcome.  Failures are forgotten once they have
+     * been reported so that later submissions try again.
+     */
+    private Discovery discover(final URI u, final HttpClient httpclient, final HttpContext localContext) {
+        FutureTask<Discovery> discovery = new FutureTask<Discovery>(new Callable<Discovery>() {
+            public Discovery call() {
+                return head(u, httpclient, localContext);
+            }
+        });
+
+        FutureTask<Discovery> existing = mDiscoveries.putIfAbsent(u, discovery);
+
+        if (existing == null) {
+            discovery.run();
+        } else {
+            discovery = existing;
+        }
+
+        Discovery result;
+
+        try {
+            result = discovery.get();
+        } catch (InterruptedException e) {
+            result = new Discovery(u);
+            result.failure = fail + "Upload cancelled";
+        } catch (ExecutionException e) {
+            result = new Discovery(u);
+            result.failure = fail + "Generic Exception";
+        }
+
+        if (result.failure != null || result.authRequired)
+            mDiscoveries.remove(u, discovery);
+
+        return result;
+    }
+
+
+    /*
+     * Issue the HEAD request that tells us whether this is an OpenRosa server and where submissions should go
+     */
+    private Discovery head(URI u, HttpClient httpclient, HttpContext localContext) {
+        Discovery discovery = new Discovery(u);
+        // END custom
+
+        // we need to issue a head request
+        HttpHead httpHead = WebUtils.createOpenRosaHttpHead(u);
+
+        // prepare response
+        HttpResponse response = null;
+        try {
+            response = httpclient.execute(httpHead, localContext);
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode == 401) {
+                // we need authentication, so stop and return what we've
+                // done so far.
+                // BEGIN custom
+                discovery.authRequired = true;
+                // END custom
+            } else if (statusCode == 204) {
+                Header[] locations = response.getHeaders("Location");
+                if (locations != null && locations.length == 1) {
+                    try {
+                        URL url =
+                            new URL(URLDecoder.decode(locations[0].getValue(), "utf-8"));
+                        URI uNew = url.toURI();
+                        if (u.getHost().equalsIgnoreCase(uNew.getHost())) {
+                            // trust the server to tell us a new location
+                            // ... and possibly to use https instead.
+                            // BEGIN custom
+                            discovery.openRosaServer = true;
+                            discovery.uri = uNew;
+                            // END custom
+                        } else {
+                            // Don't follow a redirection attempt to a different host.
+                            // We can't tell if this is a spoof or not.
+                            // BEGIN custom
+                            discovery.failure = fail
+                                    + "Unexpected redirection attempt to a different host: "
+                                    + uNew.toString();
+                            // END custom
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        // BEGIN custom
+                        discovery.failure = fail + u.toString() + " " + e.getMessage();
+                        // END custom
+                    }
+                }
+            } else {
+                // may be a server that does not handle
+                try {
+                    // have to read the stream in order to reuse the connection
+                    InputStream is = response.getEntity().getContent();
+                    // read to end of stream...
+                    final long count = 1024L;
+                    while (is.skip(count) == count)
+                        ;
+                    is.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+
+                Log.w(t, "Status code on Head request: " + statusCode);
+                if (statusCode >= 200 && statusCode <= 299) {
+                    // BEGIN custom
+                    discovery.failure = fail
+                            + "Invalid status code on Head request.  If you have a web proxy, you may need to login to your network. ";
+                    // END custom
+                }
+            }
+        } catch (ClientProtocolException e) {
+            e.printStackTrace();
+            Log.e(t, e.getMessage());
+            // BEGIN custom
+            discovery.failure = fail + "Client Protocol Exception";
+            // END custom
+        } catch (ConnectTimeoutException e) {
+            e.printStackTrace();
+            Log.e(t, e.getMessage());
+            // BEGIN custom
+            discovery.failure = fail + "Connection Timeout";
+            // END custom
+        } catch (UnknownHostException e) {
+            e.printStackTrace();
+            // BEGIN custom
+            discovery.failure = fail + e.getMessage() + " :: Network Connection Failed";
+            // END custom
+            Log.e(t, e.getMessage());
+        } catch (Exception e) {
+            e.printStackTrace();
+            // BEGIN custom
+            discovery.failure = fail + "Generic Exception";
+            // END custom
+            Log.e(t, e.getMessage());
+        }
+
+        return discovery;
+    }
+
+
+    // BEGIN custom
+    private void setResult(String id, String result) {
+        synchronized (mResults) {
+            mResults.put(id, result);
+        }
+    }
+
+
+    private void setUploadFailed(FormInstance instanceDoc) {
+        mQueue.failed(mDbName, instanceDoc.getId());
+        instanceDoc.getOdk().setUploadStatus(ODKInstanceAttributes.UploadStatus.failed);
+        addStatusUpdate(instanceDoc);
+    }
+
+
+    /*
+     * Upload status changes are written to the database in batches rather than one document at a time
+     */
+    private void addStatusUpdate(FormInstance instanceDoc) {
+        synchronized (mStatusUpdates) {
+            mStatusUpdates.add(instanceDoc);
+        }
+
+        writeStatusUpdates(false);
+    }
+
+
+    private void writeStatusUpdates(boolean all) {
+        List<FormInstance> batch;
+
+        synchronized (mStatusUpdates) {
+            if (mStatusUpdates.isEmpty() || (!all && mStatusUpdates.size() < STATUS_BATCH_SIZE)) {
+                return;
+            }
+
+            batch = new ArrayList<FormInstance>(mStatusUpdates);
+            mStatusUpdates.clear();
+        }
+
+        try {
+            // Only documents that could not be updated are reported back
+            for (DocumentOperationResult result : mDb.executeBulk(batch)) {
+                if (result.isErroneous()) {
+                    if (Collect.Log.ERROR) Log.e(Collect.LOGTAG, t + ": could not record upload status for " + result.getId() + ": " + result.getError());
+                }
+            }
+        } catch (Exception e) {
+            if (Collect.Log.ERROR) Log.e(Collect.LOGTAG, t + ": could not record upload status of " + batch.size() + " instances: " + e.toString());
+            e.printStackTrace();
+        }
+    }
+    // END custom
+}
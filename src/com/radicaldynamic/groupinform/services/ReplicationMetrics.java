@@ -0,0 +1,273 @@
+package com.radicaldynamic.groupinform.services;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.ektorp.ReplicationStatus;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import android.util.Log;
+
+import com.radicaldynamic.groupinform.application.Collect;
+
+/*
+ * Bounded history of replication samples (one per one-shot replication and one per observation of
+ * a running continuous replication) with per folder and direction totals for tuning sync intervals.
+ *
+ * The numbers are those reported by the local CouchDB: the session history returned by _replicate and
+ * the progress of running replications listed by _active_tasks.  CouchDB does not report the number of
+ * bytes transferred by a replication so these are not recorded.
+ */
+public class ReplicationMetrics
+{
+    private static final String t = "ReplicationMetrics: ";
+
+    // Number of samples kept (older samples are overwritten)
+    private static final int CAPACITY = 256;
+
+    // Progress of continuous replications, e.g., "Processed source update #310" or "Processed 120 / 310 changes"
+    private static final Pattern TASK_PROGRESS = Pattern.compile("(\\d+)(?:\\s*/\\s*\\d+)?\\D*$");
+
+    private Sample [] mSamples = new Sample[CAPACITY];
+    private int mNext = 0;
+    private int mCount = 0;
+
+    // Last progress reported by _active_tasks for each continuous replication (keyed by database and mode)
+    private Map<String, Integer> mTaskProgress = new HashMap<String, Integer>();
+
+    public static class Sample
+    {
+        public final String db;
+        public final int mode;
+        public final boolean continuous;
+        public final long started;
+
+        public long duration = 0;
+        public int docsRead = 0;
+        public int docsWritten = 0;
+        public int docWriteFailures = 0;
+        public int missingChecked = 0;
+        public boolean failed = false;
+
+        Sample(String db, int mode, boolean continuous, long started)
+        {
+            this.db = db;
+            this.mode = mode;
+            this.continuous = continuous;
+            this.started = started;
+        }
+    }
+
+    /*
+     * Totals over the samples that are still held for a folder and direction
+     */
+    public static class Summary
+    {
+        public int replications = 0;
+        public int failures = 0;
+        public long duration = 0;
+        public int docsRead = 0;
+        public int docsWritten = 0;
+        public int docWriteFailures = 0;
+        public long lastStarted = 0;
+    }
+
+    /*
+     * Record the outcome of a one-shot replication (status is null if the replication failed outright)
+     */
+    public void recordReplication(String db, int mode, long started, ReplicationStatus status)
+    {
+        Sample s = new Sample(db, mode, false, started);
+        s.duration = System.currentTimeMillis() - started;
+
+        if (status == null || (!status.isOk() && !status.isNoChanges())) {
+            s.failed = true;
+        } else if (status.getHistory() != null) {
+            // Use the history entry of this session (the most recent entry if it cannot be found)
+            for (ReplicationStatus.History h : status.getHistory()) {
+                if (h.getSessionId() == null || h.getSessionId().equals(status.getSessionId())) {
+                    s.docsRead = h.getDocsRead();
+                    s.docsWritten = h.getDocsWritten();
+                    s.docWriteFailures = h.getDocWriteFailures();
+                    s.missingChecked = h.getMissingChecked();
+                    break;
+                }
+            }
+        }
+
+        record(s);
+    }
+
+    /*
+     * Record the progress of continuous replications listed in the output of _active_tasks.  The local database
+     * URL prefix is used to tell pushes (local source) from pulls.
+     */
+    public void recordActiveTasks(JSONArray tasks, String localServer, long sampled)
+    {
+        final String tt = t + "recordActiveTasks(): ";
+
+        for (int i = 0; i < tasks.length(); i++) {
+            JSONObject task = tasks.optJSONObject(i);
+
+            if (task == null || !task.optString("type").equalsIgnoreCase("replication"))
+                continue;
+
+            String source;
+            String target;
+
+            // Newer versions of CouchDB report source and target separately, older ones within the task description
+            if (task.has("source") && task.has("target")) {
+                source = task.optString("source");
+                target = task.optString("target");
+            } else {
+                String description = task.optString("task");
+                int arrow = description.indexOf(" -> ");
+
+                if (arrow == -1)
+                    continue;
+
+                source = description.substring(0, arrow);
+                target = description.substring(arrow + 4);
+            }
+
+            int mode = source.indexOf(localServer) != -1 ? DatabaseService.REPLICATE_PUSH : DatabaseService.REPLICATE_PULL;
+            String db = getDatabaseName(mode == DatabaseService.REPLICATE_PUSH ? source : target);
+
+            if (db == null)
+                continue;
+
+            int docsRead;
+            int docsWritten;
+            int docWriteFailures = task.optInt("doc_write_failures", 0);
+
+            if (task.has("docs_written")) {
+                docsRead = task.optInt("docs_read", 0);
+                docsWritten = task.optInt("docs_written", 0);
+            } else {
+                Matcher m = TASK_PROGRESS.matcher(task.optString("status"));
+
+                if (!m.find())
+                    continue;
+
+                // Only the number of changes processed is known
+                docsRead = Integer.parseInt(m.group(1));
+                docsWritten = docsRead;
+            }
+
+            synchronized (this) {
+                // Counters are cumulative for the life of the replication so record the change since the last sample
+                Integer previous = mTaskProgress.put(db + ":" + mode, docsWritten);
+                int baseline = previous == null || previous > docsWritten ? 0 : previous;
+
+                if (previous != null && docsWritten == previous)
+                    continue;
+
+                Sample s = new Sample(db, mode, true, sampled);
+                s.docsRead = Math.max(0, docsRead - baseline);
+                s.docsWritten = docsWritten - baseline;
+                s.docWriteFailures = docWriteFailures;
+                record(s);
+            }
+
+            if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, tt + "continuous replication of " + db + " has written " + docsWritten + " documents");
+        }
+    }
+
+    /*
+     * Samples from oldest to newest
+     */
+    public synchronized List<Sample> getSamples()
+    {
+        List<Sample> samples = new ArrayList<Sample>(mCount);
+
+        for (int i = 0; i < mCount; i++)
+            samples.add(mSamples[(mNext - mCount + i + CAPACITY) % CAPACITY]);
+
+        return samples;
+    }
+
+    public synchronized Summary getSummary(String db, int mode)
+    {
+        Summary summary = new Summary();
+
+        for (Sample s : getSamples()) {
+            if (!s.db.equals(db) || s.mode != mode)
+                continue;
+
+            summary.replications++;
+            summary.duration += s.duration;
+            summary.docsRead += s.docsRead;
+            summary.docsWritten += s.docsWritten;
+            summary.docWriteFailures += s.docWriteFailures;
+            summary.lastStarted = Math.max(summary.lastStarted, s.started);
+
+            if (s.failed)
+                summary.failures++;
+        }
+
+        return summary;
+    }
+
+    /*
+     * Write all samples to a CSV file (for debugging and for comparing devices)
+     */
+    public void export(File file) throws IOException
+    {
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+        FileWriter writer = new FileWriter(file);
+
+        try {
+            writer.write("db,direction,continuous,started,duration_ms,docs_read,docs_written,doc_write_failures,missing_checked,failed\n");
+
+            for (Sample s : getSamples()) {
+                writer.write(s.db
+                        + "," + (s.mode == DatabaseService.REPLICATE_PUSH ? "push" : "pull")
+                        + "," + s.continuous
+                        + "," + sdf.format(new Date(s.started))
+                        + "," + s.duration
+                        + "," + s.docsRead
+                        + "," + s.docsWritten
+                        + "," + s.docWriteFailures
+                        + "," + s.missingChecked
+                        + "," + s.failed
+                        + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private synchronized void record(Sample s)
+    {
+        mSamples[mNext] = s;
+        mNext = (mNext + 1) % CAPACITY;
+
+        if (mCount < CAPACITY)
+            mCount++;
+    }
+
+    /*
+     * Folder ID from a database URL or name such as http://host:5984/db_abc/
+     */
+    private static String getDatabaseName(String url)
+    {
+        int start = url.lastIndexOf("db_");
+
+        if (start == -1)
+            return null;
+
+        int end = url.indexOf('/', start);
+
+        return url.substring(start + 3, end == -1 ? url.length() : end);
+    }
+}
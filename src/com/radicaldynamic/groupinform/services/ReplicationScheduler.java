@@ -0,0 +1,430 @@
+package com.radicaldynamic.groupinform.services;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ektorp.ReplicationStatus;
+
+import android.util.Log;
+
+import com.radicaldynamic.groupinform.application.Collect;
+
+/*
+ * Runs one-shot replications on a small pool of workers so that a slow or failing folder does not hold
+ * up the others.  Each folder has its own queue: at most one replication of a folder runs at a time and
+ * a request is merged into a waiting replication that already covers the directions it asks for (so
+ * a pull-only request never causes a push).  Requests made by the user run ahead of background ones
+ * and the folder that the user is looking at runs ahead of the rest.
+ *
+ * Folders that fail to replicate are retried by the background schedule after an exponentially
+ * increasing delay (the user may still ask for them to be synchronized at any time).
+ */
+public class ReplicationScheduler
+{
+    private static final String t = "ReplicationScheduler: ";
+
+    // Number of replications that may run at the same time
+    private static final int MAX_CONCURRENT_REPLICATIONS = 2;
+
+    // Delay before a failed folder is retried (doubled for every consecutive failure up to the maximum)
+    private static final long BACKOFF_INITIAL = 30 * 1000;
+    private static final long BACKOFF_MAX = 60 * 60 * 1000;
+
+    private static final int PRIORITY_BACKGROUND = 0;
+    private static final int PRIORITY_SELECTED = 1;
+    private static final int PRIORITY_FOREGROUND = 2;
+
+    private DatabaseService mDbService;
+    private ThreadPoolExecutor mExecutor;
+
+    private Map<String, FolderState> mFolders = new HashMap<String, FolderState>();
+
+    // Used to keep requests of the same priority in the order that they were made
+    private AtomicLong mSequence = new AtomicLong();
+
+    /*
+     * Replication state and history of a single folder
+     */
+    private static class FolderState
+    {
+        // Replications waiting to run in order (only the first of these is ever in the executor's queue)
+        LinkedList<Job> pending = new LinkedList<Job>();
+        Job running = null;
+
+        int failures = 0;
+        long retryAt = 0;
+
+        long lastSynchronized = 0;
+        long lastDuration = 0;
+    }
+
+    ReplicationScheduler(DatabaseService dbService)
+    {
+        mDbService = dbService;
+
+        mExecutor = new ThreadPoolExecutor(
+                MAX_CONCURRENT_REPLICATIONS,
+                MAX_CONCURRENT_REPLICATIONS,
+                60, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger(1);
+
+                    public Thread newThread(Runnable r)
+                    {
+                        return new Thread(r, "ReplicationScheduler #" + mCount.getAndIncrement());
+                    }
+                });
+    }
+
+    /*
+     * Queue a replication of a folder in one or both directions.  Results are keyed by replication mode
+     * (DatabaseService.REPLICATE_PULL or REPLICATE_PUSH) and a direction is absent if it was not attempted
+     * or not requested.  A push is only attempted if the folder existed locally before any pull.
+     *
+     * Returns null if a background request was refused because the folder is backing off after a failure.
+     */
+    public synchronized Future<HashMap<Integer, ReplicationStatus>> schedule(String db, boolean pull, boolean push, boolean foreground)
+    {
+        final String tt = t + "schedule(): ";
+
+        FolderState state = getState(db);
+        int priority = getPriority(db, foreground);
+
+        if (!foreground && System.currentTimeMillis() < state.retryAt) {
+            if (Collect.Log.DEBUG) Log.d(Collect.LOGTAG, tt + "skipping " + db + ": backing off after " + state.failures + " failure(s)");
+            return null;
+        }
+
+        Job job = null;
+
+        for (Job waiting : state.pending) {
+            if ((waiting.replication.pull || !pull) && (waiting.replication.push || !push)) {
+                job = waiting;
+                break;
+            }
+        }
+
+        if (job == null) {
+            job = new Job(new Replication(db, pull, push, priority, mSequence.getAndIncrement()));
+            state.pending.addLast(job);
+
+            // Otherwise this will be queued once the replications ahead of it for this folder complete
+            if (state.running == null && state.pending.size() == 1)
+                mExecutor.execute(job);
+        } else {
+            if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, tt + "merging request for " + db + " with one that is already waiting");
+        }
+
+        promote(state, job, priority);
+
+        return new RequestedResults(job, pull, push);
+    }
+
+    /*
+     * When a folder was last replicated successfully (milliseconds since the epoch, 0 if never)
+     */
+    public synchronized long getLastSynchronized(String db)
+    {
+        return getState(db).lastSynchronized;
+    }
+
+    /*
+     * How long the last successful replication of a folder took (in milliseconds)
+     */
+    public synchronized long getLastDuration(String db)
+    {
+        return getState(db).lastDuration;
+    }
+
+    public synchronized int getFailures(String db)
+    {
+        return getState(db).failures;
+    }
+
+    public synchronized boolean isBackingOff(String db)
+    {
+        return System.currentTimeMillis() < getState(db).retryAt;
+    }
+
+    public synchronized boolean isScheduled(String db)
+    {
+        FolderState state = getState(db);
+        return !state.pending.isEmpty() || state.running != null;
+    }
+
+    void shutdown()
+    {
+        mExecutor.shutdownNow();
+    }
+
+    private FolderState getState(String db)
+    {
+        FolderState state = mFolders.get(db);
+
+        if (state == null) {
+            state = new FolderState();
+            mFolders.put(db, state);
+        }
+
+        return state;
+    }
+
+    private int getPriority(String db, boolean foreground)
+    {
+        int priority = foreground ? PRIORITY_FOREGROUND : PRIORITY_BACKGROUND;
+
+        if (db.equals(Collect.getInstance().getInformOnlineState().getSelectedDatabase()))
+            priority += PRIORITY_SELECTED;
+
+        return priority;
+    }
+
+    /*
+     * Raise the priority of a waiting replication along with those of the same folder that must run ahead of it
+     */
+    private void promote(FolderState state, Job job, int priority)
+    {
+        Job first = state.pending.getFirst();
+        boolean requeue = false;
+
+        for (Job waiting : state.pending) {
+            if (priority > waiting.replication.priority) {
+                waiting.replication.priority = priority;
+                requeue = requeue || waiting == first;
+            }
+
+            if (waiting == job)
+                break;
+        }
+
+        // Move the first waiting replication up the queue (its position is fixed while it is in the queue)
+        if (requeue && state.running == null && mExecutor.remove(first))
+            mExecutor.execute(first);
+    }
+
+    private synchronized void started(Job job)
+    {
+        FolderState state = getState(job.replication.db);
+
+        state.pending.remove(job);
+        state.running = job;
+    }
+
+    private synchronized void finished(Job job, boolean successful, long started)
+    {
+        final String tt = t + "finished(): ";
+
+        FolderState state = getState(job.replication.db);
+        long now = System.currentTimeMillis();
+
+        if (successful) {
+            state.failures = 0;
+            state.retryAt = 0;
+            state.lastSynchronized = now;
+            state.lastDuration = now - started;
+
+            if (Collect.Log.DEBUG) Log.d(Collect.LOGTAG, tt + "replicated " + job.replication.db + " in " + state.lastDuration + " ms");
+        } else {
+            state.failures++;
+            state.retryAt = now + Math.min(BACKOFF_INITIAL << Math.min(state.failures - 1, 16), BACKOFF_MAX);
+
+            if (Collect.Log.WARN) Log.w(Collect.LOGTAG, tt + "replication of " + job.replication.db + " failed " + state.failures + " time(s); retrying in " + (state.retryAt - now) / 1000 + " s");
+        }
+
+        state.running = null;
+
+        // Run whatever was requested for this folder in the mean time
+        if (!state.pending.isEmpty())
+            mExecutor.execute(state.pending.getFirst());
+    }
+
+    private synchronized void cancelled(Job job)
+    {
+        FolderState state = getState(job.replication.db);
+        boolean first = !state.pending.isEmpty() && state.pending.getFirst() == job;
+
+        // A cancelled replication never starts so the one behind it has to be queued here
+        if (state.pending.remove(job) && first && state.running == null) {
+            mExecutor.remove(job);
+
+            if (!state.pending.isEmpty())
+                mExecutor.execute(state.pending.getFirst());
+        }
+    }
+
+    private static boolean isSuccessful(ReplicationStatus status)
+    {
+        return status != null && (status.isOk() || status.isNoChanges());
+    }
+
+    /*
+     * A request to replicate a folder (priority may change while it is waiting)
+     */
+    private class Replication implements Callable<HashMap<Integer, ReplicationStatus>>
+    {
+        final String db;
+        final long sequence;
+
+        final boolean pull;
+        final boolean push;
+        volatile int priority;
+
+        private Job mJob;
+
+        Replication(String db, boolean pull, boolean push, int priority, long sequence)
+        {
+            this.db = db;
+            this.pull = pull;
+            this.push = push;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        public HashMap<Integer, ReplicationStatus> call()
+        {
+            final String tt = t + "Replication.call(): ";
+
+            HashMap<Integer, ReplicationStatus> results = new HashMap<Integer, ReplicationStatus>();
+            boolean successful = true;
+            long started = System.currentTimeMillis();
+
+            started(mJob);
+
+            try {
+                // Remember if a database existed prior to the PULL that follows this
+                boolean dbMayHaveChanges = push && mDbService.isDbLocal(db);
+
+                if (pull) {
+                    try {
+                        results.put(DatabaseService.REPLICATE_PULL, mDbService.replicate(db, DatabaseService.REPLICATE_PULL));
+                    } catch (Exception e) {
+                        if (Collect.Log.WARN) Log.w(Collect.LOGTAG, tt + "problem pulling " + db + ": " + e.toString());
+                        e.printStackTrace();
+                        results.put(DatabaseService.REPLICATE_PULL, null);
+                    }
+
+                    successful = isSuccessful(results.get(DatabaseService.REPLICATE_PULL));
+                }
+
+                // A push should only occur if the database exists locally and is likely to have changes
+                if (dbMayHaveChanges) {
+                    try {
+                        results.put(DatabaseService.REPLICATE_PUSH, mDbService.replicate(db, DatabaseService.REPLICATE_PUSH));
+                    } catch (Exception e) {
+                        if (Collect.Log.WARN) Log.w(Collect.LOGTAG, tt + "problem pushing " + db + ": " + e.toString());
+                        e.printStackTrace();
+                        results.put(DatabaseService.REPLICATE_PUSH, null);
+                    }
+
+                    successful = successful && isSuccessful(results.get(DatabaseService.REPLICATE_PUSH));
+                }
+            } finally {
+                finished(mJob, successful, started);
+            }
+
+            return results;
+        }
+    }
+
+    /*
+     * Queue entry for a replication, ordered by priority and then by the order in which requests were made
+     */
+    private class Job extends FutureTask<HashMap<Integer, ReplicationStatus>> implements Comparable<Job>
+    {
+        final Replication replication;
+
+        Job(Replication replication)
+        {
+            super(replication);
+            this.replication = replication;
+            this.replication.mJob = this;
+        }
+
+        public int compareTo(Job another)
+        {
+            if (replication.priority != another.replication.priority)
+                return replication.priority > another.replication.priority ? -1 : 1;
+
+            if (replication.sequence != another.replication.sequence)
+                return replication.sequence < another.replication.sequence ? -1 : 1;
+
+            return 0;
+        }
+
+        @Override
+        protected void done()
+        {
+            if (isCancelled())
+                cancelled(this);
+        }
+    }
+
+    /*
+     * Result of a single request, limited to the directions that it asked for (the replication 
+     * may be shared with a request that asked for more)
+     */
+    private static class RequestedResults implements Future<HashMap<Integer, ReplicationStatus>>
+    {
+        private final Job mJob;
+        private final boolean mPull;
+        private final boolean mPush;
+
+        RequestedResults(Job job, boolean pull, boolean push)
+        {
+            mJob = job;
+            mPull = pull;
+            mPush = push;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            return mJob.cancel(mayInterruptIfRunning);
+        }
+
+        public boolean isCancelled()
+        {
+            return mJob.isCancelled();
+        }
+
+        public boolean isDone()
+        {
+            return mJob.isDone();
+        }
+
+        public HashMap<Integer, ReplicationStatus> get() throws InterruptedException, ExecutionException
+        {
+            return filter(mJob.get());
+        }
+
+        public HashMap<Integer, ReplicationStatus> get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+        {
+            return filter(mJob.get(timeout, unit));
+        }
+
+        private HashMap<Integer, ReplicationStatus> filter(HashMap<Integer, ReplicationStatus> results)
+        {
+            HashMap<Integer, ReplicationStatus> requested = new HashMap<Integer, ReplicationStatus>(results);
+
+            if (!mPull)
+                requested.remove(DatabaseService.REPLICATE_PULL);
+
+            if (!mPush)
+                requested.remove(DatabaseService.REPLICATE_PUSH);
+
+            return requested;
+        }
+    }
+}
@@ -0,0 +1,466 @@
+package com.radicaldynamic.groupinform.services;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.odk.collect.android.preferences.PreferencesActivity;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.radicaldynamic.groupinform.application.Collect;
+
+/*
+ * Instances waiting to be submitted, kept in the shared preferences so that they outlive the process.  An
+ * instance that is too large for a single post is split into parts when it is first sent and the parts that
+ * the server accepts are recorded as they are accepted, so a submission that is interrupted only sends the
+ * remaining parts when it is tried again (unless the instance has been changed in the mean time).
+ *
+ * Instances that fail to send are retried in the background after an exponentially increasing delay (the
+ * user may still send them at any time).
+ */
+public class UploadQueue
+{
+    private static final String t = "UploadQueue: ";
+
+    // Shared preference holding the queue (as a JSON array)
+    private static final String PREFERENCE_QUEUE = "upload_queue";
+
+    // Delay before a failed instance is retried (doubled for every consecutive failure up to the maximum)
+    private static final long BACKOFF_INITIAL = 60 * 1000;
+    private static final long BACKOFF_MAX = 60 * 60 * 1000;
+
+    // Instances that fail this many times in a row are left for the user to send
+    private static final int MAX_ATTEMPTS = 20;
+
+    // Keyed by database and instance ID in the order that they were queued
+    private Map<String, Submission> mSubmissions = new LinkedHashMap<String, Submission>();
+
+    // Instances that are being sent right now
+    private Set<String> mClaimed = new HashSet<String>();
+
+    private ScheduledExecutorService mExecutor;
+    private ScheduledFuture<?> mRetry = null;
+    private long mRetryAt = 0;
+
+    /*
+     * Progress of a single queued instance
+     */
+    private static class Submission
+    {
+        final String db;
+        final String id;
+
+        // Attachments sent in each post (planned for specific attachment content, see getParts())
+        String content = null;
+        List<List<String>> parts = null;
+        Set<Integer> acknowledged = new HashSet<Integer>();
+
+        int attempts = 0;
+        long retryAt = 0;
+
+        Submission(String db, String id)
+        {
+            this.db = db;
+            this.id = id;
+        }
+    }
+
+    UploadQueue()
+    {
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "UploadQueue");
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /*
+     * Pick up whatever was still queued when the process last ended
+     */
+    synchronized void start()
+    {
+        load();
+        scheduleRetry();
+    }
+
+    void shutdown()
+    {
+        mExecutor.shutdownNow();
+    }
+
+    /*
+     * Queue instances that are about to be sent so that any that are not sent in full (including those that
+     * are never started on) are retried later
+     */
+    public synchronized void add(String db, String... ids)
+    {
+        // Left for whoever is adding them to send first
+        long retryAt = System.currentTimeMillis() + BACKOFF_INITIAL;
+
+        for (String id : ids) {
+            String key = getKey(db, id);
+            Submission s = mSubmissions.get(key);
+
+            if (s == null) {
+                s = new Submission(db, id);
+                mSubmissions.put(key, s);
+            }
+
+            s.retryAt = Math.max(s.retryAt, retryAt);
+        }
+
+        save();
+        scheduleRetry();
+    }
+
+    /*
+     * Claim an instance for sending, queueing it if it is not already queued.  Returns false if the
+     * instance is already being sent.
+     */
+    public synchronized boolean claim(String db, String id)
+    {
+        String key = getKey(db, id);
+
+        if (!mClaimed.add(key))
+            return false;
+
+        Submission s = mSubmissions.get(key);
+
+        if (s == null) {
+            s = new Submission(db, id);
+            mSubmissions.put(key, s);
+        }
+
+        // Should the process end while this is being sent then it will be picked up again later
+        s.retryAt = Math.max(s.retryAt, System.currentTimeMillis() + BACKOFF_INITIAL);
+        save();
+
+        return true;
+    }
+
+    /*
+     * Give up a claim (anything not sent in full stays queued)
+     */
+    public synchronized void release(String db, String id)
+    {
+        if (mClaimed.remove(getKey(db, id)))
+            scheduleRetry();
+    }
+
+    /*
+     * Attachments to send in each post, or null if they have yet to be planned for this content.  The content
+     * describes the attachments themselves (not the document revision) because the document is updated
+     * whenever an attempt to send it fails.
+     */
+    public synchronized List<List<String>> getParts(String db, String id, String content)
+    {
+        Submission s = mSubmissions.get(getKey(db, id));
+
+        if (s == null || s.parts == null)
+            return null;
+
+        // The instance was changed after it was first sent so all of it must be sent again
+        if (!s.content.equals(content)) {
+            s.content = null;
+            s.parts = null;
+            s.acknowledged.clear();
+            save();
+            return null;
+        }
+
+        return s.parts;
+    }
+
+    public synchronized void setParts(String db, String id, String content, List<List<String>> parts)
+    {
+        Submission s = mSubmissions.get(getKey(db, id));
+
+        if (s != null) {
+            s.content = content;
+            s.parts = parts;
+            s.acknowledged.clear();
+            save();
+        }
+    }
+
+    public synchronized boolean isAcknowledged(String db, String id, int part)
+    {
+        Submission s = mSubmissions.get(getKey(db, id));
+        return s != null && s.acknowledged.contains(part);
+    }
+
+    /*
+     * Record that the server has accepted a post
+     */
+    public synchronized void acknowledge(String db, String id, int part)
+    {
+        Submission s = mSubmissions.get(getKey(db, id));
+
+        if (s != null && s.acknowledged.add(part))
+            save();
+    }
+
+    /*
+     * The server has accepted all of an instance
+     */
+    public synchronized void completed(String db, String id)
+    {
+        remove(db, id);
+    }
+
+    /*
+     * Nothing is left to send (e.g., the instance no longer exists)
+     */
+    public synchronized void remove(String db, String id)
+    {
+        if (mSubmissions.remove(getKey(db, id)) != null)
+            save();
+    }
+
+    public synchronized void failed(String db, String id)
+    {
+        final String tt = t + "failed(): ";
+
+        String key = getKey(db, id);
+        Submission s = mSubmissions.get(key);
+
+        if (s == null)
+            return;
+
+        long now = System.currentTimeMillis();
+
+        s.attempts++;
+
+        if (s.attempts >= MAX_ATTEMPTS) {
+            if (Collect.Log.WARN) Log.w(Collect.LOGTAG, tt + "giving up on " + key + " after " + s.attempts + " attempts");
+            mSubmissions.remove(key);
+        } else {
+            s.retryAt = now + Math.min(BACKOFF_INITIAL << Math.min(s.attempts - 1, 16), BACKOFF_MAX);
+            if (Collect.Log.DEBUG) Log.d(Collect.LOGTAG, tt + key + " failed " + s.attempts + " time(s); retrying in " + (s.retryAt - now) / 1000 + " s");
+        }
+
+        save();
+    }
+
+    private static String getKey(String db, String id)
+    {
+        return db + "/" + id;
+    }
+
+    /*
+     * Arrange for the next retry to run when the earliest unclaimed instance is due
+     */
+    private synchronized void scheduleRetry()
+    {
+        long next = Long.MAX_VALUE;
+
+        for (Map.Entry<String, Submission> entry : mSubmissions.entrySet()) {
+            if (!mClaimed.contains(entry.getKey()))
+                next = Math.min(next, entry.getValue().retryAt);
+        }
+
+        if (next == Long.MAX_VALUE)
+            return;
+
+        // Already scheduled to run by then
+        if (mRetry != null && !mRetry.isDone() && mRetryAt <= next)
+            return;
+
+        if (mRetry != null)
+            mRetry.cancel(false);
+
+        try {
+            mRetryAt = next;
+            mRetry = mExecutor.schedule(new Runnable() {
+                public void run()
+                {
+                    retryDue();
+                }
+            }, Math.max(0, next - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            // Shut down
+            mRetry = null;
+        }
+    }
+
+    /*
+     * Send unclaimed instances that are due to be retried
+     */
+    private void retryDue()
+    {
+        final String tt = t + "retryDue(): ";
+
+        Map<String, List<String>> due = new HashMap<String, List<String>>();
+
+        synchronized (this) {
+            mRetry = null;
+
+            long now = System.currentTimeMillis();
+
+            for (Map.Entry<String, Submission> entry : mSubmissions.entrySet()) {
+                Submission s = entry.getValue();
+
+                if (mClaimed.contains(entry.getKey()) || s.retryAt > now)
+                    continue;
+
+                // Not sent this time around unless something below changes this
+                s.retryAt = now + BACKOFF_INITIAL;
+
+                if (!due.containsKey(s.db))
+                    due.put(s.db, new ArrayList<String>());
+
+                due.get(s.db).add(s.id);
+            }
+        }
+
+        try {
+            if (!due.isEmpty() && isConnected()) {
+                SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(Collect.getInstance());
+
+                for (Map.Entry<String, List<String>> entry : due.entrySet()) {
+                    if (Collect.Log.INFO) Log.i(Collect.LOGTAG, tt + "retrying " + entry.getValue().size() + " instance(s) from " + entry.getKey());
+
+                    InstanceUploader uploader = new InstanceUploader(settings.getString(PreferencesActivity.KEY_AUTH, ""), null);
+                    uploader.send(entry.getKey(), entry.getValue().toArray(new String[entry.getValue().size()]));
+                }
+            }
+        } catch (Exception e) {
+            if (Collect.Log.ERROR) Log.e(Collect.LOGTAG, tt + "unhandled exception " + e.toString());
+            e.printStackTrace();
+        } finally {
+            synchronized (this) {
+                save();
+                scheduleRetry();
+            }
+        }
+    }
+
+    private boolean isConnected()
+    {
+        if (Collect.getInstance().getInformOnlineState().isOfflineModeEnabled())
+            return false;
+
+        ConnectivityManager connectivityManager = (ConnectivityManager) Collect.getInstance().getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo ni = connectivityManager.getActiveNetworkInfo();
+
+        return ni != null && ni.isConnected();
+    }
+
+    private void load()
+    {
+        final String tt = t + "load(): ";
+
+        String queue = PreferenceManager.getDefaultSharedPreferences(Collect.getInstance()).getString(PREFERENCE_QUEUE, null);
+
+        if (queue == null)
+            return;
+
+        try {
+            JSONArray submissions = new JSONArray(queue);
+
+            for (int i = 0; i < submissions.length(); i++) {
+                JSONObject o = submissions.getJSONObject(i);
+                Submission s = new Submission(o.getString("db"), o.getString("id"));
+
+                s.attempts = o.optInt("attempts", 0);
+                s.retryAt = o.optLong("retryAt", 0);
+
+                if (o.has("content") && o.has("parts")) {
+                    s.content = o.getString("content");
+                    s.parts = new ArrayList<List<String>>();
+
+                    JSONArray parts = o.getJSONArray("parts");
+
+                    for (int j = 0; j < parts.length(); j++) {
+                        JSONArray files = parts.getJSONArray(j);
+                        List<String> part = new ArrayList<String>();
+
+                        for (int k = 0; k < files.length(); k++)
+                            part.add(files.getString(k));
+
+                        s.parts.add(part);
+                    }
+
+                    JSONArray acknowledged = o.optJSONArray("acknowledged");
+
+                    for (int j = 0; acknowledged != null && j < acknowledged.length(); j++)
+                        s.acknowledged.add(acknowledged.getInt(j));
+                }
+
+                mSubmissions.put(getKey(s.db, s.id), s);
+            }
+
+            if (Collect.Log.DEBUG) Log.d(Collect.LOGTAG, tt + mSubmissions.size() + " instance(s) waiting to be sent");
+        } catch (Exception e) {
+            if (Collect.Log.ERROR) Log.e(Collect.LOGTAG, tt + "unable to read queue: " + e.toString());
+            e.printStackTrace();
+        }
+    }
+
+    /*
+     * Write the queue out (called whenever it changes so that nothing is lost if the process ends)
+     */
+    private void save()
+    {
+        final String tt = t + "save(): ";
+
+        JSONArray submissions = new JSONArray();
+
+        try {
+            Iterator<Submission> it = mSubmissions.values().iterator();
+
+            while (it.hasNext()) {
+                Submission s = it.next();
+                JSONObject o = new JSONObject();
+
+                o.put("db", s.db);
+                o.put("id", s.id);
+                o.put("attempts", s.attempts);
+                o.put("retryAt", s.retryAt);
+
+                if (s.parts != null) {
+                    JSONArray parts = new JSONArray();
+
+                    for (List<String> part : s.parts)
+                        parts.put(new JSONArray(part));
+
+                    o.put("content", s.content);
+                    o.put("parts", parts);
+                    o.put("acknowledged", new JSONArray(s.acknowledged));
+                }
+
+                submissions.put(o);
+            }
+        } catch (Exception e) {
+            if (Collect.Log.ERROR) Log.e(Collect.LOGTAG, tt + "unable to write queue: " + e.toString());
+            e.printStackTrace();
+            return;
+        }
+
+        PreferenceManager.getDefaultSharedPreferences(Collect.getInstance())
+            .edit()
+            .putString(PREFERENCE_QUEUE, submissions.toString())
+            .commit();
+    }
+}
@@ -1,9 +1,14 @@
 package com.radicaldynamic.groupinform.tasks;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -16,31 +21,44 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.TimeZone;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.TeeOutputStream;
 import org.ektorp.Attachment;
 import org.ektorp.AttachmentInputStream;
+import org.ektorp.CouchDbConnector;
+import org.kxml2.io.KXmlParser;
 import org.odk.collect.android.utilities.FileUtils;
 import org.supercsv.io.CsvMapWriter;
 import org.supercsv.io.ICsvMapWriter;
 import org.supercsv.prefs.CsvPreference;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
+import android.content.SharedPreferences;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.Message;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
-import com.mycila.xmltool.CallBack;
-import com.mycila.xmltool.XMLDoc;
-import com.mycila.xmltool.XMLTag;
 import com.radicaldynamic.gcmobile.android.activities.DataExportActivity;
+import com.radicaldynamic.gcmobile.android.preferences.PreferencesActivity;
 import com.radicaldynamic.groupinform.application.Collect;
 import com.radicaldynamic.groupinform.documents.FormDefinition;
 import com.radicaldynamic.groupinform.documents.FormInstance;
 import com.radicaldynamic.groupinform.listeners.DataExportListener;
-import com.radicaldynamic.groupinform.repositories.FormInstanceRepo;
 import com.radicaldynamic.groupinform.utilities.FileUtilsExtended;
 import com.radicaldynamic.groupinform.xform.FormReader;
 import com.radicaldynamic.groupinform.xform.Instance;
@@ -56,6 +74,9 @@ public class DataExportTask extends AsyncTask<Object, String, Void>
     
     private static final String DATETIME = "yyyy_MM_dd-HH_mm_ss";
     
+    // Media attachments larger than this are not prefetched but streamed when they are written out 
+    private static final long PREFETCH_MAX_ATTACHMENT_SIZE = 1024 * 1024;
+    
     private String mAttachmentPath;
     private String mCompleteMsg;    
     private String mErrorMsg;
@@ -68,9 +89,18 @@ public class DataExportTask extends AsyncTask<Object, String, Void>
     private FormReader mFormReader;
     
     private LinkedHashMap<String, String> mExportHeaders = new LinkedHashMap<String, String>();
-    private LinkedList<HashMap<String, ? super Object>> mExportData = new LinkedList<HashMap<String, ? super Object>>();
     private List<FormInstance> mExportList = new ArrayList<FormInstance>();
     
+    // Record currently being flattened (rows are written out as soon as they are complete)
+    private HashMap<String, ? super Object> mExportRecord;
+    private int mExportCount = 0;
+    
+    // Per-stage timing counters (in milliseconds, fetch time is summed across all prefetch workers)
+    private AtomicLong mTimeFetching = new AtomicLong();
+    private long mTimeWaiting = 0;
+    private long mTimeFlattening = 0;
+    private long mTimeWriting = 0;
+    
     @Override
     protected Void doInBackground(Object... params) 
     {
@@ -122,7 +152,7 @@ public class DataExportTask extends AsyncTask<Object, String, Void>
                 return null;
 
             publishProgress("Retrieving records...");
-            List<FormInstance> unfilteredList = ((FormInstanceRepo) new FormInstanceRepo(Collect.getInstance().getDbService().getDb())).findByFormId(mFormDefinition.getId());
+            List<FormInstance> unfilteredList = Collect.getInstance().getDbService().getFormInstanceRepo().findByFormId(mFormDefinition.getId());
             
             // Filter list
             for (i = 0; i < unfilteredList.size(); i++) {
@@ -142,156 +172,233 @@ public class DataExportTask extends AsyncTask<Object, String, Void>
                 return null;
             }
 
-            // Directory to place data files
             String prefix = "export_" + getExportTimestamp();
-            String exportPath = Environment.getExternalStorageDirectory() + File.separator + prefix + File.separator; 
-            FileUtils.createFolder(exportPath);
-
-            // Compile export data for each instance
-            for (i = 0; i < mExportList.size(); i++) {
-                int idx = i + 1;                
-                publishProgress("Exporting record " + idx + "/" + mExportList.size());
+            String zipPath = Environment.getExternalStorageDirectory() + File.separator + prefix + ".zip";
+            
+            ExportSink sink = null;
+            ICsvMapWriter writer = null;
+            File csvFile;
+            
+            // Everything this export writes, removed again if it does not run to completion
+            ArrayList<File> partialFiles = new ArrayList<File>();
+            String exportPath = null;
+            boolean exported = false;
+            
+            try {
+                if (mExportOptions.getBoolean(DataExportActivity.KEY_OUTPUT_ZIP, false)) {
+                    // Write entries straight into the ZIP file(s) as they are produced 
+                    ArrayList<File> zipFiles = new ArrayList<File>();
                 
-                FormInstance instance = mExportList.get(i);
-                String instancePath = exportPath + File.separator + idx + "-" + instance.getId() + ".xml";
+                    if (mExportOptions.getBoolean(DataExportActivity.KEY_OUTPUT_EXTERNAL, false) 
+                            || !mExportOptions.getBoolean(DataExportActivity.KEY_OUTPUT_SEND, false)) {
+                        zipFiles.add(new File(zipPath));
+                    }
                 
-                if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, tt + "processing " + instance.getId() + " for export");
-
-                HashMap<String, Attachment> attachments = (HashMap<String, Attachment>) instance.getAttachments();
+                    // If emailing, the copy in the cache directory is written in the same pass
+                    if (mExportOptions.getBoolean(DataExportActivity.KEY_OUTPUT_SEND, false)) {
+                        mAttachmentPath = FileUtilsExtended.EXTERNAL_CACHE + File.separator + prefix + ".zip";
+                        zipFiles.add(new File(mAttachmentPath));
+                    }
                 
-                if (attachments == null) {
-                    if (Collect.Log.WARN) Log.w(Collect.LOGTAG, t + "skipping attachment download for " + instance.getId() + ": no attachments!");
-                    continue;
+                    if (Collect.Log.DEBUG) Log.d(Collect.LOGTAG, tt + "creating zip file(s) " + zipFiles.toString());
+                    partialFiles.addAll(zipFiles);
+                    sink = new ZipExportSink(zipFiles);
+                
+                    /*
+                     * ZIP entries cannot be interleaved so the CSV (which is written a row at a time
+                     * alongside the media entries) is spooled to the cache and added as the last entry
+                     */
+                    FileUtils.createFolder(FileUtilsExtended.EXTERNAL_CACHE);
+                    csvFile = new File(FileUtilsExtended.EXTERNAL_CACHE + File.separator + prefix + ".csv");
+                    partialFiles.add(csvFile);
+                } else {
+                    // Directory to place data files
+                    exportPath = Environment.getExternalStorageDirectory() + File.separator + prefix + File.separator; 
+                    FileUtils.createFolder(exportPath);
+                
+                    sink = new DirectoryExportSink(exportPath);
+                    csvFile = new File(exportPath + prefix + ".csv");
+                }
+            
+                // Open the CSV file up front so that each record can be written as soon as it has been flattened
+                writer = new CsvMapWriter(new FileWriter(csvFile), CsvPreference.EXCEL_PREFERENCE);
+            
+                Object[] headerObjects = mExportHeaders.values().toArray();
+                String[] headers = Arrays.asList(headerObjects).toArray(new String[headerObjects.length]);
+                writer.writeHeader(headers);
+
+                // Export data for each instance, retrieving attachments for the next few instances in the background
+                CouchDbConnector db = Collect.getInstance().getDbService().getDb();
+            
+                SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(Collect.getInstance().getBaseContext());
+                int concurrency;
+            
+                try {
+                    concurrency = Math.max(1, Integer.parseInt(settings.getString(PreferencesActivity.KEY_TRANSFER_CONCURRENCY, PreferencesActivity.DEFAULT_TRANSFER_CONCURRENCY)));
+                } catch (NumberFormatException e) {
+                    concurrency = Integer.parseInt(PreferencesActivity.DEFAULT_TRANSFER_CONCURRENCY);
                 }
+            
+                ExecutorService prefetchPool = Executors.newFixedThreadPool(concurrency);
+                LinkedList<Future<HashMap<String, byte[]>>> prefetchQueue = new LinkedList<Future<HashMap<String, byte[]>>>();
+            
+                try {
+                    for (i = 0; i < mExportList.size() && i < concurrency; i++) {
+                        prefetchQueue.addLast(prefetchPool.submit(new AttachmentPrefetch(db, mExportList.get(i))));
+                    }
+                
+                    for (i = 0; i < mExportList.size(); i++) {
+                        int idx = i + 1;                
+                        publishProgress("Exporting record " + idx + "/" + mExportList.size());
+
+                        FormInstance instance = mExportList.get(i);
+                        String instanceEntry = idx + "-" + instance.getId() + ".xml";
 
-                // Download attachments (form instance XML & other media)
-                for (Entry<String, Attachment> entry : attachments.entrySet()) {
-                    String key = entry.getKey();
-                    FileOutputStream file;
+                        if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, tt + "processing " + instance.getId() + " for export");
+
+                        // Futures are consumed in list order so that rows are always written in the same order
+                        long stageStart = System.currentTimeMillis();
+                        HashMap<String, byte[]> prefetched;
                     
-                    if (key.equals("xml")) {
-                        file = new FileOutputStream(instancePath);
-                    } else {
-                        // Determine if we should download the media file or skip it, as per the user
-                        if (mExportOptions.getBoolean(DataExportActivity.KEY_OUTPUT_MEDIA_FILES, false)) { 
-                            file = new FileOutputStream(exportPath + File.separator + idx + "-" + instance.getId() + "-" + key);
-                        } else {
-                            continue;
+                        try {
+                            prefetched = prefetchQueue.removeFirst().get();
+                        } catch (ExecutionException e) {
+                            if (e.getCause() instanceof Exception)
+                                throw (Exception) e.getCause();
+                            else
+                                throw e;
                         }
-                    }
                     
-                    ais = Collect.getInstance().getDbService().getDb().getAttachment(instance.getId(), key);
+                        mTimeWaiting += System.currentTimeMillis() - stageStart;
                     
-                    byte [] buffer = new byte[8192];
-                    int bytesRead = 0;
+                        // Keep the pool busy while this instance is being flattened
+                        if (i + concurrency < mExportList.size()) {
+                            prefetchQueue.addLast(prefetchPool.submit(new AttachmentPrefetch(db, mExportList.get(i + concurrency))));
+                        }
+
+                        HashMap<String, Attachment> attachments = (HashMap<String, Attachment>) instance.getAttachments();
+
+                        if (attachments == null) {
+                            if (Collect.Log.WARN) Log.w(Collect.LOGTAG, t + "skipping attachment download for " + instance.getId() + ": no attachments!");
+                            continue;
+                        }
                     
-                    while ((bytesRead = ais.read(buffer)) != -1) {
-                        file.write(buffer, 0, bytesRead);
-                    }
+                        stageStart = System.currentTimeMillis();
+
+                        // Prepare new record for export
+                        mExportRecord = new HashMap<String, Object>();
+
+                        // Add in per-record metadata?
+                        if (mExportOptions.getBoolean(DataExportActivity.KEY_OUTPUT_RECORD_METADATA, false)) {
+                            mExportRecord.put(mExportHeaders.get("formDefinitionUuid"), getStringValue(mFormDefinition.getId()));
+                            mExportRecord.put(mExportHeaders.get("formDefinitionName"), getStringValue(mFormDefinition.getName()));
+                        }
+
+                        mExportRecord.put(mExportHeaders.get("rowId"), idx);
+                        mExportRecord.put(mExportHeaders.get("recordUuid"), instance.getId());
+
+                        if (mExportOptions.getBoolean(DataExportActivity.KEY_OUTPUT_RECORD_METADATA, false)) {
+                            mExportRecord.put(mExportHeaders.get("recordStatus"), getStringValue(instance.getStatus().toString()));
+                            mExportRecord.put(mExportHeaders.get("dateCreated"), getStringValue(instance.getDateCreated()));
+                            mExportRecord.put(mExportHeaders.get("createdBy"), getStringValue(instance.getCreatedByAlias()));
+                            mExportRecord.put(mExportHeaders.get("dateUpdated"), getStringValue(instance.getDateUpdated()));
+                            mExportRecord.put(mExportHeaders.get("updatedBy"), getStringValue(instance.getUpdatedByAlias()));
+                        }
                     
-                    file.close(); 
-                    ais.close();
-                }
-                
-                // Prepare new record for export
-                mExportData.add(new HashMap<String, Object>());
+                        // Parse instance data (the XML is only written to storage if the user has opted to keep it)
+                        if (prefetched.containsKey("xml")) {
+                            readData(new ByteArrayInputStream(prefetched.get("xml")));
+                        
+                            if (mExportOptions.getBoolean(DataExportActivity.KEY_OUTPUT_XFORM_FILES, false)) {
+                                sink.openEntry(instanceEntry).write(prefetched.get("xml"));
+                                sink.closeEntry();
+                            }
+                        }
+                    
+                        mTimeFlattening += System.currentTimeMillis() - stageStart;
+                        stageStart = System.currentTimeMillis();
 
-                // Add in per-record metadata?
-                if (mExportOptions.getBoolean(DataExportActivity.KEY_OUTPUT_RECORD_METADATA, false)) {
-                    mExportData.getLast().put(mExportHeaders.get("formDefinitionUuid"), getStringValue(mFormDefinition.getId()));
-                    mExportData.getLast().put(mExportHeaders.get("formDefinitionName"), getStringValue(mFormDefinition.getName()));
-                }
+                        // Write out media files, as per the user
+                        if (mExportOptions.getBoolean(DataExportActivity.KEY_OUTPUT_MEDIA_FILES, false)) {
+                            for (String key : attachments.keySet()) {
+                                if (key.equals("xml"))
+                                    continue;
+                            
+                                OutputStream media = sink.openEntry(idx + "-" + instance.getId() + "-" + key);
+                            
+                                if (prefetched.containsKey(key)) {
+                                    media.write(prefetched.get(key));
+                                } else {
+                                    // Too large to have been prefetched
+                                    ais = db.getAttachment(instance.getId(), key);
+
+                                    byte [] buffer = new byte[8192];
+                                    int bytesRead = 0;
+
+                                    while ((bytesRead = ais.read(buffer)) != -1) {
+                                        media.write(buffer, 0, bytesRead);
+                                    }
+
+                                    ais.close();
+                                }
+                            
+                                sink.closeEntry();
+                            }
+                        }
 
-                mExportData.getLast().put(mExportHeaders.get("rowId"), idx);
-                mExportData.getLast().put(mExportHeaders.get("recordUuid"), instance.getId());
+                        // Write out this record and let go of it before moving on to the next
+                        writer.write(mExportRecord, headers);
+                        mExportRecord = null;
+                        mExportCount++;
                     
-                if (mExportOptions.getBoolean(DataExportActivity.KEY_OUTPUT_RECORD_METADATA, false)) {
-                    mExportData.getLast().put(mExportHeaders.get("recordStatus"), getStringValue(instance.getStatus().toString()));
-                    mExportData.getLast().put(mExportHeaders.get("dateCreated"), getStringValue(instance.getDateCreated()));
-                    mExportData.getLast().put(mExportHeaders.get("createdBy"), getStringValue(instance.getCreatedByAlias()));
-                    mExportData.getLast().put(mExportHeaders.get("dateUpdated"), getStringValue(instance.getDateUpdated()));
-                    mExportData.getLast().put(mExportHeaders.get("updatedBy"), getStringValue(instance.getUpdatedByAlias()));
+                        mTimeWriting += System.currentTimeMillis() - stageStart;
+                    }
+                } finally {
+                    prefetchPool.shutdownNow();
                 }
-                
-                // Parse instance data from XML file
-                FileInputStream fis = new FileInputStream(new File(instancePath));
-                XMLTag instanceXml = XMLDoc.from(fis, false);
-                readData(instanceXml, "/" + instanceXml.getCurrentTagName());
-                fis.close();
-                
-                // Remove XForm instance file unless the user has opted to keep it
-                if (!mExportOptions.getBoolean(DataExportActivity.KEY_OUTPUT_XFORM_FILES, false)) {
-                    new File(instancePath).delete();
-                }   
-            }
             
-            publishProgress("Writing CSV file...");            
-            ICsvMapWriter writer = new CsvMapWriter(new FileWriter(exportPath + prefix + ".csv"), CsvPreference.EXCEL_PREFERENCE);
+                if (Collect.Log.DEBUG) Log.d(Collect.LOGTAG, tt + "export stage timings in ms (" + concurrency + " workers): fetching " + mTimeFetching.get() 
+                        + ", waiting on fetch " + mTimeWaiting + ", flattening " + mTimeFlattening + ", writing " + mTimeWriting);
             
-            Object[] headerObjects = mExportHeaders.values().toArray();
-            String[] headers = Arrays.asList(headerObjects).toArray(new String[headerObjects.length]);
-            writer.writeHeader(headers);            
+                writer.close();
+                writer = null;
             
-            for (i = 0; i < mExportData.size(); i++) {                
-                writer.write(mExportData.get(i), headers);
-            }
+                if (sink instanceof ZipExportSink) {
+                    publishProgress("Compressing exported data...");
+                
+                    FileInputStream is = new FileInputStream(csvFile);
+                
+                    try {
+                        IOUtils.copy(is, sink.openEntry(csvFile.getName()));
+                        sink.closeEntry();
+                    } finally {
+                        is.close();
+                    }
+                
+                    csvFile.delete();
+                }
             
-            writer.close();
+                sink.close();
+                sink = null;
+                exported = true;
+            } finally {
+                if (!exported)
+                    discardPartialExport(writer, sink, partialFiles, exportPath);
+            }
             
             // Total successfully exported vs. total in list to export
-            String exportTally = mExportData.size() + "/" + mExportList.size();
+            String exportTally = mExportCount + "/" + mExportList.size();
 
-            // Create a ZIP archive containing the requested file
             if (mExportOptions.getBoolean(DataExportActivity.KEY_OUTPUT_ZIP, false)) {
-                publishProgress("Compressing exported data...");
-                
-                String zip = Environment.getExternalStorageDirectory() + File.separator + prefix + ".zip";
-                ZipArchiveOutputStream os = new ZipArchiveOutputStream(new File(zip));
-                
-                if (Collect.Log.DEBUG) Log.d(Collect.LOGTAG, tt + "creating zip file " + zip);
-                
-                for (File f : new File(exportPath).listFiles()) {
-                    if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, tt + "adding " + f.getName() + " to zip file");
-                    
-                    os.putArchiveEntry(os.createArchiveEntry(f, f.getName()));
-                    
-                    FileInputStream is = new FileInputStream(f);                    
-                    byte [] buffer = new byte[8192];
-                    int bytesRead = 0;
-                    
-                    while ((bytesRead = is.read(buffer)) != -1) {
-                        os.write(buffer, 0, bytesRead);
-                    }
-
-                    is.close();                    
-                    os.closeArchiveEntry();                    
-                }
-                
-                os.close();
-                
-                // Remove export data directory
-                FileUtilsExtended.deleteFolder(exportPath);
-                
                 mCompleteMsg = exportTally + " records have been successfully exported to the external storage on this device.\n\nPlease look for a ZIP file with the following name:\n\n" + prefix;
             } else {
                 mCompleteMsg = exportTally + " records have been successfully exported to the external storage on this device.\n\nPlease look for a folder with the following name:\n\n" + prefix;
             }
             
-            // If emailing, make a copy of the exported ZIP in the cache directory
             if (mExportOptions.getBoolean(DataExportActivity.KEY_OUTPUT_SEND, false)) {
-                mAttachmentPath = FileUtilsExtended.EXTERNAL_CACHE + File.separator + prefix + ".zip";
-                
-                org.apache.commons.io.FileUtils.copyFile(
-                        new File(Environment.getExternalStorageDirectory() + File.separator + prefix + ".zip"), 
-                        new File(mAttachmentPath));
-
                 if (mExportOptions.getBoolean(DataExportActivity.KEY_OUTPUT_EXTERNAL, false)) {
                     mCompleteMsg = mCompleteMsg + "\n\nSelect \"Send\" to compose an email with the exported data attached in a ZIP file or to transfer the file via Bluetooth.";
                 } else {
-                    // Remove from /sdcard if user didn't ask for it to be there
-                    new File(Environment.getExternalStorageDirectory() + File.separator + prefix + ".zip").delete();
-                    
-                    // Modify complete message
                     mCompleteMsg = exportTally + " records have been successfully exported.\n\nSelect \"Send\" to compose an email with the exported data attached in a ZIP file or to transfer the file via Bluetooth.";
                 }
             }
@@ -381,6 +488,40 @@ public class DataExportTask extends AsyncTask<Object, String, Void>
         }
     }
     
+    /*
+     * Close whatever a failed export left open and remove its partial output so that a 
+     * truncated ZIP or CSV file is not mistaken for a complete export
+     */
+    private void discardPartialExport(ICsvMapWriter writer, ExportSink sink, List<File> files, String exportPath)
+    {
+        final String tt = t + "discardPartialExport(): ";
+        
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                if (Collect.Log.WARN) Log.w(Collect.LOGTAG, tt + "unable to close CSV writer: " + e.toString());
+            }
+        }
+        
+        if (sink != null) {
+            try {
+                sink.close();
+            } catch (IOException e) {
+                if (Collect.Log.WARN) Log.w(Collect.LOGTAG, tt + "unable to close export sink: " + e.toString());
+            }
+        }
+        
+        for (File f : files) {
+            if (f.exists() && !f.delete()) {
+                if (Collect.Log.WARN) Log.w(Collect.LOGTAG, tt + "unable to remove " + f.getAbsolutePath());
+            }
+        }
+        
+        if (exportPath != null)
+            FileUtilsExtended.deleteFolder(exportPath);
+    }
+    
     private String getExportTimestamp()
     {
         Calendar calendar = Calendar.getInstance();
@@ -401,21 +542,208 @@ public class DataExportTask extends AsyncTask<Object, String, Void>
             return s.trim();
     }
     
-    private void readData(XMLTag node, final String xpath)
+    /*
+     * Destination for exported files (CSV, instance XML and media)
+     */
+    private interface ExportSink
+    {
+        OutputStream openEntry(String name) throws IOException;
+        void closeEntry() throws IOException;
+        void close() throws IOException;
+    }
+    
+    /*
+     * Writes each entry to its own file in an export directory
+     */
+    private static class DirectoryExportSink implements ExportSink
+    {
+        private String mPath;
+        private OutputStream mEntry;
+        
+        DirectoryExportSink(String path)
+        {
+            mPath = path;
+        }
+        
+        @Override
+        public OutputStream openEntry(String name) throws IOException
+        {
+            mEntry = new BufferedOutputStream(new FileOutputStream(mPath + File.separator + name));
+            return mEntry;
+        }
+        
+        @Override
+        public void closeEntry() throws IOException
+        {
+            mEntry.close();
+            mEntry = null;
+        }
+        
+        @Override
+        public void close() throws IOException
+        {
+            if (mEntry != null)
+                closeEntry();
+        }
+    }
+    
+    /*
+     * Writes entries straight into one or more identical ZIP files (each byte is 
+     * compressed once and written to every destination in the same pass)
+     */
+    private static class ZipExportSink implements ExportSink
+    {
+        private ZipArchiveOutputStream mZip;
+        
+        private OutputStream mOut;
+        
+        ZipExportSink(List<File> files) throws IOException
+        {
+            OutputStream os = null;
+            
+            try {
+                for (File f : files) {
+                    f.getParentFile().mkdirs();
+                    OutputStream fos = new BufferedOutputStream(new FileOutputStream(f));
+
+                    if (os == null)
+                        os = fos;
+                    else
+                        os = new TeeOutputStream(os, fos);
+                }
+            } catch (IOException e) {
+                if (os != null)
+                    os.close();
+                
+                throw e;
+            }
+            
+            mOut = os;
+            mZip = new ZipArchiveOutputStream(os);
+        }
+        
+        @Override
+        public OutputStream openEntry(String name) throws IOException
+        {
+            if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, t + "adding " + name + " to zip file");
+            
+            mZip.putArchiveEntry(new ZipArchiveEntry(name));
+            
+            // Entries are closed through the sink, never through the stream handed out
+            return new CloseShieldOutputStream(mZip);
+        }
+        
+        @Override
+        public void closeEntry() throws IOException
+        {
+            mZip.closeArchiveEntry();
+        }
+        
+        @Override
+        public void close() throws IOException
+        {
+            try {
+                mZip.close();
+            } finally {
+                // The archive refuses to finish with an entry still open, the files must be released regardless
+                mOut.close();
+            }
+        }
+    }
+    
+    /*
+     * Retrieves the attachments of a single instance in the background so that the
+     * network round-trips overlap with flattening and writing of earlier instances
+     */
+    private class AttachmentPrefetch implements Callable<HashMap<String, byte[]>>
+    {
+        private CouchDbConnector mDb;
+        private FormInstance mInstance;
+        
+        AttachmentPrefetch(CouchDbConnector db, FormInstance instance)
+        {
+            mDb = db;
+            mInstance = instance;
+        }
+        
+        @Override
+        public HashMap<String, byte[]> call() throws Exception
+        {
+            long start = System.currentTimeMillis();
+            
+            HashMap<String, byte[]> prefetched = new HashMap<String, byte[]>();
+            HashMap<String, Attachment> attachments = (HashMap<String, Attachment>) mInstance.getAttachments();
+            
+            if (attachments == null)
+                return prefetched;
+            
+            for (Entry<String, Attachment> entry : attachments.entrySet()) {
+                String key = entry.getKey();
+                
+                if (!key.equals("xml")) {
+                    if (!mExportOptions.getBoolean(DataExportActivity.KEY_OUTPUT_MEDIA_FILES, false) 
+                            || entry.getValue().getContentLength() > PREFETCH_MAX_ATTACHMENT_SIZE) {
+                        continue;
+                    }
+                }
+                
+                AttachmentInputStream ais = mDb.getAttachment(mInstance.getId(), key);
+                prefetched.put(key, IOUtils.toByteArray(ais));
+                ais.close();
+            }
+            
+            mTimeFetching.addAndGet(System.currentTimeMillis() - start);
+            
+            return prefetched;
+        }
+    }
+    
+    /*
+     * Walk an instance document with a pull parser, adding the value of any element
+     * that has a matching export column to the record currently being exported
+     */
+    private void readData(InputStream is) throws XmlPullParserException, IOException
     {   
         final String tt = t + "readData(): ";
         
-        if (mExportHeaders.containsKey(xpath)) {
-            if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, tt + "insert data into record at using index " + mExportHeaders.get(xpath) + " (" + node.getText() + ")");
-            mExportData.getLast().put(mExportHeaders.get(xpath), getStringValue(node.getText()));
-        }
+        KXmlParser parser = new KXmlParser();
+        parser.setInput(is, "UTF-8");
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        
+        StringBuilder xpath = new StringBuilder();
+        StringBuilder text = new StringBuilder();
         
-        node.forEachChild(new CallBack() {
-            @Override
-            public void execute(XMLTag arg0)
-            {
-                readData(arg0, xpath + "/" + arg0.getCurrentTagName());
+        // Offsets into xpath at which each open element begins
+        LinkedList<Integer> offsets = new LinkedList<Integer>();
+        
+        int eventType = parser.getEventType();
+        
+        while (eventType != XmlPullParser.END_DOCUMENT) {
+            switch (eventType) {
+            case XmlPullParser.START_TAG:
+                offsets.addLast(xpath.length());
+                xpath.append("/").append(parser.getName());
+                text.setLength(0);
+                break;
+                
+            case XmlPullParser.TEXT:
+                text.append(parser.getText());
+                break;
+                
+            case XmlPullParser.END_TAG:
+                String path = xpath.toString();
+                
+                if (mExportHeaders.containsKey(path)) {
+                    if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, tt + "insert data into record at using index " + mExportHeaders.get(path) + " (" + text + ")");
+                    mExportRecord.put(mExportHeaders.get(path), getStringValue(text.toString()));
+                }
+                
+                xpath.setLength(offsets.removeLast());
+                text.setLength(0);
+                break;
             }
-        });
+            
+            eventType = parser.next();
+        }
     }
 }
@@ -6,13 +6,16 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.UUID;
 
 import org.ektorp.Attachment;
+import org.ektorp.BulkDeleteDocument;
 import org.ektorp.DbAccessException;
+import org.ektorp.DocumentOperationResult;
 import org.supercsv.io.CsvListReader;
 import org.supercsv.io.ICsvListReader;
 import org.supercsv.prefs.CsvPreference;
@@ -23,25 +26,27 @@ import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
 
-import com.mycila.xmltool.XMLDoc;
-import com.mycila.xmltool.XMLDocBuilder;
-import com.mycila.xmltool.XMLTag;
 import com.radicaldynamic.gcmobile.android.activities.DataImportActivity;
 import com.radicaldynamic.groupinform.application.Collect;
 import com.radicaldynamic.groupinform.documents.FormInstance;
 import com.radicaldynamic.groupinform.documents.Generic;
 import com.radicaldynamic.groupinform.listeners.DataImportListener;
 import com.radicaldynamic.groupinform.logic.AccountDevice;
-import com.radicaldynamic.groupinform.utilities.Base64Coder;
 import com.radicaldynamic.groupinform.xform.Field;
 import com.radicaldynamic.groupinform.xform.FormReader;
 import com.radicaldynamic.groupinform.xform.FormWriter;
-import com.radicaldynamic.groupinform.xform.Instance;
+import com.radicaldynamic.groupinform.xform.InstanceTemplate;
  
 public class DataImportTask extends AsyncTask<Void, String, ArrayList<List<String>>> 
 {
     private static final String t = "DataImportTask: ";
     
+    // Number of documents submitted to the database per _bulk_docs request
+    private static final int IMPORT_BATCH_SIZE = 100;
+    
+    // Number of failed rows listed individually in the completion message
+    private static final int MAX_REPORTED_FAILURES = 10;
+    
     public final static int COMPLETE = 0;
     public final static int ERROR = 1;
     public final static int PROGRESS = 2;
@@ -61,7 +66,6 @@ public class DataImportTask extends AsyncTask<Void, String, ArrayList<List<Strin
     private Bundle mFormSetup;
        
     private FormReader mFormReader;
-    private XMLTag mInstanceXML;
     
     private Map<String, Integer> mFieldImportMap = new HashMap<String, Integer>();
    
@@ -74,6 +78,9 @@ public class DataImportTask extends AsyncTask<Void, String, ArrayList<List<Strin
         List<String> line;
         int lineNumber = 0;
         
+        // Documents already committed (in case they need to be rolled back)
+        List<BulkDeleteDocument> committed = new ArrayList<BulkDeleteDocument>();
+        
         try {
             publishProgress("Reading CSV file...");
             ICsvListReader inFile = new CsvListReader(new FileReader(mImportFilePath), CsvPreference.EXCEL_PREFERENCE);
@@ -99,88 +106,42 @@ public class DataImportTask extends AsyncTask<Void, String, ArrayList<List<Strin
                 
                 break;
                 
-            case DataImportListener.MODE_VERIFY:
-                List<String> allEmailAddresses = new ArrayList<String>(); 
+            case DataImportListener.MODE_IMPORT:
+                /*
+                 * Rows are verified in a single pass over the file.  Rows that pass verification are staged and 
+                 * documents are only generated and committed (in batches) once every row in the file has been verified.
+                 */
+                Map<String, String> emailProfileIdMap = new HashMap<String, String>();
                 
-                // Gather list of email addresses associated with active or unused device profiles
+                // Gather email addresses associated with active or unused device profiles (for verification and assignment)
                 for (AccountDevice device : Collect.getInstance().getInformOnlineState().getAccountDevices().values()
                         .toArray(new AccountDevice[Collect.getInstance().getInformOnlineState().getAccountDevices().values().size()])) {
                     
                     if (device.getStatus().contains("active") || device.getStatus().contains("unused"))
-                        allEmailAddresses.add(device.getEmail());
+                        emailProfileIdMap.put(device.getEmail(), device.getId());
                 }
                 
+                int requiredColumns = getRequiredColumns();
+                
+                // Rows that passed verification and the CSV line numbers that they were read from
+                List<List<String>> stagedRecords = new ArrayList<List<String>>();
+                List<Integer> stagedLineNumbers = new ArrayList<Integer>();
+                
                 while ((line = inFile.read()) != null) {
                     lineNumber = inFile.getLineNumber();
                     
                     if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, tt + "verifying line " + lineNumber + ": " + line.toString());
                     publishProgress("Verifying row " + lineNumber);
                     
-                    // Verify form assignment
-                    if (mFormSetup.getInt(DataImportActivity.KEY_FORM_SETUP_ASSIGNMENT, 0) > 0) {
-                        // 1, 2, 3, ...
-                        int column = mFormSetup.getInt(DataImportActivity.KEY_FORM_SETUP_ASSIGNMENT, 0); 
-                        column--;
-                        
-                        if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, tt + "verify assignment from column " + (column + 1) + " (" + line.get(column) + ")");
-                        
-                        // Split up potential device profile identifiers
-                        String [] emailAddresses = line.get(column).split("\\s+");
-                        
-                        for (int i = 0; i < emailAddresses.length; i++) {
-                            String address = emailAddresses[i].trim().toLowerCase();
-                            
-                            if (!allEmailAddresses.contains(address)) {
-                                mImportMsg = startErrorMsg(lineNumber, column + 1) + address + " does not belong to a device profile in this account.\n\nPlease check that your import file and new form setup options are correct and try again.";
-                                return null;
-                            }
-                        }
-                    }
-                    
-                    // Verify form status (be liberal)
-                    if (mFormSetup.getInt(DataImportActivity.KEY_FORM_SETUP_STATUS, 0) > 1) {
-                        int column = mFormSetup.getInt(DataImportActivity.KEY_FORM_SETUP_STATUS, 0); 
-                        column = column - 2;
-                        
-                        if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, tt + "verify form status from column " + (column + 1) + " (" + line.get(column) + ")");
-                        
-                        String status = line.get(column).trim().toLowerCase();
-                        
-                        if (!status.equals("draft") 
-                                && !status.equals("incomplete") 
-                                && !status.equals("complete") 
-                                && !status.equals("completed")) {
-                            mImportMsg = startErrorMsg(lineNumber, column + 1) + "\"" + line.get(column).trim() + "\" is not a valid form status.  Expected draft or complete.\n\nPlease check that your import file and new form setup options are correct and try again.";
-                            return null;
-                        }
-                    }
+                    mImportMsg = verifyRecord(line, lineNumber, requiredColumns, emailProfileIdMap);
                     
-                    // Verify field-to-column import mappings
-                    for (String location : mFieldImportMap.keySet().toArray(new String[mFieldImportMap.keySet().size()])) {
-                        // Value from CSV file to test against
-                        Integer column = mFieldImportMap.get(location);
-                        
-                        if (column > 0) {
-                            column--;
-
-                            // Field (with information that tells us what values it expects)
-                            Field f = mFormReader.getFlatFieldIndex().get(location);
-
-                            if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, tt + "verify field-to-column mapping " + (column + 1) + " (" + line.get(column) + ") for " + f.getType() + "." + f.getBind().getType());
-                        }
+                    if (mImportMsg != null) {
+                        inFile.close();
+                        return null;
                     }
-                }
-                
-                break;
-                
-            case DataImportListener.MODE_IMPORT:                
-                Map<String, String> emailProfileIdMap = new HashMap<String, String>();
-                
-                // Gather list of email addresses associated with active or unused device profiles
-                for (AccountDevice device : Collect.getInstance().getInformOnlineState().getAccountDevices().values()
-                        .toArray(new AccountDevice[Collect.getInstance().getInformOnlineState().getAccountDevices().values().size()])) {
                     
-                    emailProfileIdMap.put(device.getEmail(), device.getId());
+                    stagedRecords.add(new ArrayList<String>(line));
+                    stagedLineNumbers.add(lineNumber);
                 }
                 
                 // Prepare to preserve order of records
@@ -188,9 +149,23 @@ public class DataImportTask extends AsyncTask<Void, String, ArrayList<List<Strin
                 SimpleDateFormat formatter = (SimpleDateFormat) DateFormat.getDateTimeInstance(DateFormat.LONG, DateFormat.LONG);                
                 formatter.setTimeZone(TimeZone.getDefault());
                 formatter.applyPattern(Generic.DATETIME);
+                
+                // Documents waiting to be submitted, their CSV line numbers and any rows that failed
+                List<FormInstance> batchDocuments = new ArrayList<FormInstance>(IMPORT_BATCH_SIZE);
+                Map<String, Integer> batch = new HashMap<String, Integer>();
+                Map<Integer, String> failures = new TreeMap<Integer, String>();
+                
+                // Compile the instance document once rather than rebuilding it for every row
+                InstanceTemplate template = new InstanceTemplate(mFormReader, mFieldImportMap);
+                
+                int rowCount = lineNumber;
 
-                while ((line = inFile.read()) != null) {
-                    lineNumber = inFile.getLineNumber();
+                for (int r = 0; r < stagedRecords.size(); r++) {
+                    line = stagedRecords.get(r);
+                    lineNumber = stagedLineNumbers.get(r);
+                    
+                    // Rows are no longer needed once their documents have been generated
+                    stagedRecords.set(r, null);
                     
                     if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, tt + "importing line " + lineNumber + ": " + line.toString());
                     publishProgress("Importing row " + lineNumber);
@@ -242,17 +217,36 @@ public class DataImportTask extends AsyncTask<Void, String, ArrayList<List<Strin
                     }
                     
                     // Create XForm instance
-                    XMLDocBuilder instanceDoc = XMLDoc.newDocument(true);
-                    mInstanceXML = instanceDoc.addRoot(mFormReader.getInstanceRoot());
-                    mInstanceXML.gotoRoot().addAttribute("id", mFormReader.getInstanceRootId());
-                    generateInstanceXML(null, line);
+                    fi.addInlineAttachment(new Attachment("xml", template.render(line), FormWriter.CONTENT_TYPE));
                     
-                    fi.addInlineAttachment(new Attachment("xml", new String(Base64Coder.encode(mInstanceXML.toBytes())).toString(), FormWriter.CONTENT_TYPE));
+                    // Assign our own IDs so that bulk results can be mapped back to line numbers 
+                    fi.setId(UUID.randomUUID().toString().replaceAll("[^a-zA-Z0-9]", ""));
+                    batch.put(fi.getId(), lineNumber);
+                    batchDocuments.add(fi);
                     
-                    Collect.getInstance().getDbService().getDb().create(fi);
+                    if (batchDocuments.size() >= IMPORT_BATCH_SIZE)
+                        failures.putAll(flushImportBatch(batchDocuments, batch, committed));
                 }
                 
-                mImportMsg = "Import complete. " + lineNumber + " rows processed.";
+                if (!batchDocuments.isEmpty())
+                    failures.putAll(flushImportBatch(batchDocuments, batch, committed));
+                
+                mImportMsg = "Import complete. " + rowCount + " rows processed.";
+                
+                if (!failures.isEmpty()) {
+                    mImportMsg = mImportMsg + "\n\n" + failures.size() + " rows could not be imported:\n";
+                    
+                    int reported = 0;
+                    
+                    for (Map.Entry<Integer, String> failure : failures.entrySet()) {
+                        if (reported++ == MAX_REPORTED_FAILURES) {
+                            mImportMsg = mImportMsg + "\n...";
+                            break;
+                        }
+                        
+                        mImportMsg = mImportMsg + "\nRow " + failure.getKey() + ": " + failure.getValue();
+                    }
+                }
                 
                 break;
             }
@@ -264,10 +258,12 @@ public class DataImportTask extends AsyncTask<Void, String, ArrayList<List<Strin
             mImportMsg = "Failure while writing to database:\n\n" + e.toString() + "\n\nError occured somewhere around line number " + lineNumber;
             if (Collect.Log.ERROR) Log.e(Collect.LOGTAG, t + "error while reading CSV file for import: " + e.toString());
             e.printStackTrace();            
+            mImportMsg = mImportMsg + rollbackImport(committed);
         } catch (Exception e) {
             mImportMsg = "Unexpected error countered:\n\n" + e.toString() + "\n\nError occured somewhere around line number " + lineNumber;
             if (Collect.Log.ERROR) Log.e(Collect.LOGTAG, t + "error while reading CSV file for import: " + e.toString());
             e.printStackTrace();
+            mImportMsg = mImportMsg + rollbackImport(committed);
         }
         
         return records;
@@ -351,47 +347,160 @@ public class DataImportTask extends AsyncTask<Void, String, ArrayList<List<Strin
         }
     }
     
-    private void generateInstanceXML(Instance incomingInstance, List<String> recordRow)
+    /*
+     * Submit a batch of documents through _bulk_docs and return any per-document 
+     * errors keyed by the CSV line number that the document was generated from
+     */
+    private Map<Integer, String> flushImportBatch(List<FormInstance> documents, Map<String, Integer> lineNumbers, List<BulkDeleteDocument> committed)
     {
-        Iterator<Instance> instanceIterator;
+        final String tt = t + "flushImportBatch(): ";
         
-        if (incomingInstance == null)
-            instanceIterator = mFormReader.getInstance().iterator();
-        else
-            instanceIterator = incomingInstance.getChildren().iterator();
+        Map<Integer, String> failures = new HashMap<Integer, String>();
         
-        while (instanceIterator.hasNext()) {
-            Instance i = instanceIterator.next();
-             
-            // Don't output instance tags representing repeated data
-            if (i.getChildren().isEmpty()) {
-                /*
-                 * For some reason unknown to me we can only call gotoParent() when adding 
-                 * an empty tag.  Calling it after adding an empty tag OR a tag with a text
-                 * value causes the nesting to get screwed up.  This doesn't make any sense
-                 * to me.  It might be a bug with xmltool.
-                 */
+        publishProgress("Saving rows " + lineNumbers.get(documents.get(0).getId()) + " to " + lineNumbers.get(documents.get(documents.size() - 1).getId()));
+        
+        for (DocumentOperationResult result : Collect.getInstance().getDbService().getDb().executeBulk(documents)) {
+            if (result.isErroneous()) {
+                if (Collect.Log.WARN) Log.w(Collect.LOGTAG, tt + "unable to import " + result.getId() + ": " + result.getError() + " (" + result.getReason() + ")");
+                failures.put(lineNumbers.get(result.getId()), result.getError() + " (" + result.getReason() + ")");
+            }
+        }
+        
+        // Successfully written documents now carry their new revisions
+        for (FormInstance fi : documents) {
+            if (!failures.containsKey(lineNumbers.get(fi.getId())))
+                committed.add(BulkDeleteDocument.of(fi));
+        }
+        
+        documents.clear();
+        lineNumbers.clear();
+        
+        return failures;
+    }
+    
+    /*
+     * Remove documents written earlier in an import that could not be completed and 
+     * return a note for the import message saying whether this was successful
+     */
+    private String rollbackImport(List<BulkDeleteDocument> committed)
+    {
+        final String tt = t + "rollbackImport(): ";
+        
+        if (committed.isEmpty())
+            return "";
+        
+        publishProgress("Removing " + committed.size() + " imported rows...");
+        
+        int remaining = committed.size();
+        
+        for (int i = 0; i < committed.size(); i += IMPORT_BATCH_SIZE) {
+            List<BulkDeleteDocument> batch = committed.subList(i, Math.min(i + IMPORT_BATCH_SIZE, committed.size()));
+            
+            try {
+                int removed = batch.size();
                 
-                // Hidden instance field OR no field import map entry
-                if (i.getField() == null || !mFieldImportMap.containsKey(i.getField().getLocation())) { 
-                    mInstanceXML.addTag(i.getName());
-                    mInstanceXML.gotoParent();
-                } else {
-                    // If this location is recorded in the field import map it will have a corresponding column value
-                    Integer column = mFieldImportMap.get(i.getField().getLocation());
-                    
-                    if (column > 0) {
-                        // Import user defined value
-                        column--;
-                        mInstanceXML.addTag(i.getName()).setText(recordRow.get(column).trim());
-                    } else {
-                        // Use template default
-                        mInstanceXML.addTag(i.getName());
-                        mInstanceXML.gotoParent();                       
+                for (DocumentOperationResult result : Collect.getInstance().getDbService().getDb().executeBulk(batch)) {
+                    if (result.isErroneous()) {
+                        if (Collect.Log.WARN) Log.w(Collect.LOGTAG, tt + "unable to remove " + result.getId() + ": " + result.getError() + " (" + result.getReason() + ")");
+                        removed--;
                     }
                 }
+                
+                remaining = remaining - removed;
+            } catch (DbAccessException e) {
+                if (Collect.Log.ERROR) Log.e(Collect.LOGTAG, tt + "unable to remove imported rows: " + e.toString());
+            }
+        }
+        
+        if (remaining == 0)
+            return "\n\nNo records were imported.";
+        else
+            return "\n\n" + remaining + " of " + committed.size() + " imported rows could not be removed again.";
+    }
+    
+    /*
+     * Verify a single row against the new form setup options (assignment, status) and 
+     * return an error message if anything is wrong with it
+     */
+    private String verifyRecord(List<String> line, int lineNumber, int requiredColumns, Map<String, String> emailProfileIdMap)
+    {
+        final String tt = t + "verifyRecord(): ";
+        
+        // Verify that the row has every column that is read from it
+        if (line.size() < requiredColumns) {
+            return startErrorMsg(lineNumber, line.size() + 1) + "row has " + line.size() + " columns but " + requiredColumns + " are needed.\n\nPlease check that your import file and new form setup options are correct and try again.";
+        }
+        
+        // Verify form assignment
+        if (mFormSetup.getInt(DataImportActivity.KEY_FORM_SETUP_ASSIGNMENT, 0) > 0) {
+            // 1, 2, 3, ...
+            int column = mFormSetup.getInt(DataImportActivity.KEY_FORM_SETUP_ASSIGNMENT, 0); 
+            column--;
+            
+            if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, tt + "verify assignment from column " + (column + 1) + " (" + line.get(column) + ")");
+            
+            // Split up potential device profile identifiers
+            String [] emailAddresses = line.get(column).split("\\s+");
+            
+            for (int i = 0; i < emailAddresses.length; i++) {
+                String address = emailAddresses[i].trim().toLowerCase();
+                
+                if (!emailProfileIdMap.containsKey(address)) {
+                    return startErrorMsg(lineNumber, column + 1) + address + " does not belong to a device profile in this account.\n\nPlease check that your import file and new form setup options are correct and try again.";
+                }
             }
         }
+        
+        // Verify form status (be liberal)
+        if (mFormSetup.getInt(DataImportActivity.KEY_FORM_SETUP_STATUS, 0) > 1) {
+            int column = mFormSetup.getInt(DataImportActivity.KEY_FORM_SETUP_STATUS, 0); 
+            column = column - 2;
+            
+            if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, tt + "verify form status from column " + (column + 1) + " (" + line.get(column) + ")");
+            
+            String status = line.get(column).trim().toLowerCase();
+            
+            if (!status.equals("draft") 
+                    && !status.equals("incomplete") 
+                    && !status.equals("complete") 
+                    && !status.equals("completed")) {
+                return startErrorMsg(lineNumber, column + 1) + "\"" + line.get(column).trim() + "\" is not a valid form status.  Expected draft or complete.\n\nPlease check that your import file and new form setup options are correct and try again.";
+            }
+        }
+        
+        // Verify field-to-column import mappings
+        if (Collect.Log.VERBOSE) {
+            for (String location : mFieldImportMap.keySet()) {
+                Integer column = mFieldImportMap.get(location);
+
+                if (column > 0) {
+                    column--;
+
+                    // Field (with information that tells us what values it expects)
+                    Field f = mFormReader.getFlatFieldIndex().get(location);
+                    Log.v(Collect.LOGTAG, tt + "verify field-to-column mapping " + (column + 1) + " (" + line.get(column) + ") for " + f.getType() + "." + f.getBind().getType());
+                }
+            }
+        }
+        
+        return null;
+    }
+    
+    /*
+     * Number of columns that each row must have for the new form setup options (assignment, 
+     * name, status) and field-to-column import mappings
+     */
+    private int getRequiredColumns()
+    {
+        int columns = Math.max(mFormSetup.getInt(DataImportActivity.KEY_FORM_SETUP_ASSIGNMENT, 0), mFormSetup.getInt(DataImportActivity.KEY_FORM_SETUP_NAME, 0));
+        columns = Math.max(columns, mFormSetup.getInt(DataImportActivity.KEY_FORM_SETUP_STATUS, 0) - 1);
+        
+        for (Integer column : mFieldImportMap.values()) {
+            if (column != null)
+                columns = Math.max(columns, column);
+        }
+        
+        return columns;
     }
     
     private String startErrorMsg(int row, int column)
@@ -28,10 +28,21 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.UUID;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HttpContext;
 import org.ektorp.AttachmentInputStream;
 import org.javarosa.xform.parse.XFormParser;
@@ -42,10 +53,14 @@ import org.odk.collect.android.utilities.DocumentFetchResult;
 import org.odk.collect.android.utilities.FileUtils;
 import org.odk.collect.android.utilities.WebUtils;
 
+import android.content.SharedPreferences;
 import android.os.AsyncTask;
+import android.preference.PreferenceManager;
+import android.text.format.Formatter;
 import android.util.Log;
 import android.webkit.MimeTypeMap;
 
+import com.radicaldynamic.gcmobile.android.preferences.PreferencesActivity;
 import com.radicaldynamic.groupinform.R;
 import com.radicaldynamic.groupinform.application.Collect;
 import com.radicaldynamic.groupinform.documents.FormDefinition;
@@ -73,6 +88,20 @@ public class DownloadFormsTask extends
         "http://openrosa.org/xforms/xformsManifest";
 
     private String mAuth = "";
+
+    // BEGIN custom
+    /*
+     * Kept in the shared preferences so that what is already on this device is not downloaded again: the ETag,
+     * hash and length of each XForm (by download URL) and where each media file was attached (by hash)
+     */
+    private static final String CACHE_XFORM_ETAG = "download_etag_";
+    private static final String CACHE_XFORM_HASH = "download_hash_";
+    private static final String CACHE_XFORM_LENGTH = "download_length_";
+    private static final String CACHE_MEDIA_FILE = "download_media_";
+
+    // Bytes that did not have to be downloaded because they were already on this device
+    private AtomicLong mBytesSaved = new AtomicLong();
+    // END custom
     
     public void setAuth(String auth) {
         this.mAuth = auth;
@@ -99,6 +128,10 @@ public class DownloadFormsTask extends
 
             String message = "";
 
+            // BEGIN custom
+            long bytesSaved = mBytesSaved.get();
+            // END custom
+
             try {
                 // get the xml file
                 // if we've downloaded a duplicate, this gives us the file
@@ -161,7 +194,9 @@ public class DownloadFormsTask extends
                     String error = downloadManifestAndMediaFiles(dl.getParent(), fd, count, total);
                     
                     if (error != null) {
-                        message += error;
+                        // Don't create a form definition with missing or partially downloaded media files
+                        FileUtilsExtended.deleteFolder(dl.getParent());
+                        throw new IncompleteMediaFiles(error);
                     }
                     // END custom
                 } else {
@@ -185,6 +220,9 @@ public class DownloadFormsTask extends
 
                 String revision = fDoc.getRevision();
 
+                String db = Collect.getInstance().getInformOnlineState().getSelectedDatabase();
+                SharedPreferences.Editor editor = PreferenceManager.getDefaultSharedPreferences(Collect.getInstance()).edit();
+
                 for (File f : dl.getParentFile().listFiles()) {
                     String fileName = f.getName();
                     String attachmentName = fileName;
@@ -193,6 +231,8 @@ public class DownloadFormsTask extends
 
                     if (fileName.equals(dl.getName()))
                         attachmentName = "xml";
+                    else
+                        editor.putString(CACHE_MEDIA_FILE + FileUtils.getMd5Hash(f), db + "/" + fDoc.getId() + "/" + attachmentName);
 
                     String fileExtension = fileName.substring(fileName.lastIndexOf(".") + 1);
                     String contentType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(fileExtension);
@@ -203,6 +243,9 @@ public class DownloadFormsTask extends
                     fis.close();
                 }
 
+                // Media files can now be copied from this form definition rather than downloaded again
+                editor.commit();
+
                 // Remove temporary download directory
                 FileUtilsExtended.deleteFolder(dl.getParent());
                 // END custom
@@ -212,6 +255,8 @@ public class DownloadFormsTask extends
             // BEGIN custom
             } catch (DuplicateXFormFile e) {
                 message = " SKIPPED (duplicate)";
+            } catch (IncompleteMediaFiles e) {
+                message += e.getMessage();
             // END custom
             } catch (Exception e) {
                 e.printStackTrace();
@@ -225,9 +270,20 @@ public class DownloadFormsTask extends
             if (message.equalsIgnoreCase("")) {
                 message = Collect.getInstance().getString(R.string.success);
             }
+            // BEGIN custom
+            bytesSaved = mBytesSaved.get() - bytesSaved;
+
+            if (bytesSaved > 0) {
+                message += " (" + Formatter.formatShortFileSize(Collect.getInstance(), bytesSaved) + " already on device)";
+            }
+            // END custom
             result.put(fd.formName, message);
         }
 
+        // BEGIN custom
+        if (Collect.Log.INFO) Log.i(Collect.LOGTAG, t + ": " + mBytesSaved.get() + " bytes already on device were not downloaded");
+        // END custom
+
         return result;
     }
 
@@ -264,7 +320,27 @@ public class DownloadFormsTask extends
         f = new File(downloadFolder + File.separator + rootName + ".xml");
         // END custom
 
-        downloadFile(f, url);
+        // BEGIN custom
+//        downloadFile(f, url);
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(Collect.getInstance());
+        FormDefinitionRepo fdr = Collect.getInstance().getDbService().getFormDefinitionRepo();
+
+        // Only ask the server whether the XForm has changed if what was last downloaded is still here
+        String etag = settings.getString(CACHE_XFORM_ETAG + url, null);
+        String knownHash = settings.getString(CACHE_XFORM_HASH + url, null);
+
+        if (etag != null && (knownHash == null || fdr.findByXmlHash(knownHash).isEmpty())) {
+            etag = null;
+        }
+
+        try {
+            etag = downloadFile(f, url, etag);
+        } catch (NotModified e) {
+            mBytesSaved.addAndGet(settings.getLong(CACHE_XFORM_LENGTH + url, 0));
+            FileUtilsExtended.deleteFolder(downloadFolder);
+            throw new DuplicateXFormFile();
+        }
+        // END custom
 
         // we've downloaded the file, and we may have renamed it
         // make sure it's not the same as a file we already have
@@ -294,8 +370,17 @@ public class DownloadFormsTask extends
         
         // Don't duplicate existing (identical) XForms
         String md5Hash = FileUtils.getMd5Hash(f);        
-        FormDefinitionRepo fdr = new FormDefinitionRepo(Collect.getInstance().getDbService().getDb());
         List<FormDefinition> fdl = fdr.findByXmlHash(md5Hash);
+
+        SharedPreferences.Editor editor = settings.edit();
+
+        if (etag == null) {
+            editor.remove(CACHE_XFORM_ETAG + url).remove(CACHE_XFORM_HASH + url).remove(CACHE_XFORM_LENGTH + url);
+        } else {
+            editor.putString(CACHE_XFORM_ETAG + url, etag).putString(CACHE_XFORM_HASH + url, md5Hash).putLong(CACHE_XFORM_LENGTH + url, f.length());
+        }
+
+        editor.commit();
         
         if (!fdl.isEmpty()) {
             FileUtilsExtended.deleteFolder(downloadFolder);
@@ -307,15 +392,27 @@ public class DownloadFormsTask extends
     }
 
 
+    // BEGIN custom
+    private void downloadFile(File f, String downloadUrl) throws Exception {
+        downloadFile(f, downloadUrl, null);
+    }
+    // END custom
+
+
     /**
      * Common routine to download a document from the downloadUrl and save the contents in the file
      * 'f'. Shared by media file download and form file download.
      * 
      * @param f
      * @param downloadUrl
+     * @param etag if not null, the document is only downloaded if it no longer matches (NotModified is thrown if it does)
+     * @return the ETag of the downloaded document (null if the server did not give one)
      * @throws Exception
      */
-    private void downloadFile(File f, String downloadUrl) throws Exception {
+    // BEGIN custom
+//    private void downloadFile(File f, String downloadUrl) throws Exception {
+    private String downloadFile(File f, String downloadUrl, String etag) throws Exception {
+    // END custom
         URI uri = null;
         try {
             // assume the downloadUrl is escaped properly
@@ -330,18 +427,34 @@ public class DownloadFormsTask extends
         }
 
         // get shared HttpContext so that authentication and cookies are retained.
-        HttpContext localContext = Collect.getInstance().getHttpContext();
+        // BEGIN custom
+//        HttpContext localContext = Collect.getInstance().getHttpContext();
+        // Media files are downloaded concurrently so each download has its own context over the shared one
+        HttpContext localContext = new BasicHttpContext(Collect.getInstance().getHttpContext());
+        // END custom
 
         HttpClient httpclient = WebUtils.createHttpClient(WebUtils.CONNECTION_TIMEOUT);
 
         // set up request...
         HttpGet req = WebUtils.createOpenRosaHttpGet(uri, mAuth);
 
+        // BEGIN custom
+        if (etag != null) {
+            req.setHeader("If-None-Match", etag);
+        }
+        // END custom
+
         HttpResponse response = null;
         try {
             response = httpclient.execute(req, localContext);
             int statusCode = response.getStatusLine().getStatusCode();
 
+            // BEGIN custom
+            if (statusCode == 304 && etag != null) {
+                throw new NotModified();
+            }
+            // END custom
+
             if (statusCode != 200) {
                 String errMsg =
                     Collect.getInstance().getString(R.string.file_fetch_failed, downloadUrl,
@@ -377,9 +490,21 @@ public class DownloadFormsTask extends
                 }
             }
 
+            // BEGIN custom
+            Header etagHeader = response.getFirstHeader("ETag");
+            return etagHeader == null ? null : etagHeader.getValue();
+            // END custom
+        // BEGIN custom
+        } catch (NotModified e) {
+            throw e;
+        // END custom
         } catch (Exception e) {
             e.printStackTrace();
             throw e;
+        } finally {
+            // BEGIN custom
+            httpclient.getConnectionManager().shutdown();
+            // END custom
         }
     }
 
@@ -500,47 +625,177 @@ public class DownloadFormsTask extends
 
         // OK we now have the full set of files to download...
         Log.i(t, "Downloading " + files.size() + " media files.");
-        int mediaCount = 0;
+        // BEGIN custom
+//        int mediaCount = 0;
+//        if (files.size() > 0) {
+//            FileUtils.createFolder(mediaPath);
+//            File mediaDir = new File(mediaPath);
+//            for (MediaFile toDownload : files) {
+//                if (isCancelled()) {
+//                    return "cancelled";
+//                }
+//                ++mediaCount;
+//                publishProgress(
+//                    Collect.getInstance().getString(R.string.form_download_progress, fd.formName,
+//                        mediaCount, files.size()), Integer.valueOf(count).toString(), Integer
+//                            .valueOf(total).toString());
+//                try {
+//                    File mediaFile = new File(mediaDir, toDownload.filename);
+//
+//                    String currentFileHash = FileUtils.getMd5Hash(mediaFile);
+//                    String downloadFileHash = toDownload.hash.substring(MD5_COLON_PREFIX.length());
+//
+//                    if (!mediaFile.exists()) {
+//                        downloadFile(mediaFile, toDownload.downloadUrl);
+//                    } else {
+//                        if (!currentFileHash.contentEquals(downloadFileHash)) {
+//                            // if the hashes match, it's the same file
+//                            // otherwise delete our current one and replace it with the new one
+//                            mediaFile.delete();
+//                            downloadFile(mediaFile, toDownload.downloadUrl);
+//                        } else {
+//                            // exists, and the hash is the same
+//                            // no need to download it again
+//                        }
+//                    }
+//                } catch (Exception e) {
+//                    return e.getLocalizedMessage();
+//                }
+//            }
+//        }
         if (files.size() > 0) {
             FileUtils.createFolder(mediaPath);
-            File mediaDir = new File(mediaPath);
-            for (MediaFile toDownload : files) {
-                if (isCancelled()) {
-                    return "cancelled";
-                }
-                ++mediaCount;
-                publishProgress(
-                    Collect.getInstance().getString(R.string.form_download_progress, fd.formName,
-                        mediaCount, files.size()), Integer.valueOf(count).toString(), Integer
-                            .valueOf(total).toString());
-                try {
-                    File mediaFile = new File(mediaDir, toDownload.filename);
-
-                    String currentFileHash = FileUtils.getMd5Hash(mediaFile);
-                    String downloadFileHash = toDownload.hash.substring(MD5_COLON_PREFIX.length());
-
-                    if (!mediaFile.exists()) {
-                        downloadFile(mediaFile, toDownload.downloadUrl);
-                    } else {
-                        if (!currentFileHash.contentEquals(downloadFileHash)) {
-                            // if the hashes match, it's the same file
-                            // otherwise delete our current one and replace it with the new one
-                            mediaFile.delete();
-                            downloadFile(mediaFile, toDownload.downloadUrl);
-                        } else {
-                            // exists, and the hash is the same
-                            // no need to download it again
+            final File mediaDir = new File(mediaPath);
+
+            SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(Collect.getInstance());
+            int concurrency;
+
+            try {
+                concurrency = Integer.parseInt(settings.getString(PreferencesActivity.KEY_TRANSFER_CONCURRENCY, PreferencesActivity.DEFAULT_TRANSFER_CONCURRENCY));
+            } catch (NumberFormatException e) {
+                concurrency = Integer.parseInt(PreferencesActivity.DEFAULT_TRANSFER_CONCURRENCY);
+            }
+
+            ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(concurrency, files.size())));
+            CompletionService<String> downloads = new ExecutorCompletionService<String>(pool);
+
+            try {
+                for (final MediaFile toDownload : files) {
+                    downloads.submit(new Callable<String>() {
+                        public String call() throws Exception {
+                            fetchMediaFile(new File(mediaDir, toDownload.filename), toDownload);
+                            return toDownload.filename;
                         }
+                    });
+                }
+
+                for (int mediaCount = 1; mediaCount <= files.size(); mediaCount++) {
+                    if (isCancelled()) {
+                        return "cancelled";
                     }
-                } catch (Exception e) {
-                    return e.getLocalizedMessage();
+
+                    try {
+                        downloads.take().get();
+                    } catch (ExecutionException e) {
+                        return e.getCause().getLocalizedMessage();
+                    }
+
+                    publishProgress(
+                        Collect.getInstance().getString(R.string.form_download_progress, fd.formName,
+                            mediaCount, files.size()), Integer.valueOf(count).toString(), Integer
+                                .valueOf(total).toString());
+                }
+            } catch (InterruptedException e) {
+                return "cancelled";
+            } finally {
+                pool.shutdownNow();
+
+                // Workers still running may be writing to the media folder so wait for them before it is used
+                boolean interrupted = false;
+
+                while (!pool.isTerminated()) {
+                    try {
+                        pool.awaitTermination(WebUtils.CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
                 }
             }
         }
+        // END custom
         return null;
     }
 
 
+    // BEGIN custom
+    /*
+     * Fetch a media file unless a file with the same hash is already here (in which case it is copied)
+     */
+    private void fetchMediaFile(File mediaFile, MediaFile toDownload) throws Exception {
+        String downloadFileHash = toDownload.hash.substring(MD5_COLON_PREFIX.length());
+
+        if (mediaFile.exists()) {
+            if (downloadFileHash.contentEquals(FileUtils.getMd5Hash(mediaFile))) {
+                // exists, and the hash is the same
+                // no need to download it again
+                return;
+            }
+
+            mediaFile.delete();
+        }
+
+        if (!copyAttachedMediaFile(mediaFile, downloadFileHash)) {
+            downloadFile(mediaFile, toDownload.downloadUrl);
+        }
+    }
+
+
+    /*
+     * Copy a media file from a form definition that it was previously attached to (if it is still there)
+     */
+    private boolean copyAttachedMediaFile(File mediaFile, String hash) {
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(Collect.getInstance());
+        String location = settings.getString(CACHE_MEDIA_FILE + hash, null);
+
+        if (location == null) {
+            return false;
+        }
+
+        // Database, document and attachment
+        String [] l = location.split("/", 3);
+
+        try {
+            InputStream is = Collect.getInstance().getDbService().getDb(l[0]).getAttachment(l[1], l[2]);
+            OutputStream os = new FileOutputStream(mediaFile);
+
+            try {
+                IOUtils.copy(is, os);
+            } finally {
+                os.close();
+                is.close();
+            }
+
+            if (hash.contentEquals(FileUtils.getMd5Hash(mediaFile))) {
+                mBytesSaved.addAndGet(mediaFile.length());
+                return true;
+            }
+        } catch (Exception e) {
+            if (Collect.Log.DEBUG) Log.d(Collect.LOGTAG, t + ": unable to copy " + mediaFile.getName() + " from " + location + ": " + e.toString());
+        }
+
+        // Whatever was recorded is no longer there
+        mediaFile.delete();
+        settings.edit().remove(CACHE_MEDIA_FILE + hash).commit();
+
+        return false;
+    }
+    // END custom
+
+
     @Override
     protected void onPostExecute(HashMap<String, String> value) {
         synchronized (this) {
@@ -578,4 +833,22 @@ public class DownloadFormsTask extends
             super();
         }
     }
+    
+    @SuppressWarnings("serial")
+    public class IncompleteMediaFiles extends Exception
+    {
+        IncompleteMediaFiles(String message)
+        {
+            super(message);
+        }
+    }
+    
+    @SuppressWarnings("serial")
+    public class NotModified extends Exception
+    {
+        NotModified()
+        {
+            super();
+        }
+    }
 }
@@ -3,7 +3,10 @@ package com.radicaldynamic.groupinform.tasks;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Future;
 
 import org.ektorp.ReplicationStatus;
 
@@ -167,50 +170,46 @@ public class SynchronizeFoldersTask extends AsyncTask<Void, Void, Void>
             return status;
         }
         
-        // Reset iterator
+        boolean pull = mTransferMode == SynchronizeFoldersListener.MODE_PULL || mTransferMode == SynchronizeFoldersListener.MODE_SWAP;
+        boolean push = mTransferMode == SynchronizeFoldersListener.MODE_PUSH || mTransferMode == SynchronizeFoldersListener.MODE_SWAP;
+        
+        // Queue every folder at once; the scheduler replicates several at a time (the selected folder first)
+        LinkedHashMap<String, Future<HashMap<Integer, ReplicationStatus>>> replications = new LinkedHashMap<String, Future<HashMap<Integer, ReplicationStatus>>>();
+        
         folderIds = folderSet.iterator();    
             
         while (folderIds.hasNext()) {
             AccountFolder folder = Collect.getInstance().getInformOnlineState().getAccountFolders().get(folderIds.next());
+            
+            if (folder.isReplicated())
+                replications.put(folder.getId(), Collect.getInstance().getDbService().getReplicationScheduler().schedule(folder.getId(), pull, push, true));
+        }
+        
+        for (Map.Entry<String, Future<HashMap<Integer, ReplicationStatus>>> replication : replications.entrySet()) {
             HashMap<String, ReplicationStatus> replicationResults = new HashMap<String, ReplicationStatus>();
             
-            // Remember if a database existed prior to the PULL that follows this
-            boolean dbMayHaveChanges = Collect.getInstance().getDbService().isDbLocal(folder.getId());
+            try {
+                HashMap<Integer, ReplicationStatus> results = replication.getValue().get();
+                
+                if (results.containsKey(DatabaseService.REPLICATE_PULL))
+                    replicationResults.put(SynchronizeFoldersListener.PULL_RESULT, results.get(DatabaseService.REPLICATE_PULL));
+                
+                if (results.containsKey(DatabaseService.REPLICATE_PUSH))
+                    replicationResults.put(SynchronizeFoldersListener.PUSH_RESULT, results.get(DatabaseService.REPLICATE_PUSH));
+            } catch (Exception e) {
+                if (Collect.Log.WARN) Log.w(Collect.LOGTAG, t + "problem synchronizing " + replication.getKey() + ": " + e.toString());
+                e.printStackTrace();
+                
+                replicationResults.put(pull ? SynchronizeFoldersListener.PULL_RESULT : SynchronizeFoldersListener.PUSH_RESULT, null);
+            }
             
-            if (folder.isReplicated()) {
-                // Update progress dialog
-                Message msg = progressHandler.obtainMessage();
-                msg.arg1 = ++progress;
-                msg.arg2 = total;
-                progressHandler.sendMessage(msg);
-
-                try {
-                    if (mTransferMode == SynchronizeFoldersListener.MODE_PULL || mTransferMode == SynchronizeFoldersListener.MODE_SWAP) {
-                        replicationResults.put(SynchronizeFoldersListener.PULL_RESULT, Collect.getInstance().getDbService().replicate(folder.getId(), DatabaseService.REPLICATE_PULL));
-                    }
-                } catch (Exception e) {
-                    if (Collect.Log.WARN) Log.w(Collect.LOGTAG, t + "problem pulling " + folder.getId() + ": " + e.toString());
-                    e.printStackTrace();
-
-                    replicationResults.put(SynchronizeFoldersListener.PULL_RESULT, null);
-                }
-
-                // A push should only occur if the database exists locally and is likely to have changes
-                if (dbMayHaveChanges) {
-                    try {                        
-                        if (mTransferMode == SynchronizeFoldersListener.MODE_PUSH || mTransferMode == SynchronizeFoldersListener.MODE_SWAP) {
-                            replicationResults.put(SynchronizeFoldersListener.PUSH_RESULT, Collect.getInstance().getDbService().replicate(folder.getId(), DatabaseService.REPLICATE_PUSH));
-                        }
-                    } catch (Exception e) {
-                        if (Collect.Log.WARN) Log.w(Collect.LOGTAG, t + "problem pushing " + folder.getId() + ": " + e.toString());
-                        e.printStackTrace();
-
-                        replicationResults.put(SynchronizeFoldersListener.PUSH_RESULT, null);
-                    }
-                }
-
-                status.put(folder.getId(), replicationResults);
-            }                
+            // Update progress dialog
+            Message msg = progressHandler.obtainMessage();
+            msg.arg1 = ++progress;
+            msg.arg2 = total;
+            progressHandler.sendMessage(msg);
+            
+            status.put(replication.getKey(), replicationResults);
         }
 
         return status;
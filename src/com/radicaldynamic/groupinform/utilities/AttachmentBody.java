@@ -0,0 +1,86 @@
+package com.radicaldynamic.groupinform.utilities;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.entity.mime.MIME;
+import org.apache.http.entity.mime.content.AbstractContentBody;
+import org.ektorp.CouchDbConnector;
+import org.ektorp.DbAccessException;
+
+/*
+ * Multipart body that streams a document attachment straight from CouchDB (rather than from a copy on disk).
+ * The attachment is opened each time the body is written so requests that are retried can be sent again.
+ */
+public class AttachmentBody extends AbstractContentBody
+{
+    private final CouchDbConnector mDb;
+    private final String mDocumentId;
+    private final String mAttachmentId;
+    private final String mFilename;
+    private final long mContentLength;
+
+    public AttachmentBody(CouchDbConnector db, String documentId, String attachmentId, String filename, String mimeType, long contentLength)
+    {
+        super(mimeType);
+        mDb = db;
+        mDocumentId = documentId;
+        mAttachmentId = attachmentId;
+        mFilename = filename;
+        mContentLength = contentLength;
+    }
+
+    public void writeTo(OutputStream out) throws IOException
+    {
+        if (out == null)
+            throw new IllegalArgumentException("Output stream may not be null");
+
+        InputStream in;
+
+        try {
+            in = mDb.getAttachment(mDocumentId, mAttachmentId);
+        } catch (DbAccessException e) {
+            throw new IOException("unable to read attachment " + mAttachmentId + " of " + mDocumentId + ": " + e.toString());
+        }
+
+        try {
+            byte[] buffer = new byte[8192];
+            int bytesRead;
+
+            while ((bytesRead = in.read(buffer)) != -1) {
+                out.write(buffer, 0, bytesRead);
+            }
+
+            out.flush();
+        } finally {
+            in.close();
+        }
+    }
+
+    @Deprecated
+    public void writeTo(OutputStream out, int mode) throws IOException
+    {
+        writeTo(out);
+    }
+
+    public String getCharset()
+    {
+        return null;
+    }
+
+    public String getTransferEncoding()
+    {
+        return MIME.ENC_BINARY;
+    }
+
+    public long getContentLength()
+    {
+        return mContentLength;
+    }
+
+    public String getFilename()
+    {
+        return mFilename;
+    }
+}
@@ -6,7 +6,6 @@ import java.util.regex.Pattern;
 
 import android.util.Log;
 
-import com.mycila.xmltool.XMLTag;
 import com.radicaldynamic.groupinform.application.Collect;
 
 public class Bind
@@ -42,13 +41,15 @@ public class Bind
         
     }
     
-    public Bind(XMLTag tag, String instanceRoot)
+    public Bind(Map<String, String> tagAttributes, String instanceRoot)
     {
         // Read in attributes (includes "ref" to instance data output)
-        for (String s : tag.getAttributeNames()) {            
+        for (Map.Entry<String, String> a : tagAttributes.entrySet()) {
+            String s = a.getKey();
+
             // Special handling for certain attributes
             if (s.equals("nodeset")) {
-                String nodeset = tag.getAttribute(s);
+                String nodeset = a.getValue();
 
                 // If the nodeset is not literal then make it so
                 if (!Pattern.matches("^/.*", nodeset)) {
@@ -58,31 +59,31 @@ public class Bind
                 setXPath(nodeset);         
             } else if (s.equals("type")) {
                 // KoBo Forms Designer outputs something like xsd:type but that doesn't help us.  Workaround ensues.
-                String t = tag.getAttribute(s);
+                String t = a.getValue();
                 
                 if (t.contains(":")) {
                     t = t.substring(t.indexOf(":") + 1);
                 }
             
                 setType(t);
-            } else if (s.equals("required") && tag.getAttribute(s).equals("true()"))
+            } else if (s.equals("required") && a.getValue().equals("true()"))
                 setRequired(true);
-            else if (s.equals("readonly") && tag.getAttribute(s).equals("true()"))
+            else if (s.equals("readonly") && a.getValue().equals("true()"))
                 setReadonly(true);
             else if (s.equals("jr:preload"))
-                setPreload(tag.getAttribute(s));
+                setPreload(a.getValue());
             else if (s.equals("jr:preloadParams"))
-                setPreloadParams(tag.getAttribute(s));
+                setPreloadParams(a.getValue());
             else if (s.equals("constraint")) 
-                setConstraint(tag.getAttribute(s));
+                setConstraint(a.getValue());
             else if (s.equals("jr:constraintMsg"))
-                setConstraintMsg(tag.getAttribute(s));
+                setConstraintMsg(a.getValue());
             else if (s.equals("relevant"))
-                setRelevant(tag.getAttribute(s));
+                setRelevant(a.getValue());
             else if (s.equals("calculate"))
-                setCalculate(tag.getAttribute(s));
+                setCalculate(a.getValue());
             else {
-                attributes.put(s, tag.getAttribute(s));
+                attributes.put(s, a.getValue());
                 setHasUnhandledAttribute(true);
             }                
         }
@@ -3,13 +3,11 @@ package com.radicaldynamic.groupinform.xform;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.StringTokenizer;
 import java.util.UUID;
 import java.util.regex.Pattern;
 
-import com.mycila.xmltool.XMLTag;
 import com.radicaldynamic.groupinform.application.Collect;
 
 import android.util.Log;
@@ -55,22 +53,23 @@ public class Field
     }
     
     // For fields instantiated from entries in <h:body>
-    public Field(XMLTag tag, ArrayList<Bind> binds, String instanceRoot, Field parent)
+    public Field(String type, String location, Map<String, String> tagAttributes, Map<String, Bind> binds, String instanceRoot, Field parent)
     {
         final String tt = t + "Field(): ";
 
-        if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, tt + "created new " + tag.getCurrentTagName() + " field at " + tag.getCurrentTagLocation());
+        if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, tt + "created new " + type + " field at " + location);
         
-        setType(tag.getCurrentTagName());
-        setLocation(tag.getCurrentTagLocation());
+        setType(type);
+        setLocation(location);
         
         if (parent != null) {
             setParent(parent);
         }
         
         // Read in attributes (includes "ref" to instance data output)
-        for (String s : tag.getAttributeNames()) {
-            attributes.put(s, tag.getAttribute(s));
+        for (Map.Entry<String, String> a : tagAttributes.entrySet()) {
+            String s = a.getKey();
+            attributes.put(s, a.getValue());
             
             /*
              * Special handling for the ref attribute to make it easy to access.
@@ -80,7 +79,7 @@ public class Field
              * when it comes time to write out the XML. 
              */
             if (s.equals(XForm.Attribute.REFERENCE) || s.equals(XForm.Attribute.NODESET) || s.equals(XForm.Attribute.BIND)) {
-                String xpath = tag.getAttribute(s);
+                String xpath = a.getValue();
                 
                 // If this reference is not to an itext translation then it must be to an instance/bind
                 if (Pattern.matches("^jr:.*", xpath)) {
@@ -96,30 +95,19 @@ public class Field
                         }
                     }
 
-                    /*
-                     * Iterate through the known list of binds and form a relationship 
-                     * with those that have the same XPath as the current field.
-                     */
-                    Iterator<Bind> it = binds.iterator();                    
-                    
-                    while (it.hasNext()) {
-                        Bind b = it.next();
+                    // If a bind with a nodeset identical to this ref exists, associate it with this field
+                    Bind b = binds.get(xpath);
 
-                        // If a bind with a nodeset identical to this ref exists, associate it with this field
-                        if (b.getXPath().equals(xpath)) {
-                            if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, t + "bind with nodeset " + b.getXPath() + " associated to field at " + getLocation());                            
-                            setBind(b);
-                            
-                            // Not all binds will have an associated type but our code (may) expect them to
-                            if (b.getType() == null) {
-                                if (Collect.Log.WARN) Log.w(Collect.LOGTAG, t + "bind for " + b.getXPath() + " missing an explicit type (setting to string if input)");
-                                
-                                if (getType().equals("input"))
-                                    b.setType("string");
-                            }
+                    if (b != null) {
+                        if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, t + "bind with nodeset " + b.getXPath() + " associated to field at " + getLocation());                            
+                        setBind(b);
 
-                            // No point in looking further, right?
-                            break;
+                        // Not all binds will have an associated type but our code (may) expect them to
+                        if (b.getType() == null) {
+                            if (Collect.Log.WARN) Log.w(Collect.LOGTAG, t + "bind for " + b.getXPath() + " missing an explicit type (setting to string if input)");
+
+                            if (getType().equals("input"))
+                                b.setType("string");
                         }
                     }
                 }
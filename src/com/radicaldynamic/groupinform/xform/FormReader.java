@@ -1,36 +1,50 @@
 package com.radicaldynamic.groupinform.xform;
 
-import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.UUID;
 
+import org.kxml2.io.KXmlParser;
+import org.xmlpull.v1.XmlPullParser;
+
 import android.util.Log;
 
-import com.mycila.xmltool.CallBack;
-import com.mycila.xmltool.XMLDoc;
-import com.mycila.xmltool.XMLDocumentException;
-import com.mycila.xmltool.XMLTag;
-import com.radicaldynamic.groupinform.R;
 import com.radicaldynamic.groupinform.application.Collect;
-import com.radicaldynamic.groupinform.utilities.StringUtils;
 
 public class FormReader
 {
-    private static final String t = "FormReader: ";   
-    
-    private XMLTag mForm;                           // The "form" as it was loaded by xmltool
+    private static final String t = "FormReader: ";
+
+    // Where in the document an element was found (determines how it and its children are parsed)
+    private static final int CONTEXT_OTHER          = 0;
+    private static final int CONTEXT_ROOT           = 1;
+    private static final int CONTEXT_HEAD           = 2;
+    private static final int CONTEXT_MODEL          = 3;
+    private static final int CONTEXT_ITEXT          = 4;
+    private static final int CONTEXT_INSTANCE       = 5;
+    private static final int CONTEXT_INSTANCE_DATA  = 6;
+    private static final int CONTEXT_BODY           = 7;
+    private static final int CONTEXT_FIELD          = 8;
+
+    // What the inner text of the element currently being captured will be used for
+    private static final int CAPTURE_TITLE          = 0;
+    private static final int CAPTURE_LABEL          = 1;
+    private static final int CAPTURE_HINT           = 2;
+    private static final int CAPTURE_ITEM_VALUE     = 3;
+    private static final int CAPTURE_TRANSLATION    = 4;
+
     private String mTitle;                          // The title of the template
-    private String mInstanceRoot;                   // The name of the instance root element 
+    private String mInstanceRoot;                   // The name of the instance root element
     private String mInstanceRootId;                 // The name of the instance root ID attribute
-    private String mDefaultPrefix;                  // The name of the default XForm prefix (needed for navigation)
-    
+
     private ArrayList<String> mFieldList = new ArrayList<String>();
-    
-    // State of binds, fields, instances and translations    
+
+    // State of binds, fields, instances and translations
     private ArrayList<Bind> mBinds = new ArrayList<Bind>();
     private ArrayList<Field> mFields = new ArrayList<Field>();
     private ArrayList<Instance> mInstance = new ArrayList<Instance>();
@@ -39,6 +53,22 @@ public class FormReader
     // Indexed by XMLTool tag location (e.g., *[2]/*[2]/*[3])
     private HashMap<String, Field> mFlatFieldIndex = new HashMap<String, Field>();
 
+    // Indexed by XPath (e.g., /data/name) so that binds and instances can be matched without searching
+    private HashMap<String, Bind> mBindIndex = new HashMap<String, Bind>();
+    private HashMap<String, Field> mFieldIndex = new HashMap<String, Field>();
+
+    // Parser state: binds are only created once the instance root is known, instances once all fields are known
+    private ArrayList<Map<String, String>> mBindAttributes = new ArrayList<Map<String, String>>();
+    private ArrayList<Element> mInstanceElements = new ArrayList<Element>();
+    private boolean mInstanceFound = false;
+
+    // Inner text capture (for labels, hints, item values, translations and the title)
+    private StringBuilder mCapture = null;
+    private int mCaptureDepth;
+    private int mCaptureType;
+    private Field mCaptureField;
+    private boolean mCaptureTagOpen = false;
+
     {
         // List of valid fields that we can handle
         Collections.addAll(mFieldList, "group", "input", "item", "repeat", "select", "select1", "trigger", "upload");
@@ -46,128 +76,61 @@ public class FormReader
 
     /*
      * Used to read in a form definition for manipulation by the Form Builder.
+     *
+     * The form is read in a single pass with a pull parser.  Sections are matched on their local
+     * names so that documents that don't include the xmlns attribute as expected (e.g., those
+     * from KoBo Form Designer) are handled without special treatment.
      */
     public FormReader(InputStream is, boolean retainFlatFieldIndex) throws Exception
     {
-        mForm = XMLDoc.from(is, false);
-        
-        /*
-         * Ensure that namespaces are as expected by loading a default document with a good configuration,
-         * removing the body of the template and pushing the contents of the recently loaded template into it.
-         * 
-         * This works around cases where people load documents from things like KoBo Form Designer that
-         * doesn't include the xmlns attribute as expected.
-         */
-        if (mForm.getPefix(XForm.Value.XMLNS_XFORMS) == null || mForm.getPefix(XForm.Value.XMLNS_XFORMS).length() == 0) {
-            try {        
-                InputStream xis = Collect.getInstance().getResources().openRawResource(R.raw.xform_template);        
-                XMLTag tag = XMLDoc.from(xis, false);
-                xis.close();
-
-                tag.gotoRoot().deleteChilds();
-
-                for (XMLTag child : mForm.gotoRoot().getInnerDocument().getChilds()) {
-                    tag.gotoRoot().addTag(child);
-                }
+        KXmlParser parser = new KXmlParser();
+        parser.setInput(is, null);
+
+        // Leave qualified names as they appear in the document (e.g., h:body, jr:preload)
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
+
+        parseForm(parser);
 
-                // Reinitialize our XML object now that the <h:head...> element contains the expected namespaces
-                mForm = XMLDoc.from(tag.toString(), false);
-            } catch (IOException e) {
-                e.printStackTrace();
-                throw e;
-            }
-        }
-       
-        mDefaultPrefix = mForm.getPefix(XForm.Value.XMLNS_XFORMS);
-        
-        /*
-         * Initalize new forms
-         * 
-         * This hack is in place in case a new form has been created but fails the first save attempt,
-         * thereby creating a form that will not contain an instance root.  Since instance roots are
-         * expected, the lack of one will crash this application.
-         * 
-         * FIXME: eventually remove this hack
-         */
-        if (mForm.gotoRoot().gotoTag("h:head/%1$s:model/%1$s:instance", mDefaultPrefix).getChildCount() == 0) {
-            // This might now be rigorous enough for i18n input
-            String formName = Collect.getInstance().getFormBuilderState().getFormDefinition().getName(); 
-            String instanceRoot = formName.replaceAll("\\s", "").replaceAll("[^a-zA-Z0-9_]", "");
-            String instanceRootId = UUID.randomUUID().toString().replaceAll("[^a-zA-Z0-9]", "");
-            
-            // Just in case the form name did not have anything useful in it with which to generate a sane instance root
-            if (instanceRoot.length() == 0) {
-                if (Collect.Log.WARN) Log.w(Collect.LOGTAG, t + "unable to construct instance root from form getName() of " + formName);
-                instanceRoot = UUID.randomUUID().toString().replaceAll("[^a-zA-Z0-9]", "");
-            }
-            
-            // See "Form ID Guidelines" (id is preferred vs. xmlns) http://code.google.com/p/opendatakit/wiki/XFormDesignGuidelines
-            mForm.gotoRoot().gotoTag("h:head/%1$s:model/%1$s:instance", mDefaultPrefix);
-            mForm.addTag(XMLDoc.from("<" + instanceRoot + " id=\"" + instanceRootId + "\"></" + instanceRoot + ">", false));
-        } else {
-            setTitle(mForm.gotoRoot().gotoTag("h:head/h:title").getInnerText());
-        }
-        
-        mInstanceRoot = mForm.gotoRoot().gotoTag("h:head/%1$s:model/%1$s:instance", mDefaultPrefix).gotoChild().getCurrentTagName();
-        
-        try {
-            mInstanceRootId = mForm.gotoRoot().gotoTag("h:head/%1$s:model/%1$s:instance", mDefaultPrefix).gotoChild().getAttribute(XForm.Attribute.ID);
-        } catch (XMLDocumentException e) {
-            if (Collect.Log.WARN) Log.w(Collect.LOGTAG, t + e.toString());            
-
-            try {
-                // It's possible that the ID attribute doesn't exist -- if this is the case, try and use the old-style XMLNS attribute
-                mInstanceRootId = mForm.gotoRoot().gotoTag("h:head/%1$s:model/%1$s:instance", mDefaultPrefix).gotoChild().getAttribute(XForm.Attribute.XML_NAMESPACE);
-            } catch (XMLDocumentException e1) {
-                if (Collect.Log.ERROR) Log.e(Collect.LOGTAG, t + e1.toString());
-                e1.printStackTrace();
-                throw new Exception("Unable to find id or xmlns attribute for instance.\n\nPlease contact our support team with this message at support@groupcomplete.com");
-            }
-        }        
-        
-        if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, t + "default prefix for form: " + mDefaultPrefix);
         if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, t + "instance root element name: " + mInstanceRoot);
         if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, t + "instance root ID: " + mInstanceRootId);
-        
-        parseForm();
 
         // Free immediately (unless we need it)
         if (retainFlatFieldIndex == false)
             mFlatFieldIndex.clear();
     }
-    
+
     public HashMap<String, Field> getFlatFieldIndex()
     {
         return mFlatFieldIndex;
     }
-    
+
     public ArrayList<Bind> getBinds()
     {
         return mBinds;
     }
-    
+
     public ArrayList<Field> getFields()
     {
         return mFields;
     }
-    
+
     public ArrayList<Instance> getInstance()
     {
         return mInstance;
     }
-    
+
     public String getInstanceRoot()
     {
         return mInstanceRoot;
     }
-    
+
     public String getInstanceRootId()
-    {        
+    {
         if (mInstanceRootId == null || mInstanceRootId.length() == 0) {
             if (Collect.Log.WARN) Log.w(Collect.LOGTAG, t + "missing instance root ID attribute, generating random string");
             mInstanceRootId = UUID.randomUUID().toString().replaceAll("[^a-zA-Z0-9]", "");
         }
-        
+
         return mInstanceRootId;
     }
 
@@ -175,256 +138,433 @@ public class FormReader
     {
         return mTranslations;
     }
-    
+
     /*
      * Trigger method for doing all of the actual work
      */
-    private void parseForm() throws Exception
+    private void parseForm(KXmlParser parser) throws Exception
     {
-        if (mForm.gotoRoot().gotoTag("h:head/%1$s:model", mDefaultPrefix).hasTag("%1$s:itext", mDefaultPrefix)) {
-            if (Collect.Log.DEBUG) Log.d(Collect.LOGTAG, t + "parsing itext form translations...");
-            parseFormTranslations(mForm.gotoRoot().gotoTag("h:head/%1$s:model/%1$s:itext", mDefaultPrefix));
-        } else {
-            if (Collect.Log.DEBUG) Log.d(Collect.LOGTAG, t + "no form translations to parse");
+        ArrayList<Element> stack = new ArrayList<Element>();
+
+        int eventType = parser.getEventType();
+
+        while (eventType != XmlPullParser.END_DOCUMENT) {
+            switch (eventType) {
+            case XmlPullParser.START_TAG:
+                Element parent = stack.isEmpty() ? null : stack.get(stack.size() - 1);
+                Element e = new Element(parent);
+
+                if (mCapture != null) {
+                    captureStartTag(parser);
+                } else {
+                    startElement(parser, e, parent);
+                }
+
+                stack.add(e);
+                break;
+
+            case XmlPullParser.TEXT:
+                if (mCapture != null) {
+                    if (mCaptureTagOpen) {
+                        mCapture.append('>');
+                        mCaptureTagOpen = false;
+                    }
+
+                    escape(mCapture, parser.getText(), false);
+                } else if (!stack.isEmpty() && stack.get(stack.size() - 1).context == CONTEXT_INSTANCE_DATA) {
+                    escape(stack.get(stack.size() - 1).text, parser.getText(), false);
+                }
+                break;
+
+            case XmlPullParser.END_TAG:
+                e = stack.remove(stack.size() - 1);
+
+                if (mCapture != null && stack.size() > mCaptureDepth) {
+                    captureEndTag(parser);
+                } else {
+                    endElement(e);
+                }
+                break;
+            }
+
+            eventType = parser.next();
         }
 
-        if (Collect.Log.DEBUG) Log.d(Collect.LOGTAG, t + "parsing form binds...");
-        parseFormBinds(mForm.gotoRoot().gotoTag("h:head/%1$s:model", mDefaultPrefix));
+        // Forms without a model are treated like new forms
+        if (mInstanceRoot == null)
+            initializeInstanceRoot();
 
-        if (Collect.Log.DEBUG) Log.d(Collect.LOGTAG, t + "parsing form body...");
-        parseFormBody(mForm.gotoRoot().gotoTag("h:body"));
-        
         if (Collect.Log.DEBUG) Log.d(Collect.LOGTAG, t + "parsing form instance...");
-        parseFormInstance(mForm.gotoRoot().gotoTag("h:head/%1$s:model/%1$s:instance", mDefaultPrefix).gotoChild(), "/" + mInstanceRoot);
+        parseFormInstance();
+    }
+
+    /*
+     * Decide what an element is (based on where it was found) and create any objects needed to represent it
+     */
+    private void startElement(KXmlParser parser, Element e, Element parent) throws Exception
+    {
+        String name = parser.getName();
+
+        if (parent == null) {
+            e.context = CONTEXT_ROOT;
+            return;
+        }
+
+        switch (parent.context) {
+        case CONTEXT_ROOT:
+            if (localName(name).equals("head")) {
+                e.context = CONTEXT_HEAD;
+            } else if (localName(name).equals("body")) {
+                if (Collect.Log.DEBUG) Log.d(Collect.LOGTAG, t + "parsing form body...");
+                e.context = CONTEXT_BODY;
+            }
+            break;
+
+        case CONTEXT_HEAD:
+            if (localName(name).equals("model")) {
+                e.context = CONTEXT_MODEL;
+            } else if (localName(name).equals("title")) {
+                startCapture(e, CAPTURE_TITLE, null);
+            }
+            break;
+
+        case CONTEXT_MODEL:
+            if (localName(name).equals("itext")) {
+                if (Collect.Log.DEBUG) Log.d(Collect.LOGTAG, t + "parsing itext form translations...");
+                e.context = CONTEXT_ITEXT;
+            } else if (localName(name).equals("instance") && !mInstanceFound) {
+                // Only the first (primary) instance is of interest
+                mInstanceFound = true;
+                e.context = CONTEXT_INSTANCE;
+            } else if (name.equals("bind")) {
+                mBindAttributes.add(readAttributes(parser, false));
+            }
+            break;
+
+        case CONTEXT_ITEXT:
+            parseFormTranslation(parser, e);
+            break;
+
+        case CONTEXT_INSTANCE:
+            if (mInstanceRoot == null) {
+                Map<String, String> attributes = readAttributes(parser, true);
+
+                mInstanceRoot = name;
+
+                // It's possible that the ID attribute doesn't exist -- if this is the case, try and use the old-style XMLNS attribute
+                if (attributes.containsKey(XForm.Attribute.ID)) {
+                    mInstanceRootId = attributes.get(XForm.Attribute.ID);
+                } else if (attributes.containsKey(XForm.Attribute.XML_NAMESPACE)) {
+                    if (Collect.Log.WARN) Log.w(Collect.LOGTAG, t + "instance root missing id attribute, using " + XForm.Attribute.XML_NAMESPACE);
+                    mInstanceRootId = attributes.get(XForm.Attribute.XML_NAMESPACE);
+                } else {
+                    if (Collect.Log.ERROR) Log.e(Collect.LOGTAG, t + "instance root missing both id and xmlns attributes");
+                    throw new Exception("Unable to find id or xmlns attribute for instance.\n\nPlease contact our support team with this message at support@groupcomplete.com");
+                }
+
+                e.context = CONTEXT_INSTANCE_DATA;
+                e.xpath = "/" + mInstanceRoot;
+                e.text = new StringBuilder();
+            }
+            break;
+
+        case CONTEXT_INSTANCE_DATA:
+            e.context = CONTEXT_INSTANCE_DATA;
+            e.xpath = parent.xpath + "/" + name;
+            e.text = new StringBuilder();
+
+            parent.hasChildren = true;
+            mInstanceElements.add(e);
+            break;
+
+        case CONTEXT_BODY:
+        case CONTEXT_FIELD:
+            parseFormBody(parser, e, parent);
+            break;
+        }
+    }
+
+    private void endElement(Element e)
+    {
+        if (mCapture != null) {
+            endCapture();
+        } else if (e.context == CONTEXT_MODEL) {
+            // Binds may precede the instance in the model so they are created once the model has been read in full
+            if (mInstanceRoot == null)
+                initializeInstanceRoot();
+
+            if (Collect.Log.DEBUG) Log.d(Collect.LOGTAG, t + "parsing form binds...");
+
+            Iterator<Map<String, String>> it = mBindAttributes.iterator();
+
+            while (it.hasNext()) {
+                Bind b = new Bind(it.next(), mInstanceRoot);
+                mBinds.add(b);
+
+                // Where several binds share a nodeset the first is the one associated with fields and instances
+                if (b.getXPath() != null && !mBindIndex.containsKey(b.getXPath()))
+                    mBindIndex.put(b.getXPath(), b);
+            }
+
+            mBindAttributes.clear();
+        }
     }
-    
+
     /*
-     * Recursively iterate over the form fields, creating objects to represent these fields
+     * Create objects to represent form fields as they are encountered (parents are always
+     * encountered before their children so they are taken from the parser stack)
      */
-    private void parseFormBody(XMLTag tag) throws Exception
-    {       
-        String ctl = tag.getCurrentTagLocation();
+    private void parseFormBody(KXmlParser parser, Element e, Element parent) throws Exception
+    {
+        String name = parser.getName();
+
+        if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, t + "visiting <" + name + "> at " + e.location);
 
-        if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, t + "visiting <" + tag.getCurrentTagName() + "> at " + ctl);
-        
         // Is the tag name a field type that we understand?
-        if (mFieldList.contains(tag.getCurrentTagName())) {
+        if (mFieldList.contains(name)) {
+            // New forms may not have an instance root but fields expect one
+            if (mInstanceRoot == null)
+                initializeInstanceRoot();
+
             Field f = null;
 
-            if (ctl.split("/").length == 2) {
+            if (parent.context == CONTEXT_BODY) {
                 // Top level field based on a current tag location of say *[2]/*[1]
-                f = new Field(tag, mBinds, mInstanceRoot, null);
+                f = new Field(name, e.location, readAttributes(parser, false), mBindIndex, mInstanceRoot, null);
                 mFields.add(f);
             } else {
-                // Should belong to an existing parent field that has already been parsed
-
-                /*
-                 * Attempt to look up parent field from index.  E.g., if current field is *[2]/*[1]/*[1] 
-                 * then we're looking for a field with the location *[2]/*[1].
-                 */
-                String ptl = StringUtils.join(ctl.split("/"), "/", ctl.split("/").length - 1);
-                Field p = mFlatFieldIndex.get(ptl);
-
-                if (p == null) {
-                    if (Collect.Log.ERROR) Log.e(Collect.LOGTAG, t + "could not find parent!");
-                    throw new Exception("Could not find parent tag at " + ptl + ".\n\nPlease contact our support team with this message at support@groupcomplete.com");
-                } else {
-                    f = new Field(tag, mBinds, mInstanceRoot, p);
-                    p.getChildren().add(f);
-                }
+                // Belongs to the parent field that is currently being parsed
+                f = new Field(name, e.location, readAttributes(parser, false), mBindIndex, mInstanceRoot, parent.field);
+                parent.field.getChildren().add(f);
             }
 
-            mFlatFieldIndex.put(ctl, f);
-        } else if (mFields.size() > 0) {
-            String ptl = StringUtils.join(ctl.split("/"), "/", ctl.split("/").length - 1);
-            Field p = mFlatFieldIndex.get(ptl);
+            e.context = CONTEXT_FIELD;
+            e.field = f;
+            mFlatFieldIndex.put(e.location, f);
 
-            if (p == null) {
-                if (Collect.Log.ERROR) Log.e(Collect.LOGTAG, t + "could not find parent!");
-                throw new Exception("Could not find parent tag at " + ptl + ".\n\nPlease contact our support team with this message at support@groupcomplete.com");
+            // Fields are parsed in document order so the first with a given XPath is the one that an instance belongs to
+            if (f.hasXPath() && !mFieldIndex.containsKey(f.getXPath()))
+                mFieldIndex.put(f.getXPath(), f);
+        } else if (mFields.size() > 0) {
+            if (parent.field == null) {
+                if (Collect.Log.ERROR) Log.e(Collect.LOGTAG, t + "could not find parent for <" + name + "> at " + e.location);
+                return;
             }
 
-            if (tag.getCurrentTagName().equals("label")) {
+            if (name.equals("label")) {
                 // Handle translated/untranslated labels
-                if (tag.hasAttribute(XForm.Attribute.REFERENCE))
-                    p.setLabel(tag.getAttribute(XForm.Attribute.REFERENCE));
+                if (parser.getAttributeValue(null, XForm.Attribute.REFERENCE) != null)
+                    parent.field.setLabel(parser.getAttributeValue(null, XForm.Attribute.REFERENCE));
                 else
-                    p.setLabel(tag.getInnerText());
-            } else if (tag.getCurrentTagName().equals("hint")) {
+                    startCapture(e, CAPTURE_LABEL, parent.field);
+            } else if (name.equals("hint")) {
                 // Handle translated/untranslated hints
-                if (tag.hasAttribute(XForm.Attribute.REFERENCE))
-                    p.setHint(tag.getAttribute(XForm.Attribute.REFERENCE));
+                if (parser.getAttributeValue(null, XForm.Attribute.REFERENCE) != null)
+                    parent.field.setHint(parser.getAttributeValue(null, XForm.Attribute.REFERENCE));
                 else
-                    p.setHint(tag.getInnerText());
-            } else if (tag.getCurrentTagName().equals("value")) {
+                    startCapture(e, CAPTURE_HINT, parent.field);
+            } else if (name.equals("value")) {
                 // Handle select item values
-                p.setItemValue(tag.getInnerText());
+                startCapture(e, CAPTURE_ITEM_VALUE, parent.field);
             }
         }
-        
-        // Parse children of those tags in our "field list" and the top-level tag h:body
-        if ((mFieldList.contains(tag.getCurrentTagName()) || tag.getCurrentTagName().equals("h:body")) && tag.getChildCount() > 0) {           
-            tag.forEachChild(new CallBack() {
-                @Override
-                public void execute(XMLTag arg0)
-                {
-                    try {
-                        parseFormBody(arg0);
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
-            });
-        }
     }
 
     /*
-     * Recursively parse the form translations, adding objects to mTranslationState to represent them
+     * Parse the form translations, adding objects to mTranslations to represent them
      */
-    private void parseFormTranslations(XMLTag tag)
+    private void parseFormTranslation(KXmlParser parser, Element e)
     {
-        if (tag.getCurrentTagName().equals("translation")) {
-            if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, t + "adding translations for " + tag.getAttribute(XForm.Attribute.LANGUAGE));
-            Translation t = new Translation(tag.getAttribute(XForm.Attribute.LANGUAGE));
-            
+        String name = parser.getName();
+
+        e.context = CONTEXT_ITEXT;
+
+        if (name.equals("translation")) {
+            String lang = parser.getAttributeValue(null, XForm.Attribute.LANGUAGE);
+
+            if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, t + "adding translations for " + lang);
+            Translation t = new Translation(lang);
+
             // The first translation to be parsed is considered the default/fallback translation for the form
             if (mTranslations.isEmpty())
                 t.setFallback(true);
-                
+
             mTranslations.add(t);
-        } else if (tag.getCurrentTagName().equals("text")) {
-            if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, t + "adding translation ID " + tag.getAttribute(XForm.Attribute.ID));
-            mTranslations.get(mTranslations.size() - 1).getTexts().add(new Translation(tag.getAttribute(XForm.Attribute.ID), null));
-        } else if (tag.getCurrentTagName().equals("value")) {
-            if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, t + "adding translation: " + tag.getInnerText());
-            mTranslations
-                .get(mTranslations.size() - 1).getTexts()
-                .get(mTranslations.get(mTranslations.size() - 1).getTexts().size() - 1)
-                .setValue(tag.getInnerText());
-        }
- 
-        if (tag.getChildCount() > 0) {           
-            tag.forEachChild(new CallBack() {
-                @Override
-                public void execute(XMLTag arg0)
-                {
-                    parseFormTranslations(arg0);
-                }
-            });
+        } else if (name.equals("text") && !mTranslations.isEmpty()) {
+            String id = parser.getAttributeValue(null, XForm.Attribute.ID);
+
+            if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, t + "adding translation ID " + id);
+            mTranslations.get(mTranslations.size() - 1).getTexts().add(new Translation(id, null));
+        } else if (name.equals("value") && !mTranslations.isEmpty() && !mTranslations.get(mTranslations.size() - 1).getTexts().isEmpty()) {
+            startCapture(e, CAPTURE_TRANSLATION, null);
         }
     }
-    
+
     /*
-     * Go through the list of binds and build objects to represent them.
-     * Binds are associated with field objects when the field is instantiated.
+     * Use the information supplied in the form instance to supplement the field objects in mFields
      */
-    private void parseFormBinds(XMLTag tag)
+    private void parseFormInstance()
     {
-        tag.forEachChild(new CallBack() {
-            @Override
-            public void execute(XMLTag arg0)
-            {
-                if (arg0.getCurrentTagName().equals("bind"))
-                    mBinds.add(new Bind(arg0, mInstanceRoot));               
+        Iterator<Element> it = mInstanceElements.iterator();
+
+        while (it.hasNext()) {
+            Element e = it.next();
+
+            // Only elements without children carry a default value
+            e.instance = new Instance(e.xpath, e.hasChildren ? "" : e.text.toString(), e.location, mBindIndex);
+
+            // Apply the instance to an existing field (hidden instances will not have one)
+            Field f = mFieldIndex.get(e.xpath);
+
+            if (f != null) {
+                if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, t + "instance matched with field object via " + e.xpath);
+                f.setInstance(e.instance);
+                e.instance.setField(f);
             }
-        });
-    }
-    
-    /*
-     * Recursively parse and use the information supplied in the form instance
-     * to supplement the field objects in mFields 
-     */
-    private void parseFormInstance(XMLTag tag, final String instancePath)
-    {
-        /*
-         * If the instancePath does not currently point to the instance root
-         * (this only happens the first time this method runs) 
-         */
-        if (instancePath.equals("/" + mInstanceRoot) == false) {
-            Instance newInstance = new Instance(instancePath, tag.getInnerText(), tag.getCurrentTagLocation(), mBinds);
-            
-            applyInstanceToField(null, newInstance);
-            
-            if (tag.getCurrentTagLocation().split("/").length == 5) {
+
+            if (e.parent.parent.context == CONTEXT_INSTANCE) {
                 // Add a top level instance
-                mInstance.add(newInstance);
+                mInstance.add(e.instance);
             } else {
-                attachChildToParentInstance(newInstance, null);
+                // For instances that are nested within other instances (e.g., those that are probably nested in a repeated group somewhere)
+                e.instance.setParent(e.parent.instance);
+                e.parent.instance.getChildren().add(e.instance);
             }
         }
-        
-        tag.forEachChild(new CallBack() {
-            @Override
-            public void execute(XMLTag arg0)
-            {
-                parseFormInstance(arg0, instancePath + "/" + arg0.getCurrentTagName());
-            }
-        });
+
+        mInstanceElements.clear();
+        mFieldIndex.clear();
     }
-    
+
     /*
-     * Attempts to apply an instance to an existing field
-     * 
-     * Returns true to indicate that application was successful and false
-     * to indicate that it was not (e.g., the instance is hidden)
+     * Initalize new forms
+     *
+     * This hack is in place in case a new form has been created but fails the first save attempt,
+     * thereby creating a form that will not contain an instance root.  Since instance roots are
+     * expected, the lack of one will crash this application.
+     *
+     * FIXME: eventually remove this hack
      */
-    private boolean applyInstanceToField(Field field, final Instance instance)
+    private void initializeInstanceRoot()
     {
-        Iterator<Field> it;
-        
-        if (field == null) {
-            it = mFields.iterator();
-        } else { 
-            if (field.hasXPath() && field.getXPath().equals(instance.getXPath())) {
-                if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, t + "instance matched with field object via " + instance.getXPath());
-                field.setInstance(instance);
-                field.getInstance().setField(field);
-                return true;
-            }
-            
-            it = field.getChildren().iterator();
-        }
-        
-        while (it.hasNext()) {
-            Field c = it.next();
-            
-            if (applyInstanceToField(c, instance)) {
-                return true;
-            }
+        // This might now be rigorous enough for i18n input
+        String formName = Collect.getInstance().getFormBuilderState().getFormDefinition().getName();
+        String instanceRoot = formName.replaceAll("\\s", "").replaceAll("[^a-zA-Z0-9_]", "");
+
+        // Just in case the form name did not have anything useful in it with which to generate a sane instance root
+        if (instanceRoot.length() == 0) {
+            if (Collect.Log.WARN) Log.w(Collect.LOGTAG, t + "unable to construct instance root from form getName() of " + formName);
+            instanceRoot = UUID.randomUUID().toString().replaceAll("[^a-zA-Z0-9]", "");
         }
-        
-        return false;
+
+        // See "Form ID Guidelines" (id is preferred vs. xmlns) http://code.google.com/p/opendatakit/wiki/XFormDesignGuidelines
+        mInstanceRoot = instanceRoot;
+        mInstanceRootId = UUID.randomUUID().toString().replaceAll("[^a-zA-Z0-9]", "");
     }
-    
+
     /*
-     * For instances that are nested within other instances
-     * (e.g., those that are probably nested in a repeated group somewhere)
+     * Inner text is captured with any markup (e.g., <output value="..."/>) and entities intact
      */
-    private boolean attachChildToParentInstance(Instance child, Instance incomingParent)
+    private void startCapture(Element e, int type, Field field)
     {
-        Iterator<Instance> it = null;
-        
-        if (incomingParent == null)
-            it = mInstance.iterator();
-        else
-            it = incomingParent.getChildren().iterator();
-        
-        while (it.hasNext()) {
-            Instance parent = it.next();
-            
-            if (child.getLocation().split("/").length - parent.getLocation().split("/").length == 1 &&
-                    parent.getLocation().equals(child.getLocation().substring(0, parent.getLocation().length()))) {
-                child.setParent(parent);
-                parent.getChildren().add(child);
-                return true;
+        mCapture = new StringBuilder();
+        mCaptureDepth = e.depth;
+        mCaptureType = type;
+        mCaptureField = field;
+        mCaptureTagOpen = false;
+    }
+
+    private void captureStartTag(KXmlParser parser)
+    {
+        if (mCaptureTagOpen)
+            mCapture.append('>');
+
+        mCapture.append('<').append(parser.getName());
+
+        for (int i = 0; i < parser.getAttributeCount(); i++) {
+            mCapture.append(' ').append(parser.getAttributeName(i)).append("=\"");
+            escape(mCapture, parser.getAttributeValue(i), true);
+            mCapture.append('"');
+        }
+
+        mCaptureTagOpen = true;
+    }
+
+    private void captureEndTag(KXmlParser parser)
+    {
+        if (mCaptureTagOpen) {
+            mCapture.append("/>");
+            mCaptureTagOpen = false;
+        } else {
+            mCapture.append("</").append(parser.getName()).append('>');
+        }
+    }
+
+    private void endCapture()
+    {
+        String text = mCapture.toString();
+        mCapture = null;
+
+        switch (mCaptureType) {
+        case CAPTURE_TITLE:
+            setTitle(text);
+            break;
+        case CAPTURE_LABEL:
+            mCaptureField.setLabel(text);
+            break;
+        case CAPTURE_HINT:
+            mCaptureField.setHint(text);
+            break;
+        case CAPTURE_ITEM_VALUE:
+            mCaptureField.setItemValue(text);
+            break;
+        case CAPTURE_TRANSLATION:
+            if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, t + "adding translation: " + text);
+            mTranslations
+                .get(mTranslations.size() - 1).getTexts()
+                .get(mTranslations.get(mTranslations.size() - 1).getTexts().size() - 1)
+                .setValue(text);
+            break;
+        }
+
+        mCaptureField = null;
+    }
+
+    private static Map<String, String> readAttributes(KXmlParser parser, boolean includeNamespaces)
+    {
+        Map<String, String> attributes = new LinkedHashMap<String, String>();
+
+        for (int i = 0; i < parser.getAttributeCount(); i++) {
+            String name = parser.getAttributeName(i);
+
+            // Namespace declarations are not attributes of fields or binds
+            if (!includeNamespaces && (name.equals("xmlns") || name.startsWith("xmlns:")))
+                continue;
+
+            attributes.put(name, parser.getAttributeValue(i));
+        }
+
+        return attributes;
+    }
+
+    private static String localName(String name)
+    {
+        return name.substring(name.indexOf(':') + 1);
+    }
+
+    private static void escape(StringBuilder sb, String s, boolean attribute)
+    {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+
+            switch (c) {
+            case '&':   sb.append("&amp;");     break;
+            case '<':   sb.append("&lt;");      break;
+            case '>':   sb.append("&gt;");      break;
+            case '"':   sb.append(attribute ? "&quot;" : "\""); break;
+            default:    sb.append(c);
             }
-                
-            
-            if (!parent.getChildren().isEmpty())
-                attachChildToParentInstance(child, parent);
-        }      
-        
-        return false;
+        }
     }
 
     public void setTitle(String mTitle) {
@@ -434,4 +574,38 @@ public class FormReader
     public String getTitle() {
         return mTitle;
     }
-}
\ No newline at end of file
+
+    /*
+     * An element on the parser stack and what we know about it
+     */
+    private static class Element
+    {
+        Element parent;
+        int depth;
+        int context = CONTEXT_OTHER;
+
+        String location;                    // The XMLTool style tag location of this element (e.g., *[2]/*[1])
+        int childCount = 0;
+
+        Field field;                        // For elements in <h:body> that are fields
+
+        String xpath;                       // For elements in the instance
+        Instance instance;
+        StringBuilder text;
+        boolean hasChildren = false;
+
+        Element(Element parent)
+        {
+            this.parent = parent;
+
+            if (parent == null) {
+                depth = 0;
+                location = ".";
+            } else {
+                depth = parent.depth + 1;
+                parent.childCount++;
+                location = parent.depth == 0 ? "*[" + parent.childCount + "]" : parent.location + "/*[" + parent.childCount + "]";
+            }
+        }
+    }
+}
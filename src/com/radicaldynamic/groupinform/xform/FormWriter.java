@@ -1,29 +1,46 @@
 package com.radicaldynamic.groupinform.xform;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.StringReader;
 import java.util.Collections;
 import java.util.Iterator;
 
+import org.kxml2.io.KXmlParser;
+import org.kxml2.io.KXmlSerializer;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
 import android.util.Log;
 
-import com.mycila.xmltool.XMLDoc;
-import com.mycila.xmltool.XMLTag;
-import com.radicaldynamic.groupinform.R;
 import com.radicaldynamic.groupinform.application.Collect;
 import com.radicaldynamic.groupinform.utilities.TranslationSortByDefault;
 
+/*
+ * Streams the form builder state out as an XForm.  Instances are thread safe (writes are serialized)
+ * and reuse their output buffer between saves so callers should hold on to one for the life of a session.
+ */
 public final class FormWriter
 {
     private static final String t = "FormWriter: ";
-    
+
     public static final String CONTENT_TYPE = "text/xml";
-    
-    private static XMLTag mFormTag;
-    private static String mDefaultPrefix;
-    private static String mInstanceRoot;
-    private static String mInstanceRootId;
-    
+
+    private static final String ENCODING = "UTF-8";
+
+    // Namespaces declared on the root element (the same as those in R.raw.xform_template)
+    private static final String [][] NAMESPACES = {
+        { "xmlns",      XForm.Value.XMLNS_XFORMS },
+        { "xmlns:ev",   "http://www.w3.org/2001/xml-events" },
+        { "xmlns:h",    "http://www.w3.org/1999/xhtml" },
+        { "xmlns:jr",   "http://openrosa.org/javarosa" },
+        { "xmlns:xsd",  "http://www.w3.org/2001/XMLSchema" }
+    };
+
+    private ByteArrayOutputStream mBuffer = new ByteArrayOutputStream(8192);
+    private KXmlSerializer mSerializer = new KXmlSerializer();
+    private KXmlParser mMarkupParser = new KXmlParser();
+
     @SuppressWarnings("serial")
     public static class FormSanityException extends Exception
     {
@@ -32,7 +49,7 @@ public final class FormWriter
             super(s);
         }
     }
-    
+
     @SuppressWarnings("serial")
     public static class GroupHasNoChildrenException extends FormSanityException
     {
@@ -41,230 +58,278 @@ public final class FormWriter
             super(s);
         }
     }
-    
-    public static byte[] writeXml(String headTitle, String instanceRoot, String instanceRootId) throws GroupHasNoChildrenException
-    {        
-        try {        
-            // Retrieve and load a template XForm file (this makes it easier than hardcoding a new one from scratch)
-            InputStream xis = Collect.getInstance().getResources().openRawResource(R.raw.xform_template);        
-            mFormTag = XMLDoc.from(xis, false);
-            xis.close();
-        } catch (IOException e) {
-            // Ignore xis.close() exceptions
-            e.printStackTrace();
-        }
-        
-        mDefaultPrefix = mFormTag.getPefix(XForm.Value.XMLNS_XFORMS);
-        
-        mInstanceRoot = instanceRoot;
-        mInstanceRootId = instanceRootId;
-        
+
+    public synchronized byte[] writeXml(String headTitle, String instanceRoot, String instanceRootId) throws GroupHasNoChildrenException, IOException
+    {
+        mBuffer.reset();
+
+        mSerializer.setOutput(mBuffer, ENCODING);
+        mSerializer.startDocument(ENCODING, null);
+
+        mSerializer.startTag(null, "h:html");
+
+        for (String [] ns : NAMESPACES)
+            mSerializer.attribute(null, ns[0], ns[1]);
+
+        mSerializer.startTag(null, "h:head");
+
         // Insert the title of this form into the XML
-        mFormTag.gotoRoot().gotoTag("h:head/h:title").setText(FieldText.encodeXMLEntities(headTitle));
-        
-        // Either write out translations or remove the unused itext tag
+        mSerializer.startTag(null, "h:title").text(headTitle == null ? "" : headTitle).endTag(null, "h:title");
+
+        mSerializer.startTag(null, "model");
+
+        // Either write out translations or omit the unused itext tag
         if (Collect.getInstance().getFormBuilderState().getTranslations().size() > 0) {
-            if (!mFormTag.gotoRoot().gotoTag("h:head/%1$s:model", mDefaultPrefix).hasTag("%1$s:itext", mDefaultPrefix)) {
-                mFormTag.gotoRoot().gotoTag("h:head/%1$s:model", mDefaultPrefix).addTag(mDefaultPrefix + ":itext");
-            }
-            
+            mSerializer.startTag(null, "itext");
             writeTranslations(null);
-        } else {
-            if (mFormTag.gotoRoot().gotoTag("h:head/%1$s:model", mDefaultPrefix).hasTag("%1$s:itext", mDefaultPrefix)) {
-                mFormTag.gotoRoot().gotoTag("h:head/%1$s:model/%1$s:itext", mDefaultPrefix).delete();
-            }
+            mSerializer.endTag(null, "itext");
         }
-        
-        writeInstance(null);        
-        writeBinds();        
+
+        mSerializer.startTag(null, "instance");
+        writeInstance(null, instanceRoot, instanceRootId);
+        mSerializer.endTag(null, "instance");
+
+        writeBinds();
+
+        mSerializer.endTag(null, "model");
+        mSerializer.endTag(null, "h:head");
+
+        mSerializer.startTag(null, "h:body");
         writeBody(null);
-        
+        mSerializer.endTag(null, "h:body");
+
+        mSerializer.endTag(null, "h:html");
+        mSerializer.endDocument();
+
         // Return XML for consumption
-        return mFormTag.toBytes();
+        return mBuffer.toByteArray();
     }
 
-    private static void writeBody(Field incomingField) throws GroupHasNoChildrenException
+    private void writeBody(Field incomingField) throws GroupHasNoChildrenException, IOException
     {
         Iterator<Field> it;
-        
+
         if (incomingField == null) {
             it = Collect.getInstance().getFormBuilderState().getFields().iterator();
-            mFormTag.gotoRoot().gotoTag("h:body");
         } else {
             it = incomingField.getChildren().iterator();
         }
-        
+
         while (it.hasNext()) {
             Field field = it.next();
-            
-            mFormTag.addTag(field.getType());
+
+            // Sanity check to make sure groups have children
+            if (field.getType().equals("group")) {
+                if (Field.isRepeatedGroup(field) && field.getRepeat().getChildren().size() == 0) {
+                    throw new GroupHasNoChildrenException("The repeated group \"" + field.getLabel() + "\" does not contain any fields.\n\nYou must create a field within this group or remove it before saving the form.");
+                } else if (field.getChildren().size() == 0) {
+                    throw new GroupHasNoChildrenException("The group \"" + field.getLabel() + "\" does not contain any fields.\n\nYou must create a field within this group or remove it before saving the form.");
+                }
+            }
+
+            mSerializer.startTag(null, field.getType());
 
             // Support for repeat (nodeset) references as well as regular references
             if (field.hasXPath()) {
                 if (field.getType().equals("repeat")) {
-                    mFormTag.getCurrentTag().setAttribute(XForm.Attribute.NODESET, field.getXPath());
-                } else {  
-                    mFormTag.getCurrentTag().setAttribute(XForm.Attribute.REFERENCE, field.getXPath());
+                    mSerializer.attribute(null, XForm.Attribute.NODESET, field.getXPath());
+                } else {
+                    mSerializer.attribute(null, XForm.Attribute.REFERENCE, field.getXPath());
                 }
             }
-            
+
             // Multiple field types
             if (field.getAttributes().containsKey(XForm.Attribute.APPEARANCE))
-                mFormTag.getCurrentTag().setAttribute(XForm.Attribute.APPEARANCE, field.getAttributes().get(XForm.Attribute.APPEARANCE));
+                mSerializer.attribute(null, XForm.Attribute.APPEARANCE, field.getAttributes().get(XForm.Attribute.APPEARANCE));
 
             // Upload control fields only
             if (field.getAttributes().containsKey(XForm.Attribute.MEDIA_TYPE))
-                mFormTag.getCurrentTag().setAttribute(XForm.Attribute.MEDIA_TYPE, field.getAttributes().get(XForm.Attribute.MEDIA_TYPE));
-            
-            // If the label does not reference an itext translation then attempt to output a regular label
-            if (field.getLabel().getRef() == null) {
-                // We don't gotoParent() after adding a tag with a text value (see longer comment in writeInstance)
-                if (field.getLabel().toString().length() > 0) {
-                    /* 
-                     * Special support for labels that take advantage of XForm output from instance fields.  E.g.,
-                     * <label>review widget. is your email still <output value="/widgets/regex"/>?</label>
-                     */ 
-                    mFormTag.addTag(XMLDoc.from("<label>" + FieldText.encodeXMLEntities(field.getLabel().toString().replace("xmlns=\"http://www.w3.org/2002/xforms\" ", "")) + "</label>", false));                                       
-                }
-            } else {
-                mFormTag.addTag("label").addAttribute(XForm.Attribute.REFERENCE, "jr:itext('" + field.getLabel().getRef() + "')").gotoParent();
-            }
-            
-            // Do the same for hints
-            if (field.getHint().getRef() == null) {
-                if (field.getHint().toString().length() > 0) {
-                    mFormTag.addTag(XMLDoc.from("<hint>" + FieldText.encodeXMLEntities(field.getHint().toString().replace("xmlns=\"http://www.w3.org/2002/xforms\" ", "")) + "</hint>", false));
-                }                    
-            } else {
-                mFormTag.addTag("hint").addAttribute(XForm.Attribute.REFERENCE, "jr:itext('" + field.getHint().getRef() + "')").gotoParent();
-            }
-            
+                mSerializer.attribute(null, XForm.Attribute.MEDIA_TYPE, field.getAttributes().get(XForm.Attribute.MEDIA_TYPE));
+
+            writeFieldText("label", field.getLabel());
+            writeFieldText("hint", field.getHint());
+
             // Special support for item control fields
             if (field.getType().equals("item")) {
-                if (field.getItemValue() == null)
-                    mFormTag.addTag("value").setText("");
-                else 
-                    mFormTag.addTag("value").setText(field.getItemValue());
+                mSerializer.startTag(null, "value");
+                mSerializer.text(field.getItemValue() == null ? "" : field.getItemValue());
+                mSerializer.endTag(null, "value");
             }
-            
-            // Sanity check to make sure groups have children
-            if (field.getType().equals("group")) {
-                if (Field.isRepeatedGroup(field) && field.getRepeat().getChildren().size() == 0) {
-                    throw new GroupHasNoChildrenException("The repeated group \"" + field.getLabel() + "\" does not contain any fields.\n\nYou must create a field within this group or remove it before saving the form.");        
-                } else if (field.getChildren().size() == 0) {
-                    throw new GroupHasNoChildrenException("The group \"" + field.getLabel() + "\" does not contain any fields.\n\nYou must create a field within this group or remove it before saving the form.");
-                }
-            }
-                
+
             writeBody(field);
-            
-            mFormTag.gotoParent();
+
+            mSerializer.endTag(null, field.getType());
         }
     }
 
-    private static void writeBinds()
+    private void writeBinds() throws IOException
     {
         Iterator<Bind> it = Collect.getInstance().getFormBuilderState().getBinds().iterator();
-        
-        mFormTag.gotoRoot().gotoTag("h:head/%1$s:model", mDefaultPrefix);
-        
+
         while (it.hasNext()) {
             Bind bind = it.next();
-            
+
             if (bind.hasUnhandledAttribute())
                 if (Collect.Log.WARN) Log.w(Collect.LOGTAG, t + "bind " + bind.getXPath() + " has unhandled attributes that will not be written; data will be lost!");
-            
-            mFormTag.addTag("bind").addAttribute("nodeset", bind.getXPath());
-            
+
+            mSerializer.startTag(null, "bind").attribute(null, "nodeset", bind.getXPath());
+
             // The following are conditional attributes
-            if (bind.getType() != null) mFormTag.getCurrentTag().setAttribute("type", bind.getType());
-            if (bind.isReadonly()) mFormTag.getCurrentTag().setAttribute("readonly", bind.getReadonly());
-            if (bind.isRequired()) mFormTag.getCurrentTag().setAttribute("required", bind.getRequired());
-            
+            if (bind.getType() != null) mSerializer.attribute(null, "type", bind.getType());
+            if (bind.isReadonly()) mSerializer.attribute(null, "readonly", bind.getReadonly());
+            if (bind.isRequired()) mSerializer.attribute(null, "required", bind.getRequired());
+
             if (bind.getPreload() != null && bind.getPreloadParams() != null) {
-                mFormTag.getCurrentTag().setAttribute("jr:preload", bind.getPreload());
-                mFormTag.getCurrentTag().setAttribute("jr:preloadParams", bind.getPreloadParams());
+                mSerializer.attribute(null, "jr:preload", bind.getPreload());
+                mSerializer.attribute(null, "jr:preloadParams", bind.getPreloadParams());
             }
-            
-            if (bind.getConstraint()    != null) mFormTag.getCurrentTag().setAttribute("constraint", bind.getConstraint());            
-            if (bind.getConstraintMsg() != null) mFormTag.getCurrentTag().setAttribute("jr:constraintMsg", bind.getConstraintMsg());            
-            if (bind.getRelevant()      != null) mFormTag.getCurrentTag().setAttribute("relevant", bind.getRelevant());            
-            if (bind.getCalculate()     != null) mFormTag.addAttribute("calculate", bind.getCalculate());
-            
-            // Make sure the next bind is inserted at the same level as this one
-            mFormTag.gotoParent();
+
+            if (bind.getConstraint()    != null) mSerializer.attribute(null, "constraint", bind.getConstraint());
+            if (bind.getConstraintMsg() != null) mSerializer.attribute(null, "jr:constraintMsg", bind.getConstraintMsg());
+            if (bind.getRelevant()      != null) mSerializer.attribute(null, "relevant", bind.getRelevant());
+            if (bind.getCalculate()     != null) mSerializer.attribute(null, "calculate", bind.getCalculate());
+
+            mSerializer.endTag(null, "bind");
         }
     }
 
-    private static void writeInstance(Instance incomingInstance)
+    private void writeInstance(Instance incomingInstance, String instanceRoot, String instanceRootId) throws IOException
     {
         Iterator<Instance> it;
-        
+
         if (incomingInstance == null) {
             it = Collect.getInstance().getFormBuilderState().getInstance().iterator();
-            
+
             // Initialize the instance root (only done once)
-            mFormTag.gotoRoot().gotoTag("h:head/%1$s:model/%1$s:instance", mDefaultPrefix);
-            mFormTag.addTag(mInstanceRoot).addAttribute("id", mInstanceRootId);
+            mSerializer.startTag(null, instanceRoot).attribute(null, XForm.Attribute.ID, instanceRootId);
         } else {
             it = incomingInstance.getChildren().iterator();
         }
-            
+
         while (it.hasNext()) {
             Instance instance = it.next();
-             
+
             if (instance.getChildren().isEmpty()) {
-                /*
-                 * For some reason unknown to me we can only call gotoParent() when adding 
-                 * an empty tag.  Calling it after adding an empty tag OR a tag with a text
-                 * value causes the nesting to get screwed up.  This doesn't make any sense
-                 * to me.  It might be a bug with xmltool.
-                 */
-                if (instance.getDefaultValue().length() == 0) { 
-                    mFormTag.addTag(instance.getName());
-                    mFormTag.gotoParent();
-                } else {
-                    mFormTag.addTag(instance.getName()).setText(instance.getDefaultValue());
-                }
+                mSerializer.startTag(null, instance.getName());
+
+                if (instance.getDefaultValue().length() > 0)
+                    mSerializer.text(instance.getDefaultValue());
+
+                mSerializer.endTag(null, instance.getName());
             } else {
                 // Likely a repeated data set
-                mFormTag.addTag(instance.getName()).addAttribute(XForm.Attribute.JR_TEMPLATE, "");
-                writeInstance(instance);
-                mFormTag.gotoParent();
+                mSerializer.startTag(null, instance.getName()).attribute(null, XForm.Attribute.JR_TEMPLATE, "");
+                writeInstance(instance, instanceRoot, instanceRootId);
+                mSerializer.endTag(null, instance.getName());
             }
         }
+
+        if (incomingInstance == null)
+            mSerializer.endTag(null, instanceRoot);
     }
 
-    private static void writeTranslations(Translation i18n)
+    private void writeTranslations(Translation i18n) throws IOException
     {
         Iterator<Translation> it;
-        
-        if (i18n == null) {            
+
+        if (i18n == null) {
             Collections.sort(Collect.getInstance().getFormBuilderState().getTranslations(), new TranslationSortByDefault());
-            it = Collect.getInstance().getFormBuilderState().getTranslations().iterator();   
+            it = Collect.getInstance().getFormBuilderState().getTranslations().iterator();
         } else {
             it = i18n.getTexts().iterator();
         }
-        
+
         while (it.hasNext()) {
             Translation t = it.next();
-            
+
             if (t.isGroup()) {
                 // Only write out sets that have translations
                 if (!t.getTexts().isEmpty()) {
-                    mFormTag.gotoRoot().gotoTag("h:head/%1$s:model/%1$s:itext", mDefaultPrefix);
-                    mFormTag.addTag("translation").addAttribute(XForm.Attribute.LANGUAGE, t.getLang());
+                    mSerializer.startTag(null, "translation").attribute(null, XForm.Attribute.LANGUAGE, t.getLang());
                     writeTranslations(t);
+                    mSerializer.endTag(null, "translation");
                 }
             } else {
                 // Only write out translations that have content
                 if (t.getValue() instanceof String) {
-                    mFormTag
-                        .addTag("text").addAttribute(XForm.Attribute.ID, t.getId())
-                        .addTag("value").setText(t.getValue())
-                        .gotoParent();
+                    mSerializer.startTag(null, "text").attribute(null, XForm.Attribute.ID, t.getId());
+                    writeMarkup("value", FieldText.decodeXMLEntities(t.getValue()));
+                    mSerializer.endTag(null, "text");
                 }
             }
         }
     }
+
+    /*
+     * Write out a label or hint (those that reference an itext translation are written as a reference)
+     */
+    private void writeFieldText(String tag, FieldText text) throws IOException
+    {
+        if (text.getRef() == null) {
+            if (text.toString().length() > 0)
+                writeMarkup(tag, text.toString());
+        } else {
+            mSerializer.startTag(null, tag).attribute(null, XForm.Attribute.REFERENCE, "jr:itext('" + text.getRef() + "')").endTag(null, tag);
+        }
+    }
+
+    /*
+     * Labels, hints and translations may contain markup that takes advantage of XForm output from instance fields, e.g.,
+     * <label>review widget. is your email still <output value="/widgets/regex"/>?</label>
+     */
+    private void writeMarkup(String tag, String text) throws IOException
+    {
+        // Nothing to parse
+        if (text.indexOf('<') == -1) {
+            mSerializer.startTag(null, tag).text(text).endTag(null, tag);
+            return;
+        }
+
+        String markup = "<" + tag + ">" + FieldText.encodeXMLEntities(text) + "</" + tag + ">";
+
+        try {
+            // Check the markup in full first so that a failure cannot leave a partially written element behind
+            mMarkupParser.setInput(new StringReader(markup));
+
+            while (mMarkupParser.next() != XmlPullParser.END_DOCUMENT);
+
+            mMarkupParser.setInput(new StringReader(markup));
+            copyMarkup();
+        } catch (XmlPullParserException e) {
+            if (Collect.Log.WARN) Log.w(Collect.LOGTAG, t + "unable to parse " + tag + " markup, writing as text: " + e.toString());
+            mSerializer.startTag(null, tag).text(text).endTag(null, tag);
+        }
+    }
+
+    /*
+     * Copy the element that the markup parser was set up with to the serializer
+     */
+    private void copyMarkup() throws XmlPullParserException, IOException
+    {
+        int eventType = mMarkupParser.next();
+
+        while (eventType != XmlPullParser.END_DOCUMENT) {
+            switch (eventType) {
+            case XmlPullParser.START_TAG:
+                mSerializer.startTag(null, mMarkupParser.getName());
+
+                for (int i = 0; i < mMarkupParser.getAttributeCount(); i++) {
+                    // Namespace declarations are already made on the root element
+                    if (!mMarkupParser.getAttributeName(i).startsWith("xmlns"))
+                        mSerializer.attribute(null, mMarkupParser.getAttributeName(i), mMarkupParser.getAttributeValue(i));
+                }
+                break;
+
+            case XmlPullParser.TEXT:
+                mSerializer.text(mMarkupParser.getText());
+                break;
+
+            case XmlPullParser.END_TAG:
+                mSerializer.endTag(null, mMarkupParser.getName());
+                break;
+            }
+
+            eventType = mMarkupParser.next();
+        }
+    }
 }
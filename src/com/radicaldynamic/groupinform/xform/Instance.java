@@ -1,7 +1,7 @@
 package com.radicaldynamic.groupinform.xform;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Map;
 
 import android.util.Log;
 
@@ -35,7 +35,7 @@ public class Instance
         this.defaultValue = "";
     }
     
-    public Instance(String instancePath, String defaultValue, String location, ArrayList<Bind> binds)
+    public Instance(String instancePath, String defaultValue, String location, Map<String, Bind> binds)
     {
         if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, t + "creating new instance with XPath " + instancePath + " and a default value of \"" + defaultValue + "\"");
         
@@ -43,16 +43,12 @@ public class Instance
         this.defaultValue   = defaultValue;
         this.location       = location;
         
-        Iterator<Bind> it = binds.iterator();                    
-        
-        while (it.hasNext()) {
-            Bind b = it.next();
-
-            // If a bind with a nodeset identical to this ref exists, associate it with this field
-            if (b.getXPath().equals(instancePath)) {
-                setBind(b);
-                if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, t + "bind with nodeset " + b.getXPath() + " bound to this instance at " + instancePath);
-            }
+        // If a bind with a nodeset identical to this ref exists, associate it with this instance
+        Bind b = binds.get(instancePath);
+
+        if (b != null) {
+            setBind(b);
+            if (Collect.Log.VERBOSE) Log.v(Collect.LOGTAG, t + "bind with nodeset " + b.getXPath() + " bound to this instance at " + instancePath);
         }
     }
 
@@ -0,0 +1,139 @@
+package com.radicaldynamic.groupinform.xform;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.radicaldynamic.groupinform.utilities.Base64Coder;
+
+/*
+ * A form instance document compiled once into static XML fragments and slots for
+ * imported column values, so that rendering a record is a single pass over the
+ * template into a reusable buffer (used by DataImportTask for every CSV row)
+ */
+public class InstanceTemplate
+{
+    private static final String ENCODING = "UTF-8";
+
+    // Static fragments, with slots[i] being the (zero-based) column written after fragments[i]
+    private ArrayList<byte[]> fragments = new ArrayList<byte[]>();
+    private ArrayList<Integer> slots = new ArrayList<Integer>();
+
+    private RecordBuffer buffer = new RecordBuffer();
+
+    public InstanceTemplate(FormReader reader, Map<String, Integer> fieldImportMap) throws UnsupportedEncodingException
+    {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<?xml version=\"1.0\" encoding=\"" + ENCODING + "\"?>");
+        xml.append("<" + reader.getInstanceRoot() + " id=\"" + escape(reader.getInstanceRootId()) + "\">");
+
+        Iterator<Instance> instanceIterator = reader.getInstance().iterator();
+
+        while (instanceIterator.hasNext()) {
+            Instance i = instanceIterator.next();
+
+            // Don't output instance tags representing repeated data
+            if (!i.getChildren().isEmpty())
+                continue;
+
+            Integer column = null;
+
+            // Hidden instance fields and fields without a column mapping use the template default
+            if (i.getField() != null && fieldImportMap.containsKey(i.getField().getLocation()))
+                column = fieldImportMap.get(i.getField().getLocation());
+
+            if (column == null || column <= 0) {
+                xml.append("<" + i.getName() + "/>");
+            } else {
+                xml.append("<" + i.getName() + ">");
+                fragments.add(xml.toString().getBytes(ENCODING));
+                slots.add(column - 1);
+
+                xml.setLength(0);
+                xml.append("</" + i.getName() + ">");
+            }
+        }
+
+        xml.append("</" + reader.getInstanceRoot() + ">");
+        fragments.add(xml.toString().getBytes(ENCODING));
+    }
+
+    /*
+     * Render the instance for a single record and return it base64 encoded (ready for
+     * use as an inline attachment).  Not thread safe: the internal buffer is reused.
+     */
+    public String render(List<String> record)
+    {
+        buffer.reset();
+
+        for (int i = 0; i < slots.size(); i++) {
+            buffer.write(fragments.get(i), 0, fragments.get(i).length);
+            buffer.writeEscaped(record.get(slots.get(i)).trim());
+        }
+
+        buffer.write(fragments.get(slots.size()), 0, fragments.get(slots.size()).length);
+
+        return buffer.encode();
+    }
+
+    private static String escape(String s)
+    {
+        return s.replaceAll("&", "&amp;").replaceAll("<", "&lt;").replaceAll(">", "&gt;").replaceAll("\"", "&quot;");
+    }
+
+    /*
+     * Byte buffer that XML escapes and UTF-8 encodes text as it is written, and that
+     * can be base64 encoded without copying its contents first
+     */
+    private static class RecordBuffer extends ByteArrayOutputStream
+    {
+        RecordBuffer()
+        {
+            super(4096);
+        }
+
+        String encode()
+        {
+            return new String(Base64Coder.encode(buf, 0, count));
+        }
+
+        void writeEscaped(String s)
+        {
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+
+                switch (c) {
+                case '&':   writeAscii("&amp;");    break;
+                case '<':   writeAscii("&lt;");     break;
+                case '>':   writeAscii("&gt;");     break;
+                default:
+                    if (c < 0x80) {
+                        write(c);
+                    } else if (c < 0x800) {
+                        write(0xc0 | (c >> 6));
+                        write(0x80 | (c & 0x3f));
+                    } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                        int cp = Character.toCodePoint(c, s.charAt(++i));
+                        write(0xf0 | (cp >> 18));
+                        write(0x80 | ((cp >> 12) & 0x3f));
+                        write(0x80 | ((cp >> 6) & 0x3f));
+                        write(0x80 | (cp & 0x3f));
+                    } else {
+                        write(0xe0 | (c >> 12));
+                        write(0x80 | ((c >> 6) & 0x3f));
+                        write(0x80 | (c & 0x3f));
+                    }
+                }
+            }
+        }
+
+        private void writeAscii(String s)
+        {
+            for (int i = 0; i < s.length(); i++)
+                write(s.charAt(i));
+        }
+    }
+}